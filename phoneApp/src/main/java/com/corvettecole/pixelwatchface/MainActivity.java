@@ -1,9 +1,14 @@
 package com.corvettecole.pixelwatchface;
 
+import android.Manifest;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
 import androidx.preference.PreferenceManager;
 
 import android.os.Bundle;
@@ -39,7 +44,7 @@ import java.util.Calendar;
 
 import static java.security.AccessController.getContext;
 
-public class MainActivity extends AppCompatActivity implements BillingProcessor.IBillingHandler/*DataClient.OnDataChangedListener*/ {
+public class MainActivity extends AppCompatActivity implements BillingProcessor.IBillingHandler, DataClient.OnDataChangedListener {
 
     private SharedPreferences sharedPreferences;
     private Switch use24HourTimeSwitch;
@@ -54,6 +59,7 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
     private Switch showBatterySwitch;
 
     private EditText darkSkyKeyEditText;
+    private TextView syncLatencyTextView;
 
     private boolean use24HourTime;
     private boolean showTemperature;
@@ -67,6 +73,9 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
     private boolean showInfoBarAmbient;
     private boolean showBattery;
     private BillingProcessor bp;
+    private SettingsSyncPipeline mSettingsSync;
+
+    private static final int LOCATION_PERMISSION_CODE = 1;
 
     String[] supportOptions = new String[]{"$1","$3","$5","$10"};
 
@@ -75,7 +84,9 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         sharedPreferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-        //Wearable.getDataClient(getApplicationContext()).addListener(this);
+        mSettingsSync = new SettingsSyncPipeline(getApplicationContext(),
+                () -> Snackbar.make(findViewById(android.R.id.content), "Syncing to watch...", Snackbar.LENGTH_SHORT).show());
+        mSettingsSync.syncUnsent();
 
         use24HourTimeSwitch = findViewById(R.id.timeFormatSwitch);
         showTemperatureSwitch = findViewById(R.id.temperatureSwitch);
@@ -89,9 +100,15 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
         showBatterySwitch = findViewById(R.id.batterySwitch);
 
         darkSkyKeyEditText = findViewById(R.id.darkSkyEditText);
+        syncLatencyTextView = findViewById(R.id.syncLatencyText);
+        if (BuildConfig.DEBUG) {
+            syncLatencyTextView.setVisibility(View.VISIBLE);
+            syncLatencyTextView.setText(SettingsLatencyProbe.getInstance().report());
+        }
 
         loadPreferences();
         loadSettingStates();
+        updateWeatherProxy(false);
 
         ArrayAdapter<String> adapter = new ArrayAdapter<>(
                         getApplicationContext(),
@@ -105,7 +122,7 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 sharedPreferences.edit().putBoolean("use_24_hour_time", isChecked).apply();
-                syncToWear();
+                mSettingsSync.onSettingChanged();
             }
         });
 
@@ -113,7 +130,8 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 sharedPreferences.edit().putBoolean("show_temperature", isChecked).apply();
-                syncToWear();
+                mSettingsSync.onSettingChanged();
+                updateWeatherProxy(isChecked);
                 if (isChecked) {
                     Snackbar.make(findViewById(android.R.id.content), "Check your watch face for locations prompt", Snackbar.LENGTH_LONG).show();
                 }
@@ -124,7 +142,7 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 sharedPreferences.edit().putBoolean("use_celsius", isChecked).apply();
-                syncToWear();
+                mSettingsSync.onSettingChanged();
             }
         });
 
@@ -132,7 +150,8 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 sharedPreferences.edit().putBoolean("show_weather", isChecked).apply();
-                syncToWear();
+                mSettingsSync.onSettingChanged();
+                updateWeatherProxy(isChecked);
                 if (isChecked) {
                     Snackbar.make(findViewById(android.R.id.content), "Check your watch face for locations prompt", Snackbar.LENGTH_LONG).show();
                 }
@@ -143,7 +162,7 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 sharedPreferences.edit().putBoolean("use_european_date", isChecked).apply();
-                syncToWear();
+                mSettingsSync.onSettingChanged();
             }
         });
 
@@ -151,7 +170,7 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 sharedPreferences.edit().putBoolean("show_temperature_decimal", isChecked).apply();
-                syncToWear();
+                mSettingsSync.onSettingChanged();
             }
         });
 
@@ -159,7 +178,7 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean isChecked) {
                 sharedPreferences.edit().putBoolean("use_thin_ambient", isChecked).apply();
-                syncToWear();
+                mSettingsSync.onSettingChanged();
             }
         });
 
@@ -167,7 +186,7 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean isChecked) {
                 sharedPreferences.edit().putBoolean("show_infobar_ambient", isChecked).apply();
-                syncToWear();
+                mSettingsSync.onSettingChanged();
             }
         });
 
@@ -175,7 +194,7 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 sharedPreferences.edit().putBoolean("use_dark_sky", isChecked).apply();
-                syncToWear();
+                mSettingsSync.onSettingChanged();
             }
         });
 
@@ -183,7 +202,7 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 sharedPreferences.edit().putBoolean("show_battery", isChecked).apply();
-                syncToWear();
+                mSettingsSync.onSettingChanged();
             }
         });
         darkSkyKeyEditText.addTextChangedListener(new TextWatcher() {
@@ -195,7 +214,7 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
                 sharedPreferences.edit().putString("dark_sky_api_key", darkSkyKeyEditText.getText().toString()).apply();
-                syncToWear();
+                mSettingsSync.onSettingChanged();
             }
 
             @Override
@@ -225,41 +244,26 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
         useDarkSky = sharedPreferences.getBoolean("use_dark_sky", false);
     }
 
-    private void syncToWear(){
-        //Toast.makeText(this, "something changed, syncing to watch", Toast.LENGTH_SHORT).show();
-        Snackbar.make(findViewById(android.R.id.content), "Syncing to watch...", Snackbar.LENGTH_SHORT).show();
-        loadPreferences();
-        String TAG = "syncToWear";
-        DataClient mDataClient = Wearable.getDataClient(this);
-        PutDataMapRequest putDataMapReq = PutDataMapRequest.create("/settings");
-
-        /* Reference DataMap retrieval code on the WearOS app
-                mUse24HourTime = dataMap.getBoolean("use_24_hour_time");
-                mShowTemperature = dataMap.getBoolean("show_temperature");
-                mUseCelsius = dataMap.getBoolean("use_celsius");
-                mShowWeather = dataMap.getBoolean("show_weather");
-                */
-
-        DataMap dataMap = new DataMap();
-        dataMap.putLong("timestamp", System.currentTimeMillis());
-        dataMap.putBoolean("use_24_hour_time", use24HourTime);
-        dataMap.putBoolean("show_temperature", showTemperature);
-        dataMap.putBoolean("use_celsius", useCelsius);
-        dataMap.putBoolean("show_weather", showWeather);
-        dataMap.putBoolean("use_european_date", useEuropeanDateFormat);
-        dataMap.putBoolean("show_temperature_decimal", showTemperatureDecimalPoint);
-        dataMap.putBoolean("use_thin_ambient", useThinAmbient);
-        dataMap.putBoolean("show_infobar_ambient", showInfoBarAmbient);
-        dataMap.putString("dark_sky_api_key", darkSkyAPIKey);
-        dataMap.putBoolean("use_dark_sky", useDarkSky);
-        dataMap.putBoolean("show_battery", showBattery);
-
-        putDataMapReq.getDataMap().putDataMap("com.corvettecole.pixelwatchface", dataMap);
-        PutDataRequest putDataReq = putDataMapReq.asPutDataRequest();
-        putDataReq.setUrgent();
-        Task<DataItem> putDataTask = mDataClient.putDataItem(putDataReq);
-        if (putDataTask.isSuccessful()){
-            Log.d(TAG, "Settings synced to wearable");
+    /**
+     * Lets the phone fetch weather on the watch's behalf. Location permission is only asked for
+     * when the user has just turned weather on, never on launch; without it the watch keeps
+     * fetching on its own.
+     *
+     * @param turnedOn whether a weather switch was just turned on
+     */
+    private void updateWeatherProxy(boolean turnedOn){
+        if (turnedOn
+                && ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.ACCESS_COARSE_LOCATION}, LOCATION_PERMISSION_CODE);
+        }
+        WeatherProxyWorker.schedule(getApplicationContext());
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == LOCATION_PERMISSION_CODE) {
+            WeatherProxyWorker.schedule(getApplicationContext());
         }
     }
 
@@ -309,33 +313,38 @@ public class MainActivity extends AppCompatActivity implements BillingProcessor.
         }
     }
 
-//    @Override
-//    public void onDataChanged(DataEventBuffer dataEvents) {
-//        String TAG = "onDataChanged";
-//        Log.d(TAG, "Data changed");
-//        DataMap dataMap = new DataMap();
-//        for (DataEvent event : dataEvents) {
-//            if (event.getType() == DataEvent.TYPE_CHANGED) {
-//                // DataItem changed
-//                DataItem item = event.getDataItem();
-//                Log.d(TAG, "DataItem uri: " + item.getUri());
-//                if (item.getUri().getPath().compareTo("/watch_status") == 0) {
-//                    Log.d(TAG, "Companion app changed a setting!");
-//                    dataMap = DataMapItem.fromDataItem(item).getDataMap();
-//                    Log.d(TAG, dataMap.toString());
-//                    dataMap = dataMap.getDataMap("com.corvettecole.pixelwatchface");
-//                    Log.d(TAG, dataMap.toString());
-//                }
-//            } else if (event.getType() == DataEvent.TYPE_DELETED) {
-//                // DataItem deleted
-//            }
-//        }
-//        updateStatus(dataMap);
-//    }
+    @Override
+    public void onDataChanged(DataEventBuffer dataEvents) {
+        long receivedAt = System.currentTimeMillis();
+        for (DataEvent event : dataEvents) {
+            DataItem item = event.getDataItem();
+            if (event.getType() == DataEvent.TYPE_CHANGED
+                    && SettingsLatencyProbe.PATH.equals(item.getUri().getPath())) {
+                DataMap ack = DataMapItem.fromDataItem(item).getDataMap();
+                if (SettingsLatencyProbe.getInstance().onAck(ack, receivedAt) && BuildConfig.DEBUG) {
+                    syncLatencyTextView.setText(SettingsLatencyProbe.getInstance().report());
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // acks from the watch are only timed while we're here to receive them right away
+        Wearable.getDataClient(getApplicationContext()).addListener(this);
+    }
+
+    @Override
+    protected void onStop() {
+        // don't leave a debounced edit behind when the user leaves the app
+        mSettingsSync.flushPending();
+        Wearable.getDataClient(getApplicationContext()).removeListener(this);
+        super.onStop();
+    }
 
     @Override
     public void onDestroy() {
-        //Wearable.getDataClient(getApplicationContext()).removeListener(this);
         if (bp != null) {
             bp.release();
         }
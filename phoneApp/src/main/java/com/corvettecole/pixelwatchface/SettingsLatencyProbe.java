@@ -0,0 +1,142 @@
+package com.corvettecole.pixelwatchface;
+
+import com.google.android.gms.wearable.DataMap;
+
+/**
+ * Measures how long settings take to reach the wrist, from the acks the watch sends once a
+ * version has been drawn (see the watch's SettingsAck). The round trip is timed on our clock
+ * alone, since the ack carries back the timestamp we sent, and the watch's share (receive to
+ * apply to first frame) on its clock alone. What's left of the round trip is both legs over the
+ * data layer, so half of it is taken as the delivery time each way.
+ *
+ * Acks are plain {@link DataMap}s, so anything can feed {@link #onAck} in place of the data
+ * layer. Only acks received while the settings screen is open are counted; one that arrives
+ * later would make the round trip look longer than it was.
+ */
+public class SettingsLatencyProbe {
+
+    public static final String PATH = "/settings_ack";
+
+    private static final SettingsLatencyProbe instance = new SettingsLatencyProbe();
+
+    private final Histogram mRoundTrip = new Histogram(100, 250, 500, 1000, 2000, 5000, 10000, 30000);
+    private final Histogram mDelivery = new Histogram(50, 100, 250, 500, 1000, 2500, 5000, 15000);
+    private final Histogram mReceiveToApply = new Histogram(5, 10, 25, 50, 100, 250, 500, 1000);
+    private final Histogram mApplyToDraw = new Histogram(16, 33, 50, 100, 250, 500, 1000, 60000);
+    private final Histogram mSendToVisible = new Histogram(100, 250, 500, 1000, 2000, 5000, 10000, 60000);
+    private long mLastVersion = 0;
+    private int mIgnored = 0;
+
+    public static SettingsLatencyProbe getInstance() {
+        return instance;
+    }
+
+    /**
+     * Records an ack.
+     *
+     * @param receivedAt when it arrived, on our clock
+     * @return whether it was counted; repeats of a version already seen, and acks with times
+     * that don't add up (e.g. our clock was changed in between), are not
+     */
+    public synchronized boolean onAck(DataMap ack, long receivedAt) {
+        long version = ack.getLong("version", 0);
+        if (version <= mLastVersion) {
+            return false;
+        }
+        mLastVersion = version;
+
+        long roundTrip = receivedAt - ack.getLong("sent_at");
+        long receiveToApply = ack.getLong("applied_at") - ack.getLong("received_at");
+        long applyToDraw = ack.getLong("drawn_at") - ack.getLong("applied_at");
+        long onWatch = receiveToApply + applyToDraw;
+        if (roundTrip < 0 || receiveToApply < 0 || applyToDraw < 0 || onWatch > roundTrip) {
+            mIgnored++;
+            return false;
+        }
+        long delivery = (roundTrip - onWatch) / 2;
+        mRoundTrip.record(roundTrip);
+        mDelivery.record(delivery);
+        mReceiveToApply.record(receiveToApply);
+        mApplyToDraw.record(applyToDraw);
+        mSendToVisible.record(delivery + onWatch);
+        return true;
+    }
+
+    /**
+     * @return every histogram, one per line, in ms
+     */
+    public synchronized String report() {
+        return "settings sync latency, last version " + mLastVersion + ", " + mIgnored + " ignored\n"
+                + "round_trip_ms: " + mRoundTrip + "\n"
+                + "delivery_ms (est.): " + mDelivery + "\n"
+                + "watch_receive_to_apply_ms: " + mReceiveToApply + "\n"
+                + "watch_apply_to_draw_ms: " + mApplyToDraw + "\n"
+                + "send_to_visible_ms (est.): " + mSendToVisible;
+    }
+
+    /**
+     * Counts values into fixed buckets. Bucket i holds values up to and including
+     * {@code bounds[i]}; one extra bucket holds everything larger. Not thread safe on its own.
+     */
+    static class Histogram {
+        private final long[] mBounds;
+        private final long[] mBuckets;
+        private long mCount = 0;
+        private long mSum = 0;
+        private long mMax = 0;
+
+        Histogram(long... bounds) {
+            mBounds = bounds;
+            mBuckets = new long[bounds.length + 1];
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < mBounds.length && value > mBounds[bucket]) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+            mCount++;
+            mSum += value;
+            mMax = Math.max(mMax, value);
+        }
+
+        /**
+         * @return the upper bound of the bucket containing the {@code quantile}, or the recorded
+         * max if that is the overflow bucket
+         */
+        long getQuantile(double quantile) {
+            long rank = (long) Math.ceil(mCount * quantile);
+            long seen = 0;
+            for (int i = 0; i < mBounds.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return mBounds[i];
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            if (mCount == 0) {
+                return "n=0";
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("n=").append(mCount)
+                    .append(" mean=").append(mSum / mCount)
+                    .append(" p50<=").append(getQuantile(0.5))
+                    .append(" p90<=").append(getQuantile(0.9))
+                    .append(" max=").append(mMax)
+                    .append(" [");
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(i < mBounds.length ? "<=" + mBounds[i] : ">" + mBounds[mBounds.length - 1])
+                        .append(':').append(mBuckets[i]);
+            }
+            return sb.append(']').toString();
+        }
+    }
+}
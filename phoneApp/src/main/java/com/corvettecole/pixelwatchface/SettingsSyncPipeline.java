@@ -0,0 +1,156 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends settings to the watch. Edits are debounced, so a burst of changes (e.g. typing an API
+ * key) results in a single sync, and only keys that changed since the last sync are sent, tagged
+ * with an increasing version number. Each version goes to its own data item under
+ * {@link #PATH_PREFIX} so that no delta is overwritten before the watch has seen it.
+ */
+public class SettingsSyncPipeline {
+
+    public static final String PATH_PREFIX = "/settings/";
+
+    private static final long DEBOUNCE_MS = 750;
+    private static final String SYNC_STATE = "settings_sync";
+    private static final String KEY_VERSION = "version";
+
+    private static final String[] BOOLEAN_KEYS = {"use_24_hour_time", "show_temperature", "use_celsius",
+            "show_weather", "use_european_date", "show_temperature_decimal", "use_thin_ambient",
+            "show_infobar_ambient", "use_dark_sky", "show_battery"};
+    private static final String[] STRING_KEYS = {"dark_sky_api_key"};
+
+    /**
+     * Keys whose changes don't alter what the face shows right away and can go out as
+     * non-urgent data items.
+     */
+    private static final List<String> BACKGROUND_KEYS = Arrays.asList("dark_sky_api_key");
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+    private final SharedPreferences mSyncState;
+    private final Runnable mOnSync;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlush = this::flush;
+    private boolean mPending = false;
+    // newest version handed to the data layer, which may not have stored it yet
+    private long mLastSentVersion = 0;
+
+    /**
+     * @param onSync run on the main thread whenever a delta is actually sent
+     */
+    public SettingsSyncPipeline(Context context, Runnable onSync) {
+        mContext = context.getApplicationContext();
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mSyncState = mContext.getSharedPreferences(SYNC_STATE, Context.MODE_PRIVATE);
+        mOnSync = onSync;
+    }
+
+    /**
+     * Call after writing a setting to the default SharedPreferences.
+     */
+    public void onSettingChanged() {
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, DEBOUNCE_MS);
+        mPending = true;
+    }
+
+    /**
+     * Sends any settings that were changed but never made it into the data layer, e.g. because
+     * the app was killed before a put went through.
+     */
+    public void syncUnsent() {
+        flush();
+    }
+
+    /**
+     * Sends anything still waiting for the debounce window right away.
+     */
+    public void flushPending() {
+        if (mPending) {
+            mHandler.removeCallbacks(mFlush);
+            flush();
+        }
+    }
+
+    private void flush() {
+        String TAG = "SettingsSyncPipeline";
+        mPending = false;
+        DataMap delta = new DataMap();
+        SharedPreferences.Editor syncEditor = mSyncState.edit();
+        List<String> changedKeys = new ArrayList<>();
+        boolean urgent = false;
+
+        for (String key : BOOLEAN_KEYS) {
+            boolean value = mPreferences.getBoolean(key, defaultBoolean(key));
+            if (!mSyncState.contains(key) || mSyncState.getBoolean(key, false) != value) {
+                delta.putBoolean(key, value);
+                syncEditor.putBoolean(key, value);
+                changedKeys.add(key);
+            }
+        }
+        for (String key : STRING_KEYS) {
+            String value = mPreferences.getString(key, "");
+            if (!mSyncState.contains(key) || !value.equals(mSyncState.getString(key, ""))) {
+                delta.putString(key, value);
+                syncEditor.putString(key, value);
+                changedKeys.add(key);
+            }
+        }
+        if (changedKeys.isEmpty()) {
+            return;
+        }
+        for (String key : changedKeys) {
+            if (!BACKGROUND_KEYS.contains(key)) {
+                urgent = true;
+                break;
+            }
+        }
+
+        // a put still in flight hasn't recorded its version yet
+        long version = Math.max(mSyncState.getLong(KEY_VERSION, 0), mLastSentVersion) + 1;
+        mLastSentVersion = version;
+        delta.putLong(KEY_VERSION, version);
+        delta.putLong("timestamp", System.currentTimeMillis());
+        syncEditor.putLong(KEY_VERSION, version);
+
+        PutDataMapRequest putDataMapReq = PutDataMapRequest.create(PATH_PREFIX + version);
+        putDataMapReq.getDataMap().putDataMap("com.corvettecole.pixelwatchface", delta);
+        PutDataRequest putDataReq = putDataMapReq.asPutDataRequest();
+        if (urgent) {
+            putDataReq.setUrgent();
+        }
+        // keys only count as synced once the data layer has the delta; if the put fails they are
+        // still different from the sync state and go out again with the next flush
+        Wearable.getDataClient(mContext).putDataItem(putDataReq)
+                .addOnSuccessListener(dataItem -> {
+                    Log.d(TAG, "Settings v" + version + " synced to wearable");
+                    // a newer delta that already landed carries these keys too, and newer values
+                    if (version > mSyncState.getLong(KEY_VERSION, 0)) {
+                        syncEditor.apply();
+                    }
+                })
+                .addOnFailureListener(e -> Log.w(TAG, "Couldn't sync settings v" + version + ": " + e));
+        mOnSync.run();
+    }
+
+    private static boolean defaultBoolean(String key) {
+        return key.equals("show_battery");
+    }
+}
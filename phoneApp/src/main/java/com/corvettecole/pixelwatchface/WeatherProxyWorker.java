@@ -0,0 +1,139 @@
+package com.corvettecole.pixelwatchface;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
+import androidx.preference.PreferenceManager;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.tasks.Tasks;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.Wearable;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches current weather on the phone, which has a better radio and usually an up to date
+ * location, and pushes it to the watch as a {@link WeatherSnapshot}. The watch skips its own
+ * fetch for as long as the pushed data is fresh.
+ */
+public class WeatherProxyWorker extends Worker {
+
+    public static final String WORK_NAME = "weather_proxy_worker";
+    public static final int UPDATE_INTERVAL = 30; // minutes
+
+    private static final long LOCATION_TIMEOUT_SECONDS = 30;
+
+    public WeatherProxyWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Schedules the periodic proxy fetch if the face shows any weather, cancels it otherwise.
+     */
+    public static void schedule(Context context) {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean weatherShown = sharedPreferences.getBoolean("show_temperature", false)
+                || sharedPreferences.getBoolean("show_weather", false);
+        WorkManager workManager = WorkManager.getInstance(context);
+        if (!weatherShown) {
+            workManager.cancelUniqueWork(WORK_NAME);
+            return;
+        }
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+        PeriodicWorkRequest request =
+                new PeriodicWorkRequest.Builder(WeatherProxyWorker.class, UPDATE_INTERVAL, TimeUnit.MINUTES)
+                        .setConstraints(constraints)
+                        .build();
+        workManager.enqueueUniquePeriodicWork(WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        String TAG = "WeatherProxyWorker";
+        Context context = getApplicationContext();
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.ACCESS_COARSE_LOCATION)
+                != PackageManager.PERMISSION_GRANTED) {
+            // without a location the watch falls back to fetching on its own
+            return Result.failure();
+        }
+
+        Location location;
+        try {
+            location = Tasks.await(LocationServices.getFusedLocationProviderClient(context).getLastLocation(),
+                    LOCATION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            Log.d(TAG, "no location: " + e);
+            return Result.retry();
+        }
+        if (location == null) {
+            return Result.retry();
+        }
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        String darkSkyAPIKey = sharedPreferences.getString("dark_sky_api_key", "");
+        boolean useDarkSky = sharedPreferences.getBoolean("use_dark_sky", false) && !darkSkyAPIKey.isEmpty();
+        String openWeatherMapAPIKey = context.getString(R.string.openstreetmap_api_key);
+        if (!useDarkSky && openWeatherMapAPIKey.isEmpty()) {
+            // built without a key: leave fetching to the watch
+            return Result.failure();
+        }
+
+        try {
+            WeatherData data = useDarkSky
+                    ? DarkSkyApi.parse(get(DarkSkyApi.buildUrl(DarkSkyApi.DEFAULT_BASE_URL, darkSkyAPIKey,
+                            location.getLatitude(), location.getLongitude())))
+                    : OpenWeatherMapApi.parse(get(OpenWeatherMapApi.buildUrl(OpenWeatherMapApi.DEFAULT_BASE_URL, openWeatherMapAPIKey,
+                            location.getLatitude(), location.getLongitude())), System.currentTimeMillis());
+            WeatherSnapshot snapshot = WeatherSnapshot.fromWeatherData(data);
+            snapshot.fetchedAt = System.currentTimeMillis();
+
+            PutDataMapRequest putDataMapReq = PutDataMapRequest.create(WeatherSnapshot.PATH);
+            putDataMapReq.getDataMap().putByteArray(WeatherSnapshot.KEY_SNAPSHOT, snapshot.encode());
+            // not urgent: the watch only needs this before its own refresh deadline
+            Tasks.await(Wearable.getDataClient(context).putDataItem(putDataMapReq.asPutDataRequest()));
+            Log.d(TAG, "pushed weather snapshot from " + snapshot.provider);
+            return Result.success();
+        } catch (IOException | JSONException e) {
+            Log.d(TAG, "weather fetch failed: " + e);
+            return Result.retry();
+        } catch (Exception e) {
+            Log.d(TAG, "couldn't push weather snapshot: " + e);
+            return Result.retry();
+        }
+    }
+
+    private static String get(String url) throws IOException {
+        OkHttpClient client = new OkHttpClient();
+        client.setConnectTimeout(15, TimeUnit.SECONDS);
+        client.setReadTimeout(15, TimeUnit.SECONDS);
+        Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+        if (!response.isSuccessful()) {
+            response.body().close();
+            throw new IOException("HTTP " + response.code());
+        }
+        return response.body().string();
+    }
+}
@@ -0,0 +1,55 @@
+package com.corvettecole.pixelwatchface;
+
+import com.google.android.gms.wearable.DataMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link SettingsLatencyProbe} acks shaped like the ones the watch sends.
+ */
+public class SettingsLatencyProbeTest {
+
+    private final SettingsLatencyProbe mProbe = new SettingsLatencyProbe();
+
+    @Test
+    public void countsAckThatAddsUp() {
+        // sent at 1000 on our clock, back at 1500; 30 ms of that on the watch's own clock
+        assertTrue(mProbe.onAck(ack(1, 1000, 50000, 50010, 50030), 1500));
+
+        String report = mProbe.report();
+        assertTrue(report, report.contains("last version 1, 0 ignored"));
+        assertTrue(report, report.contains("round_trip_ms: n=1 mean=500"));
+        assertTrue(report, report.contains("delivery_ms (est.): n=1 mean=235"));
+        assertTrue(report, report.contains("send_to_visible_ms (est.): n=1 mean=265"));
+    }
+
+    @Test
+    public void countsEachVersionOnce() {
+        assertTrue(mProbe.onAck(ack(2, 1000, 50000, 50010, 50030), 1500));
+        assertFalse(mProbe.onAck(ack(2, 1000, 50000, 50010, 50030), 1600));
+        assertFalse(mProbe.onAck(ack(1, 900, 49000, 49010, 49030), 1700));
+    }
+
+    @Test
+    public void ignoresAckWithTimesThatDontAddUp() {
+        // more time on the watch than the whole round trip took
+        assertFalse(mProbe.onAck(ack(1, 1000, 50000, 50010, 51000), 1500));
+        // our clock went back in between
+        assertFalse(mProbe.onAck(ack(2, 1000, 50000, 50010, 50030), 900));
+
+        assertTrue(mProbe.report().contains("2 ignored"));
+    }
+
+    private static DataMap ack(long version, long sentAt, long receivedAt, long appliedAt, long drawnAt) {
+        DataMap ack = new DataMap();
+        ack.putLong("version", version);
+        ack.putLong("sent_at", sentAt);
+        ack.putLong("received_at", receivedAt);
+        ack.putLong("applied_at", appliedAt);
+        ack.putLong("drawn_at", drawnAt);
+        return ack;
+    }
+}
@@ -0,0 +1,41 @@
+package com.corvettecole.pixelwatchface;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * Request URL and response parsing for DarkSky's forecast endpoint, shared by the watch's
+ * {@code DarkSkyProvider} and the phone's weather proxy.
+ */
+public final class DarkSkyApi {
+
+    public static final String NAME = "DarkSky";
+    public static final String DEFAULT_BASE_URL = "https://api.forecast.io";
+
+    private DarkSkyApi() {
+    }
+
+    /**
+     * @param baseUrl scheme and host to query, without a trailing slash
+     */
+    public static String buildUrl(String baseUrl, String apiKey, double latitude, double longitude) {
+        return baseUrl + "/forecast/" + apiKey + "/" + latitude + "," + longitude
+                + "?lang=" + Locale.getDefault().getLanguage();
+    }
+
+    public static WeatherData parse(String body) throws JSONException {
+        JSONObject forecast = new JSONObject(body);
+        WeatherData data = new WeatherData(NAME);
+        data.setTimeZone(forecast.getString("timezone"));
+        JSONObject currently = forecast.getJSONObject("currently");
+        data.setHumidity(currently.getDouble("humidity"));
+        data.setTime(currently.getLong("time"));
+        data.setIconName(currently.getString("icon"));
+        data.setPrecipitationChance(currently.getDouble("precipProbability"));
+        data.setSummary(currently.getString("summary"));
+        data.setTemperature(currently.getDouble("temperature"));
+        return data;
+    }
+}
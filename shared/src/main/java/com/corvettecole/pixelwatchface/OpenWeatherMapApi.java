@@ -0,0 +1,38 @@
+package com.corvettecole.pixelwatchface;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Request URL and response parsing for OpenWeatherMap's current weather endpoint, shared by the
+ * watch's {@code OpenWeatherMapProvider} and the phone's weather proxy.
+ */
+public final class OpenWeatherMapApi {
+
+    public static final String NAME = "OpenWeatherMap";
+    public static final String DEFAULT_BASE_URL = "https://api.openweathermap.org";
+
+    private OpenWeatherMapApi() {
+    }
+
+    /**
+     * @param baseUrl scheme and host to query, without a trailing slash
+     */
+    public static String buildUrl(String baseUrl, String apiKey, double latitude, double longitude) {
+        return baseUrl + "/data/2.5/weather?lat=" + latitude + "&lon=" + longitude + "&units=imperial&appid=" + apiKey;
+    }
+
+    /**
+     * @param now ms since epoch, taken as the observation time if the response has none
+     */
+    public static WeatherData parse(String body, long now) throws JSONException {
+        JSONObject forecast = new JSONObject(body);
+        WeatherData data = new WeatherData(NAME);
+        JSONObject main = forecast.getJSONObject("main");
+        data.setHumidity(main.getDouble("humidity") / 100); //adjust OpenWeatherMap format to dark sky format with /100
+        data.setTemperature(main.getDouble("temp"));
+        data.setIconName(forecast.getJSONArray("weather").getJSONObject(0).getString("icon"));
+        data.setTime(forecast.optLong("dt", now / 1000));
+        return data;
+    }
+}
@@ -0,0 +1,80 @@
+package com.corvettecole.pixelwatchface;
+
+/**
+ * A single parsed weather observation, independent of the provider it came from.
+ */
+public class WeatherData {
+
+    private final String mProvider;
+    private String mIconName;
+    private long mTime;
+    private double mTemperature = Double.MIN_VALUE;
+    private double mHumidity;
+    private double mPrecipitationChance;
+    private String mSummary;
+    private String mTimeZone;
+
+    public WeatherData(String provider) {
+        mProvider = provider;
+    }
+
+    public String getProvider() {
+        return mProvider;
+    }
+
+    public String getIconName() {
+        return mIconName;
+    }
+
+    public void setIconName(String iconName) {
+        mIconName = iconName;
+    }
+
+    public long getTime() {
+        return mTime;
+    }
+
+    public void setTime(long time) {
+        mTime = time;
+    }
+
+    public double getTemperature() {
+        return mTemperature;
+    }
+
+    public void setTemperature(double temperature) {
+        mTemperature = temperature;
+    }
+
+    public double getHumidity() {
+        return mHumidity;
+    }
+
+    public void setHumidity(double humidity) {
+        mHumidity = humidity;
+    }
+
+    public double getPrecipitationChance() {
+        return mPrecipitationChance;
+    }
+
+    public void setPrecipitationChance(double precipitationChance) {
+        mPrecipitationChance = precipitationChance;
+    }
+
+    public String getSummary() {
+        return mSummary;
+    }
+
+    public void setSummary(String summary) {
+        mSummary = summary;
+    }
+
+    public String getTimeZone() {
+        return mTimeZone;
+    }
+
+    public void setTimeZone(String timeZone) {
+        mTimeZone = timeZone;
+    }
+}
@@ -0,0 +1,88 @@
+package com.corvettecole.pixelwatchface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact binary form of a weather observation, pushed from the phone to the watch over the
+ * Data Layer. Both apps compile this same source, so the encoder and decoder can't drift apart.
+ */
+public class WeatherSnapshot {
+
+    public static final String PATH = "/weather";
+    public static final String KEY_SNAPSHOT = "snapshot";
+
+    private static final int FORMAT_VERSION = 1;
+
+    public String provider;
+    public long fetchedAt;      // ms since epoch, phone clock
+    public long time;           // observation time, seconds since epoch
+    public float temperature;   // Fahrenheit
+    public float humidity;      // 0..1
+    public float precipChance;  // 0..1
+    public String iconName;
+    public String timeZone;
+
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeUTF(provider);
+            out.writeLong(fetchedAt);
+            out.writeInt((int) time);
+            out.writeFloat(temperature);
+            out.writeByte(Math.round(humidity * 100));
+            out.writeByte(Math.round(precipChance * 100));
+            out.writeUTF(iconName);
+            out.writeUTF(timeZone == null ? "" : timeZone);
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static WeatherSnapshot decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported weather snapshot version " + version);
+        }
+        WeatherSnapshot snapshot = new WeatherSnapshot();
+        snapshot.provider = in.readUTF();
+        snapshot.fetchedAt = in.readLong();
+        snapshot.time = in.readInt() & 0xFFFFFFFFL;
+        snapshot.temperature = in.readFloat();
+        snapshot.humidity = in.readUnsignedByte() / 100f;
+        snapshot.precipChance = in.readUnsignedByte() / 100f;
+        snapshot.iconName = in.readUTF();
+        snapshot.timeZone = in.readUTF();
+        return snapshot;
+    }
+
+    public static WeatherSnapshot fromWeatherData(WeatherData data) {
+        WeatherSnapshot snapshot = new WeatherSnapshot();
+        snapshot.provider = data.getProvider();
+        snapshot.time = data.getTime();
+        snapshot.temperature = (float) data.getTemperature();
+        snapshot.humidity = (float) data.getHumidity();
+        snapshot.precipChance = (float) data.getPrecipitationChance();
+        snapshot.iconName = data.getIconName();
+        snapshot.timeZone = data.getTimeZone();
+        return snapshot;
+    }
+
+    public WeatherData toWeatherData() {
+        WeatherData data = new WeatherData(provider);
+        data.setTime(time);
+        data.setTemperature(temperature);
+        data.setHumidity(humidity);
+        data.setPrecipitationChance(precipChance);
+        data.setIconName(iconName);
+        data.setTimeZone(timeZone.isEmpty() ? null : timeZone);
+        return data;
+    }
+}
@@ -0,0 +1,153 @@
+package com.corvettecole.pixelwatchface;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.support.wearable.complications.ComplicationData;
+import android.support.wearable.complications.ComplicationText;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when a {@link ComplicationSlot} re-renders its cache and when a frame is only a blit,
+ * and compares the cost of a frame with and without the cache.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ComplicationSlotTest {
+
+    private static final String TAG = "ComplicationSlotTest";
+    private static final int ID = 7;
+    private static final int BENCHMARK_ITERATIONS = 500;
+
+    private final Bitmap mFrame = Bitmap.createBitmap(320, 320, Bitmap.Config.ARGB_8888);
+    private final Canvas mCanvas = new Canvas(mFrame);
+    private final long mNow = System.currentTimeMillis();
+    private ComplicationSlot mSlot;
+
+    @Before
+    public void setUp() {
+        mSlot = new ComplicationSlot(ApplicationProvider.getApplicationContext(), ID, Color.BLACK);
+        mSlot.setBounds(new Rect(40, 200, 112, 272));
+    }
+
+    @After
+    public void tearDown() {
+        ComplicationSlot.sCacheEnabled = true;
+        mFrame.recycle();
+    }
+
+    @Test
+    public void staticDataRendersOnce() {
+        mSlot.setData(steps("8,421"));
+
+        for (int i = 0; i < 100; i++) {
+            mSlot.draw(mCanvas, mNow + i * TimeUnit.SECONDS.toMillis(1));
+        }
+
+        assertEquals(1, dumped("renders"));
+        assertEquals(100, dumped("blits"));
+    }
+
+    @Test
+    public void rerendersWhenDataOrModeChanges() {
+        mSlot.setData(steps("8,421"));
+        mSlot.draw(mCanvas, mNow);
+        mSlot.setData(steps("8,422"));
+        mSlot.draw(mCanvas, mNow);
+        mSlot.setAmbient(true);
+        mSlot.draw(mCanvas, mNow);
+        // already ambient
+        mSlot.setAmbient(true);
+        mSlot.draw(mCanvas, mNow);
+
+        assertEquals(3, dumped("renders"));
+    }
+
+    @Test
+    public void rerendersWhenTimeDependentTextChanges() {
+        ComplicationText countdown = new ComplicationText.TimeDifferenceBuilder()
+                .setReferencePeriodStart(mNow + TimeUnit.MINUTES.toMillis(10))
+                .setReferencePeriodEnd(mNow + TimeUnit.MINUTES.toMillis(10))
+                .setStyle(ComplicationText.DIFFERENCE_STYLE_SHORT_SINGLE_UNIT)
+                .build();
+        mSlot.setData(new ComplicationData.Builder(ComplicationData.TYPE_SHORT_TEXT).setShortText(countdown).build());
+        long nextChange = countdown.getNextChangeTime(mNow);
+        assertTrue(nextChange > mNow && nextChange <= mNow + TimeUnit.MINUTES.toMillis(1));
+
+        mSlot.draw(mCanvas, mNow);
+        mSlot.draw(mCanvas, nextChange - 1);
+        assertEquals(1, dumped("renders"));
+
+        mSlot.draw(mCanvas, nextChange);
+        assertEquals(2, dumped("renders"));
+    }
+
+    @Test
+    public void trimmedCacheIsRebuiltOnNextFrame() {
+        mSlot.setData(steps("8,421"));
+        mSlot.draw(mCanvas, mNow);
+        assertTrue(dumped("bitmap_bytes") > 0);
+
+        mSlot.trimMemory();
+        assertEquals(0, dumped("bitmap_bytes"));
+
+        mSlot.draw(mCanvas, mNow);
+        assertTrue(dumped("bitmap_bytes") > 0);
+        assertEquals(2, dumped("renders"));
+    }
+
+    @Test
+    public void comparesCachedAndDirectDrawing() {
+        mSlot.setData(steps("8,421"));
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            mSlot.draw(mCanvas, mNow);
+        }
+        ComplicationSlot.sCacheEnabled = false;
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            mSlot.draw(mCanvas, mNow);
+        }
+
+        FaceLog.i(TAG, "{}", mSlot.report());
+        assertEquals(1, dumped("renders"));
+        assertEquals(BENCHMARK_ITERATIONS, dumped("blits"));
+        assertEquals(BENCHMARK_ITERATIONS, dumped("direct_draws"));
+    }
+
+    private static ComplicationData steps(String count) {
+        return new ComplicationData.Builder(ComplicationData.TYPE_SHORT_TEXT)
+                .setShortText(ComplicationText.plainText(count))
+                .setShortTitle(ComplicationText.plainText("steps"))
+                .build();
+    }
+
+    /**
+     * @return the value the slot dumps for {@code name}
+     */
+    private long dumped(String name) {
+        StringWriter dump = new StringWriter();
+        PrintWriter out = new PrintWriter(dump);
+        mSlot.dump(out, "");
+        out.flush();
+        String key = "complication." + ID + "." + name + "=";
+        for (String line : dump.toString().split("\n")) {
+            if (line.startsWith(key)) {
+                return Long.parseLong(line.substring(key.length()).trim());
+            }
+        }
+        throw new AssertionError("no " + key + " in dump");
+    }
+}
@@ -0,0 +1,53 @@
+package com.corvettecole.pixelwatchface;
+
+import android.location.Location;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.corvettecole.pixelwatchface.Constants.LOCATION_MOVEMENT_THRESHOLD;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link LocationCache}'s movement test with fixes around Manhattan.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LocationCacheTest {
+
+    private static final String TAG = "LocationCacheTest";
+
+    private final Location mHome = location(40.73, -73.99);
+
+    @Test
+    public void smallMovesAreIgnored() {
+        // about 2 km north
+        assertFalse(LocationCache.hasMoved(location(40.75, -73.99), mHome, LOCATION_MOVEMENT_THRESHOLD));
+    }
+
+    @Test
+    public void movesPastTheThresholdAreReported() {
+        // about 8 km north
+        assertTrue(LocationCache.hasMoved(location(40.80, -73.99), mHome, LOCATION_MOVEMENT_THRESHOLD));
+    }
+
+    @Test
+    public void followsTheThreshold() {
+        assertTrue(LocationCache.hasMoved(location(40.75, -73.99), mHome, 1000));
+    }
+
+    @Test
+    public void reportsMovementWithNothingToCompare() {
+        assertTrue(LocationCache.hasMoved(null, mHome, LOCATION_MOVEMENT_THRESHOLD));
+        assertTrue(LocationCache.hasMoved(mHome, null, LOCATION_MOVEMENT_THRESHOLD));
+    }
+
+    private static Location location(double latitude, double longitude) {
+        Location location = new Location(TAG);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        return location;
+    }
+}
@@ -0,0 +1,112 @@
+package com.corvettecole.pixelwatchface;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal HTTP server on the loopback interface that answers every request with a canned
+ * OpenWeatherMap response. Point an {@link OpenWeatherMapProvider} at {@link #getBaseUrl()} to
+ * exercise the real fetch and parse path without the network. A response delay can be set to
+ * reproduce slow or hung providers.
+ *
+ * Requests are served on the server's own thread, so it never reads the {@link Clock}, which a
+ * test may be driving from another one; the observation time in responses is whatever was last
+ * set with {@link #setObservationTime(long)}.
+ */
+public class MockWeatherServer {
+
+    private static final String TAG = "MockWeatherServer";
+
+    private static final String RESPONSE_BODY = "{\"coord\":{\"lon\":-73.99,\"lat\":40.73},"
+            + "\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"clear sky\",\"icon\":\"01d\"}],"
+            + "\"main\":{\"temp\":54.3,\"pressure\":1021,\"humidity\":62,\"temp_min\":51.8,\"temp_max\":57.2},"
+            + "\"wind\":{\"speed\":6.93,\"deg\":250},\"clouds\":{\"all\":1},\"dt\":%d,"
+            + "\"sys\":{\"country\":\"US\",\"sunrise\":1572779431,\"sunset\":1572816680},"
+            + "\"timezone\":-18000,\"name\":\"New York\",\"cod\":200}";
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private volatile long mResponseDelayMs = 0;
+    private volatile long mObservationTime = 0;
+    private ServerSocket mServerSocket;
+    private Thread mThread;
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(this::serve, TAG);
+        mThread.start();
+    }
+
+    public void stop() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            FaceLog.d(TAG, "close: {}", e);
+        }
+        mThread.interrupt();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    public void setResponseDelay(long delayMs) {
+        mResponseDelayMs = delayMs;
+    }
+
+    /**
+     * @param time the observation time to put in responses, ms since epoch
+     */
+    public void setObservationTime(long time) {
+        mObservationTime = time;
+    }
+
+    public int getRequestCount() {
+        return mRequests.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    private void serve() {
+        while (!mServerSocket.isClosed()) {
+            try (Socket socket = mServerSocket.accept()) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    // skip the request line and headers, every request gets the same answer
+                }
+                mRequests.incrementAndGet();
+                if (mResponseDelayMs > 0) {
+                    Thread.sleep(mResponseDelayMs);
+                }
+                byte[] body = String.format(RESPONSE_BODY, mObservationTime / 1000)
+                        .getBytes(Charset.forName("UTF-8"));
+                byte[] headers = ("HTTP/1.1 200 OK\r\n"
+                        + "Content-Type: application/json; charset=utf-8\r\n"
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "Connection: close\r\n\r\n").getBytes(Charset.forName("US-ASCII"));
+                OutputStream out = socket.getOutputStream();
+                out.write(headers);
+                out.write(body);
+                out.flush();
+                mBytesSent.addAndGet(headers.length + body.length);
+            } catch (IOException e) {
+                if (!mServerSocket.isClosed()) {
+                    FaceLog.d(TAG, "request failed: {}", e);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.corvettecole.pixelwatchface;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.google.android.gms.wearable.DataMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link SettingsAck} with a transport that keeps the acks in a list.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SettingsAckTest {
+
+    private final List<DataMap> mAcks = new ArrayList<>();
+    private final SettingsAck mSettingsAck = new SettingsAck(mAcks::add);
+
+    @Test
+    public void acksOnceTheVersionIsDrawn() {
+        mSettingsAck.onApplied(3, 1000, 2000, 2010);
+        // a frame still drawn with the previous settings
+        mSettingsAck.onFrameDrawn(2, 2012);
+        assertTrue(mAcks.isEmpty());
+
+        mSettingsAck.onFrameDrawn(3, 2030);
+
+        assertEquals(1, mAcks.size());
+        DataMap ack = mAcks.get(0);
+        assertEquals(3, ack.getLong(SettingsAck.KEY_VERSION));
+        assertEquals(1000, ack.getLong(SettingsAck.KEY_SENT_AT));
+        assertEquals(2000, ack.getLong(SettingsAck.KEY_RECEIVED_AT));
+        assertEquals(2010, ack.getLong(SettingsAck.KEY_APPLIED_AT));
+        assertEquals(2030, ack.getLong(SettingsAck.KEY_DRAWN_AT));
+    }
+
+    @Test
+    public void acksEachVersionOnce() {
+        mSettingsAck.onApplied(1, 1000, 2000, 2010);
+        mSettingsAck.onFrameDrawn(1, 2030);
+        mSettingsAck.onFrameDrawn(1, 3030);
+        mSettingsAck.onFrameDrawn(1, 4030);
+
+        assertEquals(1, mAcks.size());
+    }
+
+    @Test
+    public void ignoresRedeliveredBatches() {
+        mSettingsAck.onApplied(2, 1000, 2000, 2010);
+        mSettingsAck.onFrameDrawn(2, 2030);
+        mSettingsAck.onApplied(2, 1000, 5000, 5010);
+        mSettingsAck.onApplied(1, 900, 5100, 5110);
+        mSettingsAck.onFrameDrawn(2, 6000);
+
+        assertEquals(1, mAcks.size());
+        assertEquals(2000, mAcks.get(0).getLong(SettingsAck.KEY_RECEIVED_AT));
+    }
+
+    @Test
+    public void acksOnlyTheNewestOfVersionsAppliedBetweenFrames() {
+        mSettingsAck.onApplied(1, 1000, 2000, 2010);
+        mSettingsAck.onApplied(2, 1500, 2100, 2110);
+        mSettingsAck.onFrameDrawn(2, 2130);
+
+        assertEquals(1, mAcks.size());
+        assertEquals(2, mAcks.get(0).getLong(SettingsAck.KEY_VERSION));
+        assertEquals(1500, mAcks.get(0).getLong(SettingsAck.KEY_SENT_AT));
+    }
+
+    @Test
+    public void acksNewerSettingsDrawnThanApplied() {
+        // the frame raced ahead and drew a version the data thread hasn't reported yet
+        mSettingsAck.onApplied(4, 1000, 2000, 2010);
+        mSettingsAck.onFrameDrawn(5, 2030);
+
+        assertEquals(1, mAcks.size());
+        assertEquals(4, mAcks.get(0).getLong(SettingsAck.KEY_VERSION));
+    }
+}
@@ -0,0 +1,113 @@
+package com.corvettecole.pixelwatchface;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+
+/**
+ * A {@link Clock} that only moves when told to. Posted tasks run synchronously from
+ * {@link #advanceBy(long)} in due order, with the clock set to each task's due time, so a day of
+ * timers can be replayed as fast as the tasks themselves run. Post and advance from a single
+ * thread; the time itself may be read from any, e.g. by code running on an executor that a task
+ * waits for.
+ */
+public class SimulatedClock extends Clock {
+
+    private static class Task implements Comparable<Task> {
+        final long mDue;
+        final long mSequence;
+        final Runnable mRunnable;
+
+        Task(long due, long sequence, Runnable runnable) {
+            mDue = due;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mDue != other.mDue) {
+                return Long.compare(mDue, other.mDue);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+    private volatile long mNow;
+    private volatile long mElapsed;
+    private long mSequence = 0;
+    private volatile TimeZone mTimeZone;
+    private int mWakeUps = 0;
+    private long mLastWakeUp = Long.MIN_VALUE;
+
+    public SimulatedClock(long startTimeMillis, TimeZone timeZone) {
+        mNow = startTimeMillis;
+        mTimeZone = timeZone;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return mNow;
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return mElapsed;
+    }
+
+    @Override
+    public TimeZone getTimeZone() {
+        return mTimeZone;
+    }
+
+    public void setTimeZone(TimeZone timeZone) {
+        mTimeZone = timeZone;
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        mTasks.add(new Task(mNow + Math.max(0, delayMs), mSequence++, task));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        Iterator<Task> iterator = mTasks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().mRunnable == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Moves the clock forward by {@code durationMs}, running every task that falls due on the way.
+     */
+    public void advanceBy(long durationMs) {
+        long end = mNow + durationMs;
+        while (!mTasks.isEmpty() && mTasks.peek().mDue <= end) {
+            Task task = mTasks.poll();
+            setNow(task.mDue);
+            if (task.mDue != mLastWakeUp) {
+                // tasks due at the same instant share one wake-up
+                mWakeUps++;
+                mLastWakeUp = task.mDue;
+            }
+            task.mRunnable.run();
+        }
+        setNow(end);
+    }
+
+    private void setNow(long now) {
+        mElapsed += now - mNow;
+        mNow = now;
+    }
+
+    /**
+     * @return how many distinct instants tasks have run at, i.e. how often a real device would
+     * have had to wake up
+     */
+    public int getWakeUps() {
+        return mWakeUps;
+    }
+}
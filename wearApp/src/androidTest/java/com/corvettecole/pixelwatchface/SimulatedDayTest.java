@@ -0,0 +1,268 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.location.Location;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.google.android.gms.wearable.DataMap;
+import com.squareup.okhttp.OkHttpClient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static com.corvettecole.pixelwatchface.Constants.WEATHER_BACKOFF_DELAY;
+import static com.corvettecole.pixelwatchface.Constants.WEATHER_UPDATE_INTERVAL;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays 24 hours of the face's wake-up sources on a {@link SimulatedClock}: minute ticks in
+ * ambient, the interactive timer during wrist raises, periodic weather work, settings syncs from
+ * the phone, a flight west and back and a DST transition. Frames go through the real
+ * {@link WatchFaceScene} into an offscreen bitmap, timers are lined up by
+ * {@link PixelWatchFace#getTimerDelay(long)}, the refetch decision is {@link LocationCache}'s and
+ * weather is fetched through {@link WeatherProviderDispatcher} from a {@link MockWeatherServer}.
+ * Settings acks go to a list instead of the data layer.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SimulatedDayTest {
+
+    private static final String TAG = "SimulatedDayTest";
+
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+    private static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long WRIST_RAISE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(20);
+    private static final long WRIST_RAISE_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final long FETCH_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    private static final double LATITUDE = 40.73;
+    private static final double LONGITUDE = -73.99;
+
+    private final Rect mBounds = new Rect(0, 0, 320, 320);
+    private final Canvas mCanvas = new Canvas(Bitmap.createBitmap(320, 320, Bitmap.Config.ARGB_8888));
+    private final PointF mOffset = new PointF();
+    private final List<DataMap> mSettingsAcks = new ArrayList<>();
+    private final SettingsAck mSettingsAck = new SettingsAck(mSettingsAcks::add);
+
+    private SimulatedClock mClock;
+    private MockWeatherServer mServer;
+    private WeatherProviderDispatcher mDispatcher;
+    private WeatherProvider mProvider;
+    private LocationCache mLocationCache;
+    private Location mLastFetchLocation;
+    private long mLastFetchTime;
+    private WatchFaceScene mScene;
+    private RenderProfile[] mProfiles;
+    private Calendar mCalendar;
+    private SettingsSnapshot mSettings = new SettingsSnapshot.Builder().setShowBattery(true).build();
+    private boolean mAmbient = true;
+    private long mLastDisplayedMinute = -1;
+
+    private int mTicks = 0;
+    private int mTicksOffMinute = 0;
+    private int mFrames = 0;
+    private int mFetches = 0;
+    private int mFetchesSkipped = 0;
+    private int mFetchFailures = 0;
+    private int mDisplayedTimeRegressions = 0;
+
+    private final Runnable mTimeTick = this::onTimeTick;
+    private final Runnable mUpdateTimeTask = this::handleUpdateTimeMessage;
+    private final Runnable mWeatherWork = this::onWeatherWork;
+
+    @Before
+    public void setUp() throws Exception {
+        // noon on the day before the US autumn DST transition, so the replay crosses it
+        TimeZone newYork = TimeZone.getTimeZone("America/New_York");
+        Calendar start = Calendar.getInstance(newYork);
+        start.clear();
+        start.set(2019, Calendar.NOVEMBER, 2, 12, 0, 0);
+        mClock = new SimulatedClock(start.getTimeInMillis(), newYork);
+        Clock.set(mClock);
+
+        mServer = new MockWeatherServer();
+        mServer.start();
+        mDispatcher = new WeatherProviderDispatcher(new OkHttpClient());
+        mProvider = new OpenWeatherMapProvider(mServer.getBaseUrl(), "simulated");
+
+        Context context = ApplicationProvider.getApplicationContext();
+        mLocationCache = LocationCache.getInstance(context);
+        // the simulated wearer doesn't move, so only age warrants a refetch
+        Location fix = new Location(TAG);
+        fix.setLatitude(LATITUDE);
+        fix.setLongitude(LONGITUDE);
+        fix.setTime(mClock.currentTimeMillis());
+        mLocationCache.offer(fix);
+
+        mScene = new WatchFaceScene(new Paint());
+        mProfiles = RenderProfile.buildAll(80f, 24f, null, null, false, Color.WHITE, Color.GRAY);
+        mCalendar = mClock.newCalendar();
+    }
+
+    @After
+    public void tearDown() {
+        Clock.set(null);
+        mServer.stop();
+    }
+
+    @Test
+    public void replaysADay() {
+        schedule();
+        mClock.advanceBy(DAY_MS);
+        FaceLog.i(TAG, "simulated 24 h: {} wake-ups, {} frames, {} fetches ({} skipped as fresh), {} bytes downloaded",
+                mClock.getWakeUps(), mFrames, mFetches, mFetchesSkipped, mServer.getBytesSent());
+
+        // one tick a minute, each at the top of one, across the DST and time zone changes
+        assertEquals(DAY_MS / MINUTE_MS, mTicks);
+        assertEquals(0, mTicksOffMinute);
+        // the flight west and Los Angeles leaving DST; the flight back moves the clock forward
+        assertEquals(2, mDisplayedTimeRegressions);
+        // a periodic run every interval, the one after the forced fetch skipped, no hedges
+        assertEquals(0, mFetchFailures);
+        assertEquals(1, mFetchesSkipped);
+        assertEquals(DAY_MS / TimeUnit.MINUTES.toMillis(WEATHER_UPDATE_INTERVAL) + 1, mFetches);
+        assertEquals(mFetches, mServer.getRequestCount());
+        // exactly one ack per synced version, in order
+        assertEquals(2, mSettingsAcks.size());
+        assertEquals(1, mSettingsAcks.get(0).getLong(SettingsAck.KEY_VERSION));
+        assertEquals(2, mSettingsAcks.get(1).getLong(SettingsAck.KEY_VERSION));
+    }
+
+    private void schedule() {
+        long start = mClock.currentTimeMillis();
+        // the system ticks ambient faces at the top of every minute
+        mClock.postDelayed(mTimeTick, PixelWatchFace.getTimerDelay(start));
+        // WorkManager runs the periodic weather work roughly every interval
+        mClock.postDelayed(mWeatherWork, 0);
+
+        // wrist raises while the wearer is awake
+        Calendar local = Calendar.getInstance(mClock.getTimeZone());
+        for (long offset = 0; offset < DAY_MS; offset += WRIST_RAISE_INTERVAL_MS) {
+            local.setTimeInMillis(start + offset);
+            int hour = local.get(Calendar.HOUR_OF_DAY);
+            if (hour >= 8 && hour < 22) {
+                mClock.postDelayed(() -> setAmbient(false), offset);
+                mClock.postDelayed(() -> setAmbient(true), offset + WRIST_RAISE_MS);
+            }
+        }
+
+        // a flight west and back, as the time zone receiver would see it
+        mClock.postDelayed(() -> onTimeZoneChanged(TimeZone.getTimeZone("America/Los_Angeles")), TimeUnit.HOURS.toMillis(4));
+        mClock.postDelayed(() -> onTimeZoneChanged(TimeZone.getTimeZone("America/New_York")), TimeUnit.HOURS.toMillis(22));
+
+        // settings changed on the phone; changing weather settings forces a fetch
+        mClock.postDelayed(() -> onSettingsSync(false), TimeUnit.HOURS.toMillis(2));
+        mClock.postDelayed(() -> onSettingsSync(true), TimeUnit.HOURS.toMillis(9) + TimeUnit.MINUTES.toMillis(10));
+    }
+
+    private void onTimeTick() {
+        long now = mClock.currentTimeMillis();
+        mTicks++;
+        if (now % MINUTE_MS != 0) {
+            mTicksOffMinute++;
+        }
+        if (mAmbient) {
+            drawFrame();
+        }
+        mClock.postDelayed(mTimeTick, PixelWatchFace.getTimerDelay(now));
+    }
+
+    private void setAmbient(boolean ambient) {
+        mAmbient = ambient;
+        drawFrame();
+        // as Engine.updateTimer() does
+        mClock.removeCallbacks(mUpdateTimeTask);
+        if (!ambient) {
+            mClock.postDelayed(mUpdateTimeTask, 0);
+        }
+    }
+
+    private void handleUpdateTimeMessage() {
+        drawFrame();
+        if (!mAmbient) {
+            mClock.postDelayed(mUpdateTimeTask, PixelWatchFace.getTimerDelay(mClock.currentTimeMillis()));
+        }
+    }
+
+    private void onTimeZoneChanged(TimeZone timeZone) {
+        mClock.setTimeZone(timeZone);
+        mCalendar.setTimeZone(mClock.getTimeZone());
+        drawFrame();
+    }
+
+    private void onSettingsSync(boolean weatherSettingsChanged) {
+        long now = mClock.currentTimeMillis();
+        mSettings = mSettings.toBuilder()
+                .setVersion(mSettings.getVersion() + 1)
+                .setSyncedVersion(mSettings.getSyncedVersion() + 1)
+                .setUse24HourTime(!mSettings.isUse24HourTime())
+                .build();
+        mSettingsAck.onApplied(mSettings.getSyncedVersion(), now, now, now);
+        drawFrame();
+        if (weatherSettingsChanged) {
+            fetch();
+        }
+    }
+
+    private void onWeatherWork() {
+        long maxAge = TimeUnit.MINUTES.toMillis(WEATHER_UPDATE_INTERVAL - WEATHER_BACKOFF_DELAY);
+        if (mLocationCache.isRefetchWarranted(mLastFetchLocation, mLastFetchTime, maxAge)) {
+            fetch();
+        } else {
+            mFetchesSkipped++;
+        }
+        mClock.postDelayed(mWeatherWork, TimeUnit.MINUTES.toMillis(WEATHER_UPDATE_INTERVAL));
+    }
+
+    private void fetch() {
+        mFetches++;
+        mServer.setObservationTime(mClock.currentTimeMillis());
+        try {
+            mDispatcher.fetch(LATITUDE, LONGITUDE, mProvider).get(FETCH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            mLastFetchLocation = mLocationCache.getLastFix();
+            mLastFetchTime = mClock.currentTimeMillis();
+            drawFrame();
+        } catch (Exception e) {
+            FaceLog.d(TAG, "fetch failed: {}", e);
+            mFetchFailures++;
+        }
+    }
+
+    private void drawFrame() {
+        long now = mClock.currentTimeMillis();
+        mCalendar.setTimeInMillis(now);
+        RenderProfile profile = mProfiles[mAmbient ? RenderProfile.AMBIENT_STROKE : RenderProfile.INTERACTIVE];
+        mScene.update(mBounds, mCalendar, mSettings, profile, mAmbient, null, false, false, null, 100, null);
+        if (mAmbient) {
+            PixelWatchFace.getBurnInOffset(now, 3f, mOffset);
+        } else {
+            mOffset.set(0, 0);
+        }
+        mScene.draw(mCanvas, mOffset.x, mOffset.y);
+        mFrames++;
+
+        // minutes since local midnight; going backwards outside midnight means the clock shown
+        // jumped back (DST ending, or a time zone change to the west)
+        long displayedMinute = mCalendar.get(Calendar.HOUR_OF_DAY) * 60 + mCalendar.get(Calendar.MINUTE);
+        if (mLastDisplayedMinute > displayedMinute && mLastDisplayedMinute - displayedMinute < 12 * 60) {
+            mDisplayedTimeRegressions++;
+        }
+        mLastDisplayedMinute = displayedMinute;
+
+        mSettingsAck.onFrameDrawn(mSettings.getSyncedVersion(), now);
+    }
+}
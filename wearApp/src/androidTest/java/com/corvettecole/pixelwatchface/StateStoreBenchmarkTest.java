@@ -0,0 +1,123 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares cold-load and write latency of the {@link StateStore} file format against the
+ * SharedPreferences XML it replaced. Both sides use throwaway files so the face's real state is
+ * never touched. The timings are logged; the test itself only fails if the store doesn't read
+ * back what it wrote.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StateStoreBenchmarkTest {
+
+    private static final String TAG = "StateStoreBenchmark";
+    private static final String PREFS_NAME = "state_store_benchmark";
+    private static final int ITERATIONS = 20;
+
+    @Test
+    public void comparesWithSharedPreferences() {
+        Context context = ApplicationProvider.getApplicationContext();
+        SettingsSnapshot settings = new SettingsSnapshot.Builder()
+                .setShowTemperature(true)
+                .setShowWeatherIcon(true)
+                .setShowBattery(true)
+                .setDarkSkyAPIKey("0123456789abcdef0123456789abcdef")
+                .build();
+
+        // SharedPreferences caches instances by name for the life of the process, so each
+        // iteration uses its own name to get a cold load. commit() so the write is timed to disk.
+        long prefsWriteNanos = 0;
+        long prefsLoadNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME + i, Context.MODE_PRIVATE);
+            long start = SystemClock.elapsedRealtimeNanos();
+            prefs.edit()
+                    .putBoolean("use_24_hour_time", settings.isUse24HourTime())
+                    .putBoolean("show_temperature", settings.isShowTemperature())
+                    .putBoolean("use_celsius", settings.isUseCelsius())
+                    .putBoolean("show_weather", settings.isShowWeatherIcon())
+                    .putBoolean("use_european_date", settings.isUseEuropeanDateFormat())
+                    .putBoolean("show_temperature_decimal", settings.isShowTemperatureFractional())
+                    .putBoolean("use_thin_ambient", settings.isUseThinAmbient())
+                    .putBoolean("show_infobar_ambient", settings.isShowInfoBarAmbient())
+                    .putBoolean("show_battery", settings.isShowBattery())
+                    .putString("dark_sky_api_key", settings.getDarkSkyAPIKey())
+                    .putBoolean("use_dark_sky", settings.isUseDarkSky())
+                    .commit();
+            prefsWriteNanos += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        File prefsDir = new File(context.getApplicationInfo().dataDir, "shared_prefs");
+        for (int i = 0; i < ITERATIONS; i++) {
+            // the instance written above is already cached, so load a copy of its file under a
+            // name this process hasn't seen yet
+            File written = new File(prefsDir, PREFS_NAME + i + ".xml");
+            File cold = new File(prefsDir, PREFS_NAME + "_cold" + i + ".xml");
+            assertTrue(copy(written, cold));
+            long start = SystemClock.elapsedRealtimeNanos();
+            // getAll() blocks until the XML has been parsed
+            context.getSharedPreferences(PREFS_NAME + "_cold" + i, Context.MODE_PRIVATE).getAll();
+            prefsLoadNanos += SystemClock.elapsedRealtimeNanos() - start;
+            written.delete();
+            cold.delete();
+        }
+
+        StateStore.State state = new StateStore.State();
+        state.settings = settings;
+        File dir = new File(context.getCacheDir(), PREFS_NAME);
+        dir.mkdirs();
+        long storeWriteNanos = 0;
+        long storeLoadNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            File file = new File(dir, "state" + i);
+            long start = SystemClock.elapsedRealtimeNanos();
+            StateStore.writeTo(file, state);
+            storeWriteNanos += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        for (int i = 0; i < ITERATIONS; i++) {
+            File file = new File(dir, "state" + i);
+            long start = SystemClock.elapsedRealtimeNanos();
+            StateStore.State read = StateStore.readFrom(file);
+            storeLoadNanos += SystemClock.elapsedRealtimeNanos() - start;
+            file.delete();
+            assertNotNull(read);
+            assertNotNull(read.settings);
+        }
+        dir.delete();
+
+        FaceLog.i(TAG, "SharedPreferences load {} us, write {} us; StateStore load {} us, write {} us (mean of {})",
+                prefsLoadNanos / ITERATIONS / 1000, prefsWriteNanos / ITERATIONS / 1000,
+                storeLoadNanos / ITERATIONS / 1000, storeWriteNanos / ITERATIONS / 1000, ITERATIONS);
+    }
+
+    private static boolean copy(File from, File to) {
+        try (FileInputStream in = new FileInputStream(from);
+             FileOutputStream out = new FileOutputStream(to)) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return true;
+        } catch (IOException e) {
+            FaceLog.e(TAG, "Couldn't copy {}: {}", from, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips {@link StateStore}'s file format through throwaway files, so the face's own state
+ * is never touched.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StateStoreTest {
+
+    private static final String PREFS_NAME = "state_store_test";
+
+    private Context mContext;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        mFile = new File(mContext.getCacheDir(), "state_store_test.bin");
+        mFile.delete();
+        StateStore.backupFile(mFile).delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        StateStore.backupFile(mFile).delete();
+        mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    @Test
+    public void roundTripsEverySection() {
+        StateStore.writeTo(mFile, newState("Clear"));
+
+        StateStore.State state = StateStore.readFrom(mFile);
+
+        assertNotNull(state);
+        assertEquals(1000L, state.lastFetchTime);
+        assertEquals(900L, state.phoneSnapshotTime);
+        assertTrue(state.settings.isShowTemperature());
+        assertTrue(state.settings.isUseCelsius());
+        assertFalse(state.settings.isUse24HourTime());
+        assertEquals(7L, state.settings.getSyncedVersion());
+        assertEquals("0123456789abcdef", state.settings.getDarkSkyAPIKey());
+        assertEquals(5L, state.settings.getKeyVersion("show_temperature"));
+        assertEquals(7L, state.settings.getKeyVersion("use_celsius"));
+        assertEquals(0L, state.settings.getKeyVersion("use_24_hour_time"));
+        assertEquals(OpenWeatherMapProvider.NAME, state.weather.getProvider());
+        assertEquals("01d", state.weather.getIconName());
+        assertEquals("Clear", state.weather.getSummary());
+        assertNull(state.weather.getTimeZone());
+        assertEquals(1572800000L, state.weather.getTime());
+        assertEquals(54.3, state.weather.getTemperature(), 0);
+        assertEquals(0.62, state.weather.getHumidity(), 1e-6);
+        assertEquals(40.73, state.location.getLatitude(), 0);
+        assertEquals(-73.99, state.location.getLongitude(), 0);
+    }
+
+    @Test
+    public void leavesOutMissingSections() {
+        StateStore.writeTo(mFile, new StateStore.State());
+
+        StateStore.State state = StateStore.readFrom(mFile);
+
+        assertNotNull(state);
+        assertNull(state.settings);
+        assertNull(state.weather);
+        assertNull(state.location);
+    }
+
+    @Test
+    public void keepsStringsLongerThanTheInitialBuffer() {
+        StringBuilder summary = new StringBuilder();
+        while (summary.length() < 5000) {
+            summary.append("Light rain until evening. ");
+        }
+        StateStore.writeTo(mFile, newState(summary.toString()));
+
+        StateStore.State state = StateStore.readFrom(mFile);
+
+        assertNotNull(state);
+        assertEquals(summary.toString(), state.weather.getSummary());
+    }
+
+    @Test
+    public void rejectsCorruptedPayload() throws IOException {
+        StateStore.writeTo(mFile, newState("Clear"));
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            // flip a byte past the header
+            long position = file.length() - 1;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 0xff);
+        }
+
+        assertNull(StateStore.readFrom(mFile));
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        StateStore.writeTo(mFile, newState("Clear"));
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 4);
+        }
+
+        assertNull(StateStore.readFrom(mFile));
+    }
+
+    @Test
+    public void rejectsForeignFile() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.write("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>".getBytes("UTF-8"));
+        }
+
+        assertNull(StateStore.readFrom(mFile));
+    }
+
+    @Test
+    public void missingFileReadsAsNothing() {
+        assertNull(StateStore.readFrom(mFile));
+        assertNull(StateStore.readWithBackup(mFile));
+    }
+
+    @Test
+    public void keepsThePreviousFileAsBackup() {
+        StateStore.writeTo(mFile, newState("Clear"));
+        StateStore.writeTo(mFile, newState("Rain"));
+
+        assertEquals("Rain", StateStore.readFrom(mFile).weather.getSummary());
+        assertEquals("Clear", StateStore.readFrom(StateStore.backupFile(mFile)).weather.getSummary());
+    }
+
+    @Test
+    public void fallsBackToTheBackupWhenCorrupted() throws IOException {
+        StateStore.writeTo(mFile, newState("Clear"));
+        StateStore.writeTo(mFile, newState("Rain"));
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 4);
+        }
+
+        StateStore.State state = StateStore.readWithBackup(mFile);
+
+        assertNotNull(state);
+        assertEquals("Clear", state.weather.getSummary());
+        // the invalid file is gone, so the next write keeps the good backup
+        assertFalse(mFile.exists());
+        StateStore.writeTo(mFile, newState("Snow"));
+        assertEquals("Snow", StateStore.readWithBackup(mFile).weather.getSummary());
+        assertEquals("Clear", StateStore.readFrom(StateStore.backupFile(mFile)).weather.getSummary());
+    }
+
+    @Test
+    public void fallsBackToTheBackupWhenMissing() {
+        // as after a crash between backing up the old file and renaming the new one over it
+        StateStore.writeTo(mFile, newState("Clear"));
+        StateStore.writeTo(mFile, newState("Rain"));
+        mFile.delete();
+
+        StateStore.State state = StateStore.readWithBackup(mFile);
+
+        assertNotNull(state);
+        assertEquals("Clear", state.weather.getSummary());
+    }
+
+    @Test
+    public void migratesLegacySettings() {
+        SharedPreferences prefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit()
+                .putBoolean("use_24_hour_time", true)
+                .putBoolean("show_temperature", true)
+                .putBoolean("use_thin_ambient", false)
+                .putString("dark_sky_api_key", "0123456789abcdef")
+                .putBoolean("use_dark_sky", true)
+                .putLong("settings_version", 12)
+                .commit();
+
+        SettingsSnapshot settings = StateStore.readLegacySettings(prefs);
+
+        assertTrue(settings.isUse24HourTime());
+        assertTrue(settings.isShowTemperature());
+        assertFalse(settings.isUseThinAmbient());
+        assertEquals("0123456789abcdef", settings.getDarkSkyAPIKey());
+        assertTrue(settings.isUseDarkSky());
+        assertEquals(12L, settings.getSyncedVersion());
+        // untouched keys keep the defaults the face used to have
+        assertFalse(settings.isUseCelsius());
+        assertTrue(settings.isShowInfoBarAmbient());
+        assertTrue(settings.isShowBattery());
+    }
+
+    @Test
+    public void migratedSettingsSurviveARoundTrip() {
+        SharedPreferences prefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.edit().putBoolean("use_european_date", true).putLong("settings_version", 3).commit();
+        StateStore.State written = new StateStore.State();
+        written.settings = StateStore.readLegacySettings(prefs);
+        StateStore.writeTo(mFile, written);
+
+        StateStore.State state = StateStore.readFrom(mFile);
+
+        assertNotNull(state);
+        assertTrue(state.settings.isUseEuropeanDateFormat());
+        assertTrue(state.settings.isUseThinAmbient());
+        assertEquals(3L, state.settings.getSyncedVersion());
+        assertTrue(state.settings.getKeyVersions().isEmpty());
+    }
+
+    private static StateStore.State newState(String summary) {
+        StateStore.State state = new StateStore.State();
+        state.lastFetchTime = 1000;
+        state.phoneSnapshotTime = 900;
+        state.settings = new SettingsSnapshot.Builder()
+                .setShowTemperature(true)
+                .setUseCelsius(true)
+                .setSyncedVersion(7)
+                .setDarkSkyAPIKey("0123456789abcdef")
+                .setKeyVersion("show_temperature", 5)
+                .setKeyVersion("use_celsius", 7)
+                .build();
+        state.weather = new WeatherData(OpenWeatherMapProvider.NAME);
+        state.weather.setIconName("01d");
+        state.weather.setSummary(summary);
+        state.weather.setTime(1572800000L);
+        state.weather.setTemperature(54.3);
+        state.weather.setHumidity(0.62);
+        state.location = new Location("StateStoreTest");
+        state.location.setLatitude(40.73);
+        state.location.setLongitude(-73.99);
+        return state;
+    }
+}
@@ -0,0 +1,100 @@
+package com.corvettecole.pixelwatchface;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link SunTimes}' sunrise equation against published sunrise and sunset times, which it
+ * should match to within a couple of minutes outside the polar regions.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SunTimesTest {
+
+    // a double, so the comparisons below don't go through assertEquals(float, ...)
+    private static final double TOLERANCE_MS = TimeUnit.MINUTES.toMillis(2);
+
+    @Test
+    public void londonAtTheSummerSolstice() {
+        // 04:43 and 21:21 BST
+        assertSunTimes(51.5074, -0.1278, 2020, Calendar.JUNE, 21,
+                utc(2020, Calendar.JUNE, 21, 3, 43), utc(2020, Calendar.JUNE, 21, 20, 21));
+    }
+
+    @Test
+    public void newYorkAtTheWinterSolstice() {
+        // 07:17 and 16:32 EST
+        assertSunTimes(40.7128, -74.0060, 2020, Calendar.DECEMBER, 21,
+                utc(2020, Calendar.DECEMBER, 21, 12, 17), utc(2020, Calendar.DECEMBER, 21, 21, 32));
+    }
+
+    @Test
+    public void sydneyInTheSouthernWinter() {
+        // 07:00 and 16:54 AEST, so sunrise is still the previous day in UTC
+        assertSunTimes(-33.8688, 151.2093, 2020, Calendar.JUNE, 21,
+                utc(2020, Calendar.JUNE, 20, 21, 0), utc(2020, Calendar.JUNE, 21, 6, 54));
+    }
+
+    @Test
+    public void quitoAtTheEquinox() {
+        // 06:18 and 18:24 ECT
+        assertSunTimes(-0.1807, -78.4678, 2020, Calendar.MARCH, 20,
+                utc(2020, Calendar.MARCH, 20, 11, 18), utc(2020, Calendar.MARCH, 20, 23, 24));
+    }
+
+    @Test
+    public void polarDay() {
+        long[] times = new long[2];
+
+        assertEquals(SunTimes.DAY, SunTimes.compute(solarDay(2020, Calendar.JUNE, 21, 18.9553), 69.6492, 18.9553, times));
+    }
+
+    @Test
+    public void polarNight() {
+        long[] times = new long[2];
+
+        assertEquals(SunTimes.NIGHT, SunTimes.compute(solarDay(2020, Calendar.DECEMBER, 21, 18.9553), 69.6492, 18.9553, times));
+    }
+
+    @Test
+    public void solarDayRollsOverAtLocalSolarMidnight() {
+        long day = SunTimes.getSolarDay(utc(2020, Calendar.JUNE, 21, 0, 10), 0);
+
+        assertEquals(day - 1, SunTimes.getSolarDay(utc(2020, Calendar.JUNE, 20, 23, 50), 0));
+        assertEquals(day, SunTimes.getSolarDay(utc(2020, Calendar.JUNE, 21, 23, 50), 0));
+        // half way round the world, midnight is at noon UTC
+        assertEquals(day, SunTimes.getSolarDay(utc(2020, Calendar.JUNE, 21, 11, 50), 180));
+        assertEquals(day + 1, SunTimes.getSolarDay(utc(2020, Calendar.JUNE, 21, 12, 10), 180));
+    }
+
+    private static void assertSunTimes(double latitude, double longitude, int year, int month, int date,
+                                       long sunrise, long sunset) {
+        long[] times = new long[2];
+
+        assertEquals(SunTimes.UNKNOWN, SunTimes.compute(solarDay(year, month, date, longitude), latitude, longitude, times));
+        assertEquals(sunrise, times[0], TOLERANCE_MS);
+        assertEquals(sunset, times[1], TOLERANCE_MS);
+    }
+
+    /**
+     * @return the solar day containing local solar noon on the given date at {@code longitude}
+     */
+    private static long solarDay(int year, int month, int date, double longitude) {
+        long noon = utc(year, month, date, 12, 0) - (long) (longitude / 360 * TimeUnit.DAYS.toMillis(1));
+        return SunTimes.getSolarDay(noon, longitude);
+    }
+
+    private static long utc(int year, int month, int date, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month, date, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+}
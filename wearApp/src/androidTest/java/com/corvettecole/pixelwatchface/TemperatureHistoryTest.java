@@ -0,0 +1,119 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Exercises {@link TemperatureHistory} against a throwaway file, so the face's own history is
+ * never touched.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TemperatureHistoryTest {
+
+    private final long[] mTimes = new long[TemperatureHistory.CAPACITY];
+    private final float[] mTemperatures = new float[TemperatureHistory.CAPACITY];
+    private final byte[] mConditions = new byte[TemperatureHistory.CAPACITY];
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        Context context = ApplicationProvider.getApplicationContext();
+        mFile = new File(context.getCacheDir(), "temperature_history_test.bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void keepsSamplesOldestFirst() {
+        TemperatureHistory history = new TemperatureHistory(mFile);
+        history.add(1000, 50f, (byte) 0);
+        history.add(2000, 52f, (byte) 2);
+
+        int copied = history.copySince(0, mTimes, mTemperatures, mConditions);
+
+        assertEquals(2, copied);
+        assertEquals(1000, mTimes[0]);
+        assertEquals(52f, mTemperatures[1], 0);
+        assertEquals(2, mConditions[1]);
+    }
+
+    @Test
+    public void overwritesTheOldestOnceFull() {
+        TemperatureHistory history = new TemperatureHistory(mFile);
+        int samples = TemperatureHistory.CAPACITY + 10;
+        for (int i = 1; i <= samples; i++) {
+            history.add(i * 1000L, i, TemperatureHistory.CONDITION_UNKNOWN);
+        }
+
+        int copied = history.copySince(0, mTimes, mTemperatures, null);
+
+        assertEquals(TemperatureHistory.CAPACITY, history.size());
+        assertEquals(TemperatureHistory.CAPACITY, copied);
+        assertEquals(11 * 1000L, mTimes[0]);
+        assertEquals(samples * 1000L, mTimes[copied - 1]);
+        assertEquals(samples, mTemperatures[copied - 1], 0);
+    }
+
+    @Test
+    public void ignoresSamplesNoNewerThanTheNewest() {
+        TemperatureHistory history = new TemperatureHistory(mFile);
+        history.add(2000, 52f, (byte) 0);
+        long version = history.getVersion();
+
+        history.add(2000, 52f, (byte) 0);
+        history.add(1000, 48f, (byte) 0);
+
+        assertEquals(1, history.size());
+        assertEquals(version, history.getVersion());
+    }
+
+    @Test
+    public void copiesOnlySamplesSinceTheCutoff() {
+        TemperatureHistory history = new TemperatureHistory(mFile);
+        history.add(1000, 50f, (byte) 0);
+        history.add(2000, 51f, (byte) 0);
+        history.add(3000, 52f, (byte) 0);
+
+        int copied = history.copySince(2000, mTimes, mTemperatures, null);
+
+        assertEquals(2, copied);
+        assertEquals(2000, mTimes[0]);
+        assertEquals(3000, mTimes[1]);
+    }
+
+    @Test
+    public void reloadsFromTheMappedFile() {
+        TemperatureHistory written = new TemperatureHistory(mFile);
+        for (int i = 1; i <= TemperatureHistory.CAPACITY + 3; i++) {
+            written.add(i * 1000L, i / 2f, (byte) (i % 10));
+        }
+
+        TemperatureHistory reloaded = new TemperatureHistory(mFile);
+        int copied = reloaded.copySince(0, mTimes, mTemperatures, mConditions);
+
+        assertEquals(TemperatureHistory.CAPACITY, copied);
+        assertEquals(4 * 1000L, mTimes[0]);
+        assertEquals((TemperatureHistory.CAPACITY + 3) / 2f, mTemperatures[copied - 1], 0);
+        assertEquals((TemperatureHistory.CAPACITY + 3) % 10, mConditions[copied - 1]);
+        // the head survives too, so the next sample goes after the newest
+        reloaded.add((TemperatureHistory.CAPACITY + 4) * 1000L, 0f, (byte) 0);
+        reloaded.copySince(0, mTimes, mTemperatures, null);
+        assertEquals(5 * 1000L, mTimes[0]);
+    }
+}
@@ -0,0 +1,102 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the contract the engine's warm-up relies on: a frame can be drawn with the system font,
+ * no logo and default settings before anything has loaded, and what warm-up delivers replaces
+ * those on the next frame.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WarmUpTest {
+
+    private final Rect mBounds = new Rect(0, 0, 320, 320);
+    private final Canvas mCanvas = new Canvas(Bitmap.createBitmap(320, 320, Bitmap.Config.ARGB_8888));
+    private final SettingsSnapshot mDefaults = SettingsSnapshot.defaults();
+
+    private WatchFaceScene mScene;
+    private Calendar mCalendar;
+
+    @Before
+    public void setUp() {
+        mScene = new WatchFaceScene(new Paint());
+        mCalendar = Calendar.getInstance();
+    }
+
+    @Test
+    public void drawsBeforeAnythingHasLoaded() {
+        RenderProfile[] profiles = RenderProfile.buildAll(80f, 24f, null, null, true, Color.WHITE, Color.GRAY);
+
+        drawFrame(mDefaults, profiles[RenderProfile.INTERACTIVE], null);
+
+        assertEquals(1, renders("time"));
+        assertEquals(0, renders("logo"));
+    }
+
+    @Test
+    public void redrawsWithWhatWarmUpDelivers() {
+        drawFrame(mDefaults, RenderProfile.buildAll(80f, 24f, null, null, true, Color.WHITE, Color.GRAY)[RenderProfile.INTERACTIVE], null);
+
+        // typefaces arrive: the engine rebuilds its profiles around them
+        RenderProfile[] warm = RenderProfile.buildAll(80f, 24f, Typeface.SANS_SERIF, Typeface.create(Typeface.SANS_SERIF, Typeface.NORMAL),
+                true, Color.WHITE, Color.GRAY);
+        drawFrame(mDefaults, warm[RenderProfile.INTERACTIVE], null);
+        assertEquals(2, renders("time"));
+
+        // then the logo and settings
+        SettingsSnapshot loaded = mDefaults.toBuilder().setVersion(1).setUse24HourTime(true).build();
+        drawFrame(loaded, warm[RenderProfile.INTERACTIVE], Bitmap.createBitmap(40, 40, Bitmap.Config.ARGB_8888));
+        assertEquals(3, renders("time"));
+        assertEquals(1, renders("logo"));
+    }
+
+    @Test
+    public void loadedSettingsSupersedeTheDefaults() {
+        Context context = ApplicationProvider.getApplicationContext();
+
+        // the engine tells the two apart by version, so whatever is stored must come out newer
+        assertTrue(Settings.getInstance(context).getSnapshot().getVersion() > mDefaults.getVersion());
+    }
+
+    private void drawFrame(SettingsSnapshot settings, RenderProfile profile, Bitmap logo) {
+        mScene.update(mBounds, mCalendar, settings, profile, false, null, false, false, null, 100, logo);
+        mScene.draw(mCanvas);
+    }
+
+    /**
+     * @return how many times the scene has re-rendered the element called {@code node}
+     */
+    private long renders(String node) {
+        StringWriter dump = new StringWriter();
+        PrintWriter out = new PrintWriter(dump);
+        mScene.dump(out, "");
+        out.flush();
+        String key = "scene." + node + ".renders=";
+        for (String line : dump.toString().split("\n")) {
+            if (line.startsWith(key)) {
+                return Long.parseLong(line.substring(key.length()).trim());
+            }
+        }
+        throw new AssertionError("no " + key + " in dump");
+    }
+}
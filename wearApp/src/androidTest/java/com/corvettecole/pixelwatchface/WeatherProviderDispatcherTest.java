@@ -0,0 +1,178 @@
+package com.corvettecole.pixelwatchface;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.squareup.okhttp.OkHttpClient;
+
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link WeatherProviderDispatcher} against {@link MockWeatherServer}s standing in for a
+ * primary and a fallback provider.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WeatherProviderDispatcherTest {
+
+    private static final double LATITUDE = 40.73;
+    private static final double LONGITUDE = -73.99;
+    private static final long TIMEOUT_S = 30;
+
+    private MockWeatherServer mPrimaryServer;
+    private MockWeatherServer mFallbackServer;
+    private WeatherProviderDispatcher mDispatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        mPrimaryServer = new MockWeatherServer();
+        mPrimaryServer.start();
+        mFallbackServer = new MockWeatherServer();
+        mFallbackServer.start();
+        mDispatcher = new WeatherProviderDispatcher(new OkHttpClient());
+    }
+
+    @After
+    public void tearDown() {
+        mPrimaryServer.stop();
+        mFallbackServer.stop();
+    }
+
+    @Test
+    public void answersFromFirstProvider() throws Exception {
+        WeatherData data = mDispatcher.fetch(LATITUDE, LONGITUDE, provider("primary", mPrimaryServer), provider("fallback", mFallbackServer))
+                .get(TIMEOUT_S, TimeUnit.SECONDS);
+
+        assertNotNull(data);
+        assertEquals(1, mPrimaryServer.getRequestCount());
+        assertEquals(0, mFallbackServer.getRequestCount());
+    }
+
+    @Test
+    public void failsOverWhenFirstProviderFails() throws Exception {
+        WeatherData data = mDispatcher.fetch(LATITUDE, LONGITUDE, failingProvider("primary", mPrimaryServer), provider("fallback", mFallbackServer))
+                .get(TIMEOUT_S, TimeUnit.SECONDS);
+
+        assertNotNull(data);
+        assertEquals(1, mPrimaryServer.getRequestCount());
+        assertEquals(1, mFallbackServer.getRequestCount());
+    }
+
+    @Test
+    public void hedgesWhenFirstProviderIsSlow() throws Exception {
+        // well past the hedge delay a provider without latency samples gets
+        mPrimaryServer.setResponseDelay(TimeUnit.SECONDS.toMillis(20));
+        long start = System.currentTimeMillis();
+
+        WeatherData data = mDispatcher.fetch(LATITUDE, LONGITUDE, provider("primary", mPrimaryServer), provider("fallback", mFallbackServer))
+                .get(TIMEOUT_S, TimeUnit.SECONDS);
+
+        assertNotNull(data);
+        assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(20));
+        assertEquals(1, mPrimaryServer.getRequestCount());
+        assertEquals(1, mFallbackServer.getRequestCount());
+    }
+
+    @Test
+    public void failsWhenEveryProviderFails() throws Exception {
+        try {
+            mDispatcher.fetch(LATITUDE, LONGITUDE, failingProvider("primary", mPrimaryServer), failingProvider("fallback", mFallbackServer))
+                    .get(TIMEOUT_S, TimeUnit.SECONDS);
+            fail("fetch succeeded without a working provider");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof JSONException);
+        }
+    }
+
+    @Test
+    public void skipsProviderWhileItsCircuitIsOpen() throws Exception {
+        WeatherProvider primary = failingProvider("primary", mPrimaryServer);
+        WeatherProvider fallback = provider("fallback", mFallbackServer);
+        for (int i = 0; i < 3; i++) {
+            mDispatcher.fetch(LATITUDE, LONGITUDE, primary, fallback).get(TIMEOUT_S, TimeUnit.SECONDS);
+        }
+        assertTrue(mDispatcher.getStats(primary).isCircuitOpen());
+
+        mDispatcher.fetch(LATITUDE, LONGITUDE, primary, fallback).get(TIMEOUT_S, TimeUnit.SECONDS);
+
+        assertEquals(3, mPrimaryServer.getRequestCount());
+        assertEquals(4, mFallbackServer.getRequestCount());
+        assertFalse(mDispatcher.getStats(fallback).isCircuitOpen());
+    }
+
+    @Test
+    public void deadlineCancelsFetchFromHungProviders() throws Exception {
+        mPrimaryServer.setResponseDelay(TimeUnit.MINUTES.toMillis(5));
+        mFallbackServer.setResponseDelay(TimeUnit.MINUTES.toMillis(5));
+        ListenableFuture<WeatherData> fetch = mDispatcher.fetch(LATITUDE, LONGITUDE,
+                provider("primary", mPrimaryServer), provider("fallback", mFallbackServer));
+
+        try {
+            Utils.withDeadline(fetch, 8, TimeUnit.SECONDS).get(TIMEOUT_S, TimeUnit.SECONDS);
+            fail("fetch from hung providers succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(fetch.isCancelled());
+        // both were asked: the hedge went out before the deadline
+        assertEquals(1, mPrimaryServer.getRequestCount());
+        assertEquals(1, mFallbackServer.getRequestCount());
+    }
+
+    @Test
+    public void cancelledFetchDoesNotHedge() throws Exception {
+        mPrimaryServer.setResponseDelay(TimeUnit.MINUTES.toMillis(5));
+        ListenableFuture<WeatherData> fetch = mDispatcher.fetch(LATITUDE, LONGITUDE,
+                provider("primary", mPrimaryServer), provider("fallback", mFallbackServer));
+        // let the request reach the server, then give up on it before the hedge delay
+        while (mPrimaryServer.getRequestCount() == 0) {
+            Thread.sleep(10);
+        }
+        assertTrue(fetch.cancel(true));
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(7));
+        assertEquals(0, mFallbackServer.getRequestCount());
+    }
+
+    /**
+     * @return a provider backed by {@code server}, under its own name so it gets its own stats
+     */
+    static WeatherProvider provider(String name, MockWeatherServer server) {
+        return new OpenWeatherMapProvider(server.getBaseUrl(), "test") {
+            @Override
+            public String getName() {
+                return name;
+            }
+        };
+    }
+
+    /**
+     * @return a provider whose requests reach {@code server} but whose answers never parse
+     */
+    static WeatherProvider failingProvider(String name, MockWeatherServer server) {
+        return new OpenWeatherMapProvider(server.getBaseUrl(), "test") {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public WeatherData parse(String body) throws JSONException {
+                throw new JSONException("unparseable");
+            }
+        };
+    }
+}
@@ -0,0 +1,86 @@
+package com.corvettecole.pixelwatchface;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * The source of time and of delayed main-thread work for the face and the weather code. Everything
+ * that decides based on the time of day, or schedules a timer, goes through {@link #get()} so the
+ * instrumented tests' simulated clock can stand in for the real one and replay hours in seconds.
+ *
+ * Durations that are only measured, never acted on (latency metrics, startup timing), keep using
+ * {@link SystemClock} directly.
+ */
+public abstract class Clock {
+
+    public static final Clock SYSTEM = new Clock() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return TimeZone.getDefault();
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            mHandler.postDelayed(task, delayMs);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            mHandler.removeCallbacks(task);
+        }
+    };
+
+    private static volatile Clock sClock = SYSTEM;
+
+    public static Clock get() {
+        return sClock;
+    }
+
+    /**
+     * Replaces the process-wide clock. Pass null to go back to {@link #SYSTEM}.
+     */
+    public static void set(Clock clock) {
+        sClock = clock != null ? clock : SYSTEM;
+    }
+
+    public abstract long currentTimeMillis();
+
+    public abstract long elapsedRealtime();
+
+    public abstract TimeZone getTimeZone();
+
+    /**
+     * Runs {@code task} on the main thread after {@code delayMs}.
+     */
+    public abstract void postDelayed(Runnable task, long delayMs);
+
+    /**
+     * Removes pending posts of {@code task}.
+     */
+    public abstract void removeCallbacks(Runnable task);
+
+    /**
+     * @return a calendar in this clock's time zone, set to its current time
+     */
+    public Calendar newCalendar() {
+        Calendar calendar = Calendar.getInstance(getTimeZone());
+        calendar.setTimeInMillis(currentTimeMillis());
+        return calendar;
+    }
+}
@@ -0,0 +1,212 @@
+package com.corvettecole.pixelwatchface;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.support.wearable.complications.ComplicationData;
+import android.support.wearable.complications.ComplicationText;
+import android.support.wearable.complications.rendering.ComplicationDrawable;
+
+import java.io.PrintWriter;
+
+/**
+ * One complication on the face. Its content is rendered into a bitmap of its own, which is only
+ * redrawn when the complication data changes, the ambient mode or display properties flip, or
+ * time-dependent text (a countdown, a clock in another zone) is due to change; every other frame
+ * is a single bitmap blit.
+ *
+ * Complications sit on the face's opaque background, so the cache is an RGB_565 bitmap filled
+ * with that color rather than a translucent ARGB_8888 one, at half the memory. It can be dropped
+ * under memory pressure with {@link #trimMemory()} and is rebuilt on the next frame.
+ */
+public class ComplicationSlot {
+
+    private static final String TAG = "ComplicationSlot";
+
+    /**
+     * Off draws the complication straight onto the frame every time, to compare against.
+     */
+    static volatile boolean sCacheEnabled = true;
+
+    private final int mId;
+    private final int mBackgroundColor;
+    private final ComplicationDrawable mDrawable;
+    private final Rect mBounds = new Rect();
+    private ComplicationData mData;
+    private Bitmap mCache;
+    private Canvas mCacheCanvas;
+    private boolean mDirty = true;
+    private boolean mAmbient = false;
+    private long mNextChangeTime = Long.MAX_VALUE;
+
+    private long mRenders = 0;
+    private long mRenderNanos = 0;
+    private long mBlits = 0;
+    private long mBlitNanos = 0;
+    private long mDirectDraws = 0;
+    private long mDirectNanos = 0;
+
+    /**
+     * @param backgroundColor the opaque color the complication is drawn over
+     */
+    public ComplicationSlot(Context context, int id, int backgroundColor) {
+        mId = id;
+        mBackgroundColor = backgroundColor;
+        mDrawable = new ComplicationDrawable(context);
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @param bounds where on the face the complication goes
+     */
+    public void setBounds(Rect bounds) {
+        if (bounds.equals(mBounds)) {
+            return;
+        }
+        boolean resized = bounds.width() != mBounds.width() || bounds.height() != mBounds.height();
+        mBounds.set(bounds);
+        if (resized) {
+            // the drawable always lays out in the cache's coordinates
+            mDrawable.setBounds(0, 0, bounds.width(), bounds.height());
+            trimMemory();
+        }
+    }
+
+    /**
+     * Frees the cached bitmap. Only call on the thread that draws.
+     */
+    public void trimMemory() {
+        if (mCache != null) {
+            mCache.recycle();
+            mCache = null;
+            mCacheCanvas = null;
+        }
+        mDirty = true;
+    }
+
+    /**
+     * @return bytes held by the cached bitmap, 0 if there is none
+     */
+    public long getBitmapBytes() {
+        return mCache == null ? 0 : mCache.getAllocationByteCount();
+    }
+
+    private void ensureCache() {
+        if (mCache == null) {
+            mCache = Bitmap.createBitmap(mBounds.width(), mBounds.height(), Bitmap.Config.RGB_565);
+            mCacheCanvas = new Canvas(mCache);
+        }
+    }
+
+    public void setData(ComplicationData data) {
+        mData = data;
+        mDrawable.setComplicationData(data);
+        mNextChangeTime = Clock.get().currentTimeMillis();
+        mDirty = true;
+    }
+
+    public void setAmbient(boolean ambient) {
+        if (ambient != mAmbient) {
+            mAmbient = ambient;
+            mDrawable.setInAmbientMode(ambient);
+            mDirty = true;
+        }
+    }
+
+    public void setDisplayProperties(boolean lowBitAmbient, boolean burnInProtection) {
+        mDrawable.setLowBitAmbient(lowBitAmbient);
+        mDrawable.setBurnInProtection(burnInProtection);
+        mDirty = true;
+    }
+
+    public void draw(Canvas canvas, long now) {
+        if (mData == null || mBounds.isEmpty() || !mData.isActive(now)) {
+            return;
+        }
+        if (!sCacheEnabled) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            canvas.save();
+            canvas.translate(mBounds.left, mBounds.top);
+            mDrawable.draw(canvas, now);
+            canvas.restore();
+            mDirectNanos += SystemClock.elapsedRealtimeNanos() - start;
+            mDirectDraws++;
+            return;
+        }
+        ensureCache();
+        if (mDirty || now >= mNextChangeTime) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            mCache.eraseColor(mBackgroundColor);
+            mDrawable.draw(mCacheCanvas, now);
+            mNextChangeTime = getNextChangeTime(mData, now);
+            mDirty = false;
+            mRenderNanos += SystemClock.elapsedRealtimeNanos() - start;
+            mRenders++;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        canvas.drawBitmap(mCache, mBounds.left, mBounds.top, null);
+        mBlitNanos += SystemClock.elapsedRealtimeNanos() - start;
+        mBlits++;
+    }
+
+    /**
+     * @return the earliest time any of the data's texts will read differently, or
+     * {@link Long#MAX_VALUE} if they never will
+     */
+    private static long getNextChangeTime(ComplicationData data, long now) {
+        long next = Math.min(nextChange(data.getShortText(), now), nextChange(data.getShortTitle(), now));
+        next = Math.min(next, Math.min(nextChange(data.getLongText(), now), nextChange(data.getLongTitle(), now)));
+        return next;
+    }
+
+    private static long nextChange(ComplicationText text, long now) {
+        return text == null ? Long.MAX_VALUE : text.getNextChangeTime(now);
+    }
+
+    /**
+     * Fires the complication's tap action if {@code (x, y)} is inside it.
+     *
+     * @return whether the tap was inside this complication
+     */
+    public boolean onTap(int x, int y) {
+        if (!mBounds.contains(x, y) || mData == null) {
+            return false;
+        }
+        PendingIntent tapAction = mData.getTapAction();
+        if (tapAction != null) {
+            try {
+                tapAction.send();
+            } catch (PendingIntent.CanceledException e) {
+                FaceLog.d(TAG, "tap action cancelled: {}", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return mean cost of a frame with the cache (re-renders amortized over blits) and without
+     */
+    public String report() {
+        long cachedNanos = mBlits == 0 ? 0 : (mRenderNanos + mBlitNanos) / mBlits;
+        long directNanos = mDirectDraws == 0 ? 0 : mDirectNanos / mDirectDraws;
+        return String.format("complication %d: cached %d us/frame (%d renders in %d frames), direct %d us/frame (%d frames)",
+                mId, cachedNanos / 1000, mRenders, mBlits, directNanos / 1000, mDirectDraws);
+    }
+
+    /**
+     * Writes how often the cache was re-rendered and blitted, and its size, as {@code key=value}
+     * lines, each starting with {@code prefix}.
+     */
+    public void dump(PrintWriter out, String prefix) {
+        out.print(prefix); out.print("complication."); out.print(mId); out.print(".renders="); out.println(mRenders);
+        out.print(prefix); out.print("complication."); out.print(mId); out.print(".blits="); out.println(mBlits);
+        out.print(prefix); out.print("complication."); out.print(mId); out.print(".direct_draws="); out.println(mDirectDraws);
+        out.print(prefix); out.print("complication."); out.print(mId); out.print(".bitmap_bytes="); out.println(getBitmapBytes());
+    }
+}
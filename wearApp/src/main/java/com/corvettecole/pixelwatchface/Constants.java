@@ -5,5 +5,17 @@ public class Constants {
     public static final String WEATHER_UPDATE_WORKER = "weather_update_worker";
     public static final int WEATHER_UPDATE_INTERVAL = 30;
     public static final int WEATHER_BACKOFF_DELAY = 1; // minutes
+    public static final String OPPORTUNISTIC_WEATHER_WORKER = "opportunistic_weather_worker";
+    public static final int OPPORTUNISTIC_FETCH_AGE = 20; // minutes old weather has to be to fetch early on a warm radio
+    public static final int WEATHER_STALE_AGE = 45; // minutes old weather has to be to wake a cold radio for it
+    public static final int PHONE_WEATHER_MAX_AGE = 45; // minutes, phone pushes every 30
+    public static final int LOCATION_MAX_AGE = 60; // minutes a cached fix is used without asking for a new one
+    public static final float LOCATION_MOVEMENT_THRESHOLD = 5000; // meters
+    public static final int HTTP_CONNECT_TIMEOUT = 10; // seconds
+    public static final int HTTP_READ_TIMEOUT = 15; // seconds
+    public static final int LOCATION_DEADLINE = 45; // seconds, covers a 30 second active fix
+    public static final int FETCH_DEADLINE = 40; // seconds, covers a hedged request
+    public static final String KEY_FORCE_WEATHER_UPDATE = "force_weather_update";
+    public static final String KEY_OPPORTUNISTIC_FETCH = "opportunistic_fetch";
 
 }
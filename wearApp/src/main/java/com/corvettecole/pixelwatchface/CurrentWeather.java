@@ -2,29 +2,25 @@ package com.corvettecole.pixelwatchface;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.util.Log;
+import android.location.Location;
 
 import androidx.concurrent.futures.CallbackToFutureAdapter;
 import androidx.work.ListenableWorker;
 
-import com.squareup.okhttp.Call;
-import com.squareup.okhttp.Callback;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.Response;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
 import java.util.TimeZone;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.corvettecole.pixelwatchface.Constants.HTTP_CONNECT_TIMEOUT;
+import static com.corvettecole.pixelwatchface.Constants.HTTP_READ_TIMEOUT;
+import static com.corvettecole.pixelwatchface.Constants.PHONE_WEATHER_MAX_AGE;
 
 import static com.corvettecole.pixelwatchface.Utils.convertToCelsius;
-import static com.corvettecole.pixelwatchface.Utils.drawableToBitmap;
+import static com.corvettecole.pixelwatchface.Utils.loadBitmap;
 
 public class CurrentWeather {
 
@@ -38,20 +34,40 @@ public class CurrentWeather {
     private String mSummary;
     private String mTimeZone;
     private Bitmap mIconBitmap;
+    private int mIconBitmapId;
+    private boolean mIconBitmapFailed;
     private String mWeatherProvider;
+    private volatile long mPhoneSnapshotTime = 0;
+    private volatile Location mLastFetchLocation;
 
-    private String mOpenWeatherMapKey;
     private Settings mSettings;
 
-    OkHttpClient client;
+    private final Context mContext;
+    private final StateStore mStateStore;
+    private final TemperatureHistory mHistory;
+    private final SunTimes mSunTimes;
+    private final WeatherProviderDispatcher mDispatcher;
+    private final WeatherProvider mDarkSkyProvider;
+    private final WeatherProvider mOpenWeatherMapProvider;
 
     private CurrentWeather(Context context) {
         if (instance != null) {
             throw new RuntimeException("Use getInstance() method to get the single instance of this class");
         } else {
+            mContext = context;
             mSettings = Settings.getInstance(context.getApplicationContext());
-            mOpenWeatherMapKey = context.getString(R.string.openstreetmap_api_key);
-            client = new OkHttpClient();
+            mDarkSkyProvider = new DarkSkyProvider(DarkSkyProvider.DEFAULT_BASE_URL, mSettings);
+            mOpenWeatherMapProvider = new OpenWeatherMapProvider(OpenWeatherMapProvider.DEFAULT_BASE_URL,
+                    context.getString(R.string.openstreetmap_api_key));
+            OkHttpClient client = new OkHttpClient();
+            client.setConnectTimeout(HTTP_CONNECT_TIMEOUT, TimeUnit.SECONDS);
+            client.setReadTimeout(HTTP_READ_TIMEOUT, TimeUnit.SECONDS);
+            client.setWriteTimeout(HTTP_READ_TIMEOUT, TimeUnit.SECONDS);
+            mDispatcher = new WeatherProviderDispatcher(client);
+            mStateStore = StateStore.getInstance(context);
+            mHistory = TemperatureHistory.getInstance(context);
+            mSunTimes = SunTimes.getInstance(context);
+            restoreWeatherData();
         }
     }
 
@@ -66,110 +82,143 @@ public class CurrentWeather {
         return instance;
     }
 
-    // TODO consider putting the weather update code in the WeatherUpdateWorker
-    public Future<ListenableWorker.Result> updateForecast(double latitude, double longitude) {
+    /**
+     * Fetches and publishes weather for {@code location} without blocking the calling thread.
+     * Cancelling the returned future cancels the HTTP requests in flight.
+     */
+    public ListenableFuture<ListenableWorker.Result> updateForecast(Location location) {
         return CallbackToFutureAdapter.getFuture(completer -> {
             final String TAG = "getForecast";
-            String forecastUrl;
-
-            if (mSettings.isUseDarkSky() && mSettings.getDarkSkyAPIKey() != null) {
-                forecastUrl = "https://api.forecast.io/forecast/" +
-                        mSettings.getDarkSkyAPIKey() + "/" + latitude + "," + longitude + "?lang=" + Locale.getDefault().getLanguage();
-                Log.d(TAG, "forecastURL: " + "https://api.forecast.io/forecast/" +
-                        mSettings.getDarkSkyAPIKey() + "/" + latitude + "," + longitude + "?lang=" + Locale.getDefault().getLanguage());
-            } else {
-                forecastUrl = "https://api.openweathermap.org/data/2.5/weather?lat=" + latitude + "&lon=" + longitude + "&units=imperial&appid=" + mOpenWeatherMapKey;
-            }
-
-            if (client == null) {
-                client = new OkHttpClient();
-            }
 
-            Request request = new Request.Builder()
-                    .url(forecastUrl)
-                    .build();
-
-            Call call = client.newCall(request);
-            call.enqueue(new Callback() {
-                @Override
-                public void onFailure(Request request, IOException e) {
-
-                    Log.d(TAG, "Couldn't retrieve weather data");
-                    // TODO figure out if i can just use freakin volley because seriously fuck okhttp
-                    //return e;
-                    completer.setException(e);
-                }
-
-                @Override
-                public void onResponse(Response response) throws IOException {
-                    try {
-                        String jsonData = response.body().string();
-                        Log.v(TAG, jsonData);
-                        if (response.isSuccessful()) {
-                            try {
-                                parseWeatherJSON(jsonData);
-                                completer.set(ListenableWorker.Result.success());
-                                //invalidate();
-                            } catch (JSONException e) {
-                                completer.set(ListenableWorker.Result.retry());
-                                Log.e(TAG, e.toString());
-                            }
-                        } else {
-                            Log.d(TAG, "Couldn't retrieve weather data: response not successful");
-                            completer.set(ListenableWorker.Result.retry());
-                        }
-                    } catch (IOException e) {
-                        Log.e(TAG, e.toString());
-                        completer.set(ListenableWorker.Result.retry());
+            WeatherProvider[] providers = getProviders();
+            ListenableFuture<WeatherData> fetch = mDispatcher.fetch(location.getLatitude(), location.getLongitude(), providers);
+            completer.addCancellationListener(() -> fetch.cancel(true), Runnable::run);
+            fetch.addListener(() -> {
+                try {
+                    WeatherData data = fetch.get();
+                    applyWeatherData(data);
+                    mPhoneSnapshotTime = 0;
+                    mLastFetchLocation = location;
+                    mSunTimes.setLocation(location);
+                    mStateStore.putWeather(data, Clock.get().currentTimeMillis(), 0);
+                    mStateStore.putLocation(location);
+                    WeatherComplicationProviderService.requestUpdate(mContext);
+                    completer.set(ListenableWorker.Result.success());
+                } catch (Exception e) {
+                    FaceLog.d(TAG, "Couldn't retrieve weather data: {}", e);
+                    if (!fetch.isCancelled()) {
+                        // the dispatcher has already counted each provider's failure; this is
+                        // the fetch as a whole
+                        WeatherMetrics.getInstance().increment("fetch.retry");
                     }
+                    completer.set(ListenableWorker.Result.retry());
                 }
-            });
+            }, Runnable::run);
             return completer;
         });
     }
 
-    private void parseWeatherJSON(String json) throws JSONException {
-        final String TAG = "parseWeatherJSON";
-        final String lastIconName = mIconName;
-
-        JSONObject forecast = new JSONObject(json);
+    /**
+     * @return the configured providers in order of preference
+     */
+    private WeatherProvider[] getProviders() {
         if (mSettings.isUseDarkSky()) {
-            setWeatherProvider("DarkSky");
-            mTimeZone = forecast.getString("timezone");
-            JSONObject currently = forecast.getJSONObject("currently");
-            mHumidity = currently.getDouble("humidity");
-            mTime = currently.getLong("time");
-            mIconName = currently.getString("icon");
-            mPrecipitationChance = currently.getDouble("precipProbability");
-            mSummary = currently.getString("summary");
-            mTemperature = currently.getDouble("temperature");
-            Log.d(TAG, getFormattedTime());
+            return new WeatherProvider[]{mDarkSkyProvider, mOpenWeatherMapProvider};
         } else {
-            mWeatherProvider = "OpenStreetMap";
-            String tempIcon = forecast.getJSONArray("weather").toString();
-            JSONObject main = forecast.getJSONObject("main");
-            mHumidity = main.getDouble("humidity") / 100; //adjust OpenStreetMap format to dark sky format with /100
-            mTemperature = main.getDouble("temp");
-            Log.d(TAG, tempIcon.substring(tempIcon.indexOf("\"icon\":\"") + 8, tempIcon.indexOf("\"}]")));
-            mIconName = tempIcon.substring(tempIcon.indexOf("\"icon\":\"") + 8, tempIcon.indexOf("\"}]"));
+            return new WeatherProvider[]{mOpenWeatherMapProvider, mDarkSkyProvider};
         }
+    }
+
+    private WeatherProvider getProvider(String name) {
+        if (DarkSkyProvider.NAME.equals(name)) {
+            return mDarkSkyProvider;
+        } else if (OpenWeatherMapProvider.NAME.equals(name)) {
+            return mOpenWeatherMapProvider;
+        }
+        return null;
+    }
+
+    /**
+     * Accepts weather fetched by the companion phone app in place of a fetch of our own.
+     */
+    public void applyPhoneSnapshot(WeatherSnapshot snapshot) {
+        WeatherData data = snapshot.toWeatherData();
+        applyWeatherData(data);
+        mPhoneSnapshotTime = snapshot.fetchedAt;
+        mStateStore.putWeather(data, snapshot.fetchedAt, snapshot.fetchedAt);
+        WeatherComplicationProviderService.requestUpdate(mContext);
+    }
+
+    /**
+     * @return whether the phone pushed weather recently enough that the watch doesn't need to
+     * fetch on its own. Goes false by itself when the phone is out of range and stops pushing.
+     */
+    public boolean isPhoneDataFresh() {
+        return Clock.get().currentTimeMillis() - mPhoneSnapshotTime < TimeUnit.MINUTES.toMillis(PHONE_WEATHER_MAX_AGE);
+    }
+
+    /**
+     * @return where the weather currently shown was fetched for, or null if unknown
+     */
+    public Location getLastFetchLocation() {
+        return mLastFetchLocation;
+    }
+
+    /**
+     * @return when the weather currently shown was fetched, ms since epoch
+     */
+    public long getLastFetchTime() {
+        return mStateStore.getLastFetchTime();
+    }
+
+    /**
+     * Shows the last stored observation until the first fetch after a restart completes, and
+     * remembers where it was fetched so a restart alone doesn't warrant a refetch.
+     */
+    private void restoreWeatherData() {
+        WeatherData data = mStateStore.getWeather();
+        if (data != null) {
+            applyWeatherData(data);
+            mPhoneSnapshotTime = mStateStore.getPhoneSnapshotTime();
+            mLastFetchLocation = mStateStore.getLocation();
+        }
+    }
+
+    private void applyWeatherData(WeatherData data) {
+        final String TAG = "applyWeatherData";
+        final String lastIconName = mIconName;
+
+        mWeatherProvider = data.getProvider();
+        mTimeZone = data.getTimeZone();
+        mHumidity = data.getHumidity();
+        mTime = data.getTime();
+        mIconName = data.getIconName();
+        mPrecipitationChance = data.getPrecipitationChance();
+        mSummary = data.getSummary();
+        mTemperature = data.getTemperature();
+        FaceLog.d(TAG, "{}: {}", mWeatherProvider, mIconName);
+
         // set icon bitmap to null so that the icon is refreshed when next retrieved
         if (!lastIconName.equals(mIconName)){
             mIconBitmap = null;
         }
+
+        if (mTemperature != Double.MIN_VALUE && mTime > 0) {
+            mHistory.add(mTime * 1000, (float) mTemperature, TemperatureHistory.conditionFor(getIconId()));
+        }
     }
 
-    public String getFormattedTemperature() {
-        String unit = mSettings.isUseCelsius() ? "°C" : "°F";
+    public String getFormattedTemperature(SettingsSnapshot settings) {
+        String unit = settings.isUseCelsius() ? "°C" : "°F";
         if (mTemperature == Double.MIN_VALUE){
-            if (mSettings.isShowTemperatureFractional()) {
+            if (settings.isShowTemperatureFractional()) {
                 return "--.- " + unit;
             } else {
                 return "-- " + unit;
             }
         } else {
-            double temperature = mSettings.isUseCelsius() ? convertToCelsius(mTemperature) : mTemperature;
-            if (mSettings.isShowTemperatureFractional()) {
+            double temperature = settings.isUseCelsius() ? convertToCelsius(mTemperature) : mTemperature;
+            if (settings.isShowTemperatureFractional()) {
                 return String.format("%.1f %s", temperature, unit);
             } else {
                 return String.format("%d %s", Math.round(temperature), unit);
@@ -185,113 +234,80 @@ public class CurrentWeather {
         mTimeZone = timeZone;
     }
 
+    /**
+     * @return the icon for the current weather, or null if it couldn't be decoded
+     */
     public Bitmap getIconBitmap(Context context) {
-        if (mIconBitmap == null) {
-            mIconBitmap = Bitmap.createScaledBitmap(drawableToBitmap(context.getDrawable(getIconId())), 34, 34, false);
+        int iconId = getIconId();
+        // the icon can also change at sunrise and sunset, without new weather
+        if (iconId != mIconBitmapId || (mIconBitmap == null && !mIconBitmapFailed)) {
+            mIconBitmap = loadBitmap(context, iconId, 34, 34, Bitmap.Config.ARGB_8888);
+            mIconBitmapId = iconId;
+            // rather than trying again every frame, wait for a different icon
+            mIconBitmapFailed = mIconBitmap == null;
+            if (mIconBitmapFailed) {
+                FaceLog.w("getIconBitmap", "Couldn't decode weather icon {}", iconId);
+            }
         }
         return mIconBitmap;
     }
 
+    /**
+     * Drops the icon bitmap; it is decoded again the next time it is drawn.
+     */
+    public void trimMemory() {
+        mIconBitmap = null;
+    }
+
+    /**
+     * @return bytes held by the icon bitmap, 0 if it isn't loaded
+     */
+    public long getBitmapBytes() {
+        Bitmap icon = mIconBitmap;
+        return icon == null ? 0 : icon.getAllocationByteCount();
+    }
+
     public int getIconId() {
         //#TODO use custom icons so as to have fitting icons for every weather condition from any provider (see these: http://adamwhitcroft.com/climacons/)
-        int iconId = R.drawable.clear_day;
-        if (mWeatherProvider != null) {
-            if (mWeatherProvider.equalsIgnoreCase("DarkSky")) {
-                // clear-day, clear-night, rain, snow, sleet, wind, fog, cloudy, partly-cloudy-day, or partly-cloudy-night.
-                switch (mIconName) {
-                    case "clear-day":
-                        iconId = R.drawable.clear_day;
-                        break;
-                    case "clear-night":
-                        iconId = R.drawable.clear_night;
-                        break;
-                    case "rain":
-                        iconId = R.drawable.rain;
-                        break;
-                    case "snow":
-                        iconId = R.drawable.snow;
-                        break;
-                    case "sleet":
-                        iconId = R.drawable.sleet;
-                        break;
-                    case "wind":
-                        iconId = R.drawable.wind;
-                        break;
-                    case "fog":
-                        iconId = R.drawable.fog;
-                        break;
-                    case "cloudy":
-                        iconId = R.drawable.cloudy;
-                        break;
-                    case "partly-cloudy-day":
-                        iconId = R.drawable.partly_cloudy;
-                        break;
-                    case "partly-cloudy-night":
-                        iconId = R.drawable.cloudy_night;
-                        break;
-                }
-            } else if (mWeatherProvider.equalsIgnoreCase("OpenStreetMap")) {
-                switch (mIconName) {
-                    case "01d":
-                        iconId = R.drawable.clear_day;
-                        break;
-                    case "01n":
-                        iconId = R.drawable.clear_night;
-                        break;
-                    case "02d":
-                        iconId = R.drawable.partly_cloudy;
-                        break;
-                    case "02n":
-                        iconId = R.drawable.cloudy_night;
-                        break;
-                    case "03d":
-                        iconId = R.drawable.partly_cloudy;
-                        break;
-                    case "03n":
-                        iconId = R.drawable.cloudy_night;
-                        break;
-                    case "04d":
-                        iconId = R.drawable.cloudy;
-                        break;
-                    case "04n":
-                        iconId = R.drawable.cloudy;
-                        break;
-                    case "09d":
-                        iconId = R.drawable.rain;
-                        break;
-                    case "09n":
-                        iconId = R.drawable.rain;
-                        break;
-                    case "10d":
-                        iconId = R.drawable.rain;
-                        break;
-                    case "10n":
-                        iconId = R.drawable.rain;
-                        break;
-                    case "11d":
-                        iconId = R.drawable.rain;
-                        break;
-                    case "11n":
-                        iconId = R.drawable.rain;
-                        break;
-                    case "13d":
-                        iconId = R.drawable.snow;
-                        break;
-                    case "13n":
-                        iconId = R.drawable.snow;
-                        break;
-                    case "50d":
-                        iconId = R.drawable.fog;
-                        break;
-                    case "50n":
-                        iconId = R.drawable.fog;
-                        break;
-                }
+        WeatherProvider provider = getProvider(mWeatherProvider);
+        if (provider == null) {
+            return R.drawable.clear_day;
+        }
+        return forPhase(provider.getIconId(mIconName), mSunTimes.getPhase(Clock.get().currentTimeMillis()));
+    }
+
+    /**
+     * Swaps a day icon for its night variant or back to match whether the sun is up now, rather
+     * than when the provider reported the weather.
+     */
+    private static int forPhase(int iconId, int phase) {
+        if (phase == SunTimes.NIGHT) {
+            if (iconId == R.drawable.clear_day) {
+                return R.drawable.clear_night;
+            } else if (iconId == R.drawable.partly_cloudy) {
+                return R.drawable.cloudy_night;
+            }
+        } else if (phase == SunTimes.DAY) {
+            if (iconId == R.drawable.clear_night) {
+                return R.drawable.clear_day;
+            } else if (iconId == R.drawable.cloudy_night) {
+                return R.drawable.partly_cloudy;
             }
         }
         return iconId;
     }
 
+    /**
+     * @return recent observations, oldest first
+     */
+    public TemperatureHistory getHistory() {
+        return mHistory;
+    }
+
+    public double getTemperature() {
+        return mTemperature;
+    }
+
     public long getTime() {
         return mTime;
     }
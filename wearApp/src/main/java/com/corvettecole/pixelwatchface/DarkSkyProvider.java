@@ -0,0 +1,71 @@
+package com.corvettecole.pixelwatchface;
+
+import org.json.JSONException;
+
+public class DarkSkyProvider implements WeatherProvider {
+
+    public static final String NAME = DarkSkyApi.NAME;
+    public static final String DEFAULT_BASE_URL = DarkSkyApi.DEFAULT_BASE_URL;
+
+    private final String mBaseUrl;
+    private final Settings mSettings;
+
+    /**
+     * @param baseUrl  scheme and host to query, without a trailing slash. Overridable so the
+     *                 provider can be pointed at a local mock server.
+     * @param settings source of the user's DarkSky API key
+     */
+    public DarkSkyProvider(String baseUrl, Settings settings) {
+        mBaseUrl = baseUrl;
+        mSettings = settings;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isConfigured() {
+        String key = mSettings.getDarkSkyAPIKey();
+        return key != null && !key.isEmpty();
+    }
+
+    @Override
+    public String buildUrl(double latitude, double longitude) {
+        return DarkSkyApi.buildUrl(mBaseUrl, mSettings.getDarkSkyAPIKey(), latitude, longitude);
+    }
+
+    @Override
+    public WeatherData parse(String body) throws JSONException {
+        return DarkSkyApi.parse(body);
+    }
+
+    @Override
+    public int getIconId(String iconName) {
+        // clear-day, clear-night, rain, snow, sleet, wind, fog, cloudy, partly-cloudy-day, or partly-cloudy-night.
+        switch (iconName) {
+            case "clear-night":
+                return R.drawable.clear_night;
+            case "rain":
+                return R.drawable.rain;
+            case "snow":
+                return R.drawable.snow;
+            case "sleet":
+                return R.drawable.sleet;
+            case "wind":
+                return R.drawable.wind;
+            case "fog":
+                return R.drawable.fog;
+            case "cloudy":
+                return R.drawable.cloudy;
+            case "partly-cloudy-day":
+                return R.drawable.partly_cloudy;
+            case "partly-cloudy-night":
+                return R.drawable.cloudy_night;
+            case "clear-day":
+            default:
+                return R.drawable.clear_day;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.corvettecole.pixelwatchface;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Logging for the face. Messages are parameterized with {@code {}} placeholders and only
+ * formatted when they are actually written, and every message written is also kept in a small
+ * binary ring buffer that {@link #dump} writes out on demand, as a trail of what happened before
+ * a problem.
+ *
+ * Debug logging is compiled out of release builds: {@link #DEBUG} is a compile-time constant set
+ * per build type, so javac drops blocks guarded by {@code if (FaceLog.DEBUG)} entirely. Hot paths
+ * guard their calls that way so release builds don't even box the arguments; elsewhere
+ * {@link #d} on its own is enough. Info, warnings and errors are rare and always written.
+ */
+public final class FaceLog {
+
+    public static final boolean DEBUG = BuildConfig.LOG_DEBUG;
+
+    private static final int CAPACITY = 256;
+    // time (long), level (byte), message length (byte), message as UTF-8
+    private static final int SLOT_SIZE = 128;
+    private static final int MAX_MESSAGE_BYTES = SLOT_SIZE - 8 - 1 - 1;
+
+    private static final byte[] sRing = new byte[CAPACITY * SLOT_SIZE];
+    private static int sNext = 0;
+    private static long sWritten = 0;
+
+    private FaceLog() {
+    }
+
+    public static void d(String tag, String message, Object... args) {
+        if (DEBUG) {
+            write(Log.DEBUG, tag, message, args);
+        }
+    }
+
+    public static void i(String tag, String message, Object... args) {
+        write(Log.INFO, tag, message, args);
+    }
+
+    public static void w(String tag, String message, Object... args) {
+        write(Log.WARN, tag, message, args);
+    }
+
+    public static void e(String tag, String message, Object... args) {
+        write(Log.ERROR, tag, message, args);
+    }
+
+    private static void write(int level, String tag, String message, Object[] args) {
+        String formatted = format(message, args);
+        Log.println(level, tag, formatted);
+        record(level, tag + ": " + formatted);
+    }
+
+    /**
+     * Replaces each {@code {}} in {@code message} with the next argument.
+     */
+    static String format(String message, Object[] args) {
+        if (args == null || args.length == 0) {
+            return message;
+        }
+        StringBuilder sb = new StringBuilder(message.length() + 16 * args.length);
+        int arg = 0;
+        int start = 0;
+        int placeholder;
+        while (arg < args.length && (placeholder = message.indexOf("{}", start)) >= 0) {
+            sb.append(message, start, placeholder).append(args[arg++]);
+            start = placeholder + 2;
+        }
+        return sb.append(message, start, message.length()).toString();
+    }
+
+    private static synchronized void record(int level, String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_MESSAGE_BYTES);
+        int offset = sNext * SLOT_SIZE;
+        long time = Clock.get().currentTimeMillis();
+        for (int i = 0; i < 8; i++) {
+            sRing[offset + i] = (byte) (time >>> (56 - 8 * i));
+        }
+        sRing[offset + 8] = (byte) level;
+        sRing[offset + 9] = (byte) length;
+        System.arraycopy(bytes, 0, sRing, offset + 10, length);
+        sNext = (sNext + 1) % CAPACITY;
+        sWritten++;
+    }
+
+    /**
+     * Writes the most recent messages, oldest first, as {@code key=value} lines starting with
+     * {@code prefix}: {@code written} and {@code kept} counts, then one numbered line per message.
+     * Messages longer than a slot are cut short, and line breaks in them are flattened.
+     */
+    public static synchronized void dump(PrintWriter out, String prefix) {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        int count = (int) Math.min(sWritten, CAPACITY);
+        out.print(prefix); out.print("written="); out.println(sWritten);
+        out.print(prefix); out.print("kept="); out.println(count);
+        for (int i = 0; i < count; i++) {
+            int offset = ((sNext - count + i + CAPACITY) % CAPACITY) * SLOT_SIZE;
+            long time = 0;
+            for (int b = 0; b < 8; b++) {
+                time = (time << 8) | (sRing[offset + b] & 0xff);
+            }
+            int level = sRing[offset + 8];
+            int length = sRing[offset + 9] & 0xff;
+            out.print(prefix); out.print(i); out.print('=');
+            out.print(timeFormat.format(new Date(time))); out.print(' ');
+            out.print("VDIWE".charAt(Math.max(0, Math.min(level - Log.VERBOSE, 4)))); out.print(' ');
+            out.println(new String(sRing, offset + 10, length, StandardCharsets.UTF_8).replace('\n', ' '));
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.corvettecole.pixelwatchface;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+import androidx.core.content.ContextCompat;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.LocationServices;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.corvettecole.pixelwatchface.Constants.LOCATION_MAX_AGE;
+import static com.corvettecole.pixelwatchface.Constants.LOCATION_MOVEMENT_THRESHOLD;
+
+/**
+ * Keeps the last good location fix so weather updates rarely have to wait for one. While the face
+ * is running it listens to passive location updates (fixes other apps already paid for), and
+ * falls back to a single balanced-power fix only when nothing usable is cached.
+ */
+public class LocationCache {
+
+    private static final String TAG = "LocationCache";
+
+    private static final long PASSIVE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(15);
+    private static final long ACTIVE_FIX_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private static volatile LocationCache instance;
+
+    private final Context mContext;
+    private final FusedLocationProviderClient mFusedLocationClient;
+    private volatile Location mLastFix;
+    private volatile float mMovementThreshold = LOCATION_MOVEMENT_THRESHOLD;
+    private boolean mListening = false;
+
+    private final LocationCallback mPassiveCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult locationResult) {
+            offer(locationResult.getLastLocation());
+        }
+    };
+
+    private LocationCache(Context context) {
+        if (instance != null) {
+            throw new RuntimeException("Use getInstance() method to get the single instance of this class");
+        } else {
+            mContext = context;
+            mFusedLocationClient = LocationServices.getFusedLocationProviderClient(context);
+        }
+    }
+
+    public static LocationCache getInstance(Context context) {
+        if (instance == null) {
+            synchronized (LocationCache.class) {
+                if (instance == null) {
+                    instance = new LocationCache(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private boolean hasPermission() {
+        return ContextCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Starts listening to passive location updates. Does nothing without location permission.
+     */
+    @SuppressLint("MissingPermission")
+    public synchronized void startPassiveUpdates() {
+        if (mListening || !hasPermission()) {
+            return;
+        }
+        LocationRequest request = LocationRequest.create()
+                .setPriority(LocationRequest.PRIORITY_NO_POWER)
+                .setInterval(PASSIVE_INTERVAL_MS)
+                .setFastestInterval(PASSIVE_INTERVAL_MS / 3);
+        mFusedLocationClient.requestLocationUpdates(request, mPassiveCallback, Looper.getMainLooper());
+        mListening = true;
+    }
+
+    public synchronized void stopPassiveUpdates() {
+        if (mListening) {
+            mFusedLocationClient.removeLocationUpdates(mPassiveCallback);
+            mListening = false;
+        }
+    }
+
+    /**
+     * Sets how far, in meters, the watch has to move before {@link #hasMoved(Location)} reports
+     * it.
+     */
+    public void setMovementThreshold(float meters) {
+        mMovementThreshold = meters;
+    }
+
+    /**
+     * Keeps {@code location} if it is newer, or as new but more accurate, than the cached fix.
+     */
+    public void offer(Location location) {
+        if (location == null) {
+            return;
+        }
+        synchronized (this) {
+            Location last = mLastFix;
+            if (last == null || location.getTime() > last.getTime()
+                    || (location.getTime() == last.getTime() && location.getAccuracy() < last.getAccuracy())) {
+                mLastFix = location;
+            }
+        }
+    }
+
+    /**
+     * @return the cached fix, or null if there is none
+     */
+    public Location getLastFix() {
+        return mLastFix;
+    }
+
+    /**
+     * @return the age of the cached fix in ms, or {@link Long#MAX_VALUE} if there is none
+     */
+    public long getFixAge() {
+        Location last = mLastFix;
+        return last == null ? Long.MAX_VALUE : Clock.get().currentTimeMillis() - last.getTime();
+    }
+
+    /**
+     * @return whether the cached fix is further than the movement threshold from
+     * {@code reference}. With nothing to compare, reports movement.
+     */
+    public boolean hasMoved(Location reference) {
+        return hasMoved(mLastFix, reference, mMovementThreshold);
+    }
+
+    /**
+     * @return whether {@code fix} is further than {@code threshold} meters from
+     * {@code reference}, or true if either is missing
+     */
+    static boolean hasMoved(Location fix, Location reference, float threshold) {
+        if (fix == null || reference == null) {
+            return true;
+        }
+        return fix.distanceTo(reference) > threshold;
+    }
+
+    /**
+     * @param lastFetchLocation where the currently shown weather was fetched for, or null
+     * @param lastFetchTime     when it was fetched, ms since epoch
+     * @param maxDataAge        how old weather may get before it is refreshed regardless of
+     *                          movement, in ms
+     * @return whether fetching new weather is worthwhile
+     */
+    public boolean isRefetchWarranted(Location lastFetchLocation, long lastFetchTime, long maxDataAge) {
+        return lastFetchLocation == null
+                || Clock.get().currentTimeMillis() - lastFetchTime >= maxDataAge
+                || hasMoved(lastFetchLocation);
+    }
+
+    /**
+     * Provides a location fix as cheaply as possible: the cached fix if it is recent enough,
+     * otherwise the fused provider's last known location, otherwise a single balanced-power fix.
+     * Completes with null if none of those produce anything.
+     */
+    @SuppressLint("MissingPermission")
+    public ListenableFuture<Location> getFix() {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            if (getFixAge() < TimeUnit.MINUTES.toMillis(LOCATION_MAX_AGE)) {
+                completer.set(mLastFix);
+                return "LocationCache.cached";
+            }
+            if (!hasPermission()) {
+                completer.set(null);
+                return "LocationCache.noPermission";
+            }
+            mFusedLocationClient.getLastLocation()
+                    .addOnSuccessListener(location -> {
+                        offer(location);
+                        if (getFixAge() < TimeUnit.MINUTES.toMillis(LOCATION_MAX_AGE)) {
+                            completer.set(mLastFix);
+                        } else {
+                            requestSingleFix(completer);
+                        }
+                    })
+                    .addOnFailureListener(e -> requestSingleFix(completer));
+            return "LocationCache.getFix";
+        });
+    }
+
+    @SuppressLint("MissingPermission")
+    private void requestSingleFix(CallbackToFutureAdapter.Completer<Location> completer) {
+        FaceLog.d(TAG, "no recent fix cached, requesting one");
+        LocationRequest request = LocationRequest.create()
+                .setPriority(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY)
+                .setNumUpdates(1)
+                .setExpirationDuration(ACTIVE_FIX_TIMEOUT_MS);
+        LocationCallback callback = new LocationCallback() {
+            @Override
+            public void onLocationResult(@NonNull LocationResult locationResult) {
+                offer(locationResult.getLastLocation());
+                completer.set(mLastFix);
+            }
+        };
+        mFusedLocationClient.requestLocationUpdates(request, callback, Looper.getMainLooper());
+        // setExpirationDuration stops the request silently, so complete with whatever we have
+        // (possibly an old fix, possibly null) once it has run out
+        Handler handler = new Handler(Looper.getMainLooper());
+        Runnable expire = () -> {
+            mFusedLocationClient.removeLocationUpdates(callback);
+            completer.set(mLastFix);
+        };
+        handler.postDelayed(expire, ACTIVE_FIX_TIMEOUT_MS);
+        completer.addCancellationListener(() -> {
+            handler.removeCallbacks(expire);
+            mFusedLocationClient.removeLocationUpdates(callback);
+        }, Runnable::run);
+    }
+}
@@ -0,0 +1,74 @@
+package com.corvettecole.pixelwatchface;
+
+import org.json.JSONException;
+
+public class OpenWeatherMapProvider implements WeatherProvider {
+
+    public static final String NAME = OpenWeatherMapApi.NAME;
+    public static final String DEFAULT_BASE_URL = OpenWeatherMapApi.DEFAULT_BASE_URL;
+
+    private final String mBaseUrl;
+    private final String mApiKey;
+
+    /**
+     * @param baseUrl scheme and host to query, without a trailing slash. Overridable so the
+     *                provider can be pointed at a local mock server.
+     */
+    public OpenWeatherMapProvider(String baseUrl, String apiKey) {
+        mBaseUrl = baseUrl;
+        mApiKey = apiKey;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isConfigured() {
+        return mApiKey != null && !mApiKey.isEmpty();
+    }
+
+    @Override
+    public String buildUrl(double latitude, double longitude) {
+        return OpenWeatherMapApi.buildUrl(mBaseUrl, mApiKey, latitude, longitude);
+    }
+
+    @Override
+    public WeatherData parse(String body) throws JSONException {
+        return OpenWeatherMapApi.parse(body, Clock.get().currentTimeMillis());
+    }
+
+    @Override
+    public int getIconId(String iconName) {
+        switch (iconName) {
+            case "01n":
+                return R.drawable.clear_night;
+            case "02d":
+            case "03d":
+                return R.drawable.partly_cloudy;
+            case "02n":
+            case "03n":
+                return R.drawable.cloudy_night;
+            case "04d":
+            case "04n":
+                return R.drawable.cloudy;
+            case "09d":
+            case "09n":
+            case "10d":
+            case "10n":
+            case "11d":
+            case "11n":
+                return R.drawable.rain;
+            case "13d":
+            case "13n":
+                return R.drawable.snow;
+            case "50d":
+            case "50n":
+                return R.drawable.fog;
+            case "01d":
+            default:
+                return R.drawable.clear_day;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.corvettecole.pixelwatchface;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+
+import androidx.core.content.ContextCompat;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.corvettecole.pixelwatchface.Constants.KEY_OPPORTUNISTIC_FETCH;
+import static com.corvettecole.pixelwatchface.Constants.OPPORTUNISTIC_FETCH_AGE;
+import static com.corvettecole.pixelwatchface.Constants.OPPORTUNISTIC_WEATHER_WORKER;
+import static com.corvettecole.pixelwatchface.Constants.WEATHER_BACKOFF_DELAY;
+
+/**
+ * Fetches weather early when the radio is already up for something else. While the face is
+ * running it watches the default network: whenever the radio goes active, or the watch connects
+ * to the phone (whose Bluetooth proxy costs nothing extra to use), and the weather is older than
+ * {@link Constants#OPPORTUNISTIC_FETCH_AGE}, it queues a one-off fetch. Periodic fetches use
+ * {@link #isRadioWarm()} to put off waking a cold radio until the weather is truly stale.
+ */
+public class OpportunisticFetcher {
+
+    private static final String TAG = "OpportunisticFetcher";
+
+    private static volatile OpportunisticFetcher instance;
+
+    private final Context mContext;
+    private final ConnectivityManager mConnectivityManager;
+    private boolean mListening = false;
+
+    // every network with internet the callback has seen and not yet lost, split by whether it is
+    // the phone's Bluetooth proxy; several can be up at once, e.g. while handing over to Wi-Fi
+    private final Object mNetworkLock = new Object();
+    private final Set<Network> mBluetoothNetworks = new HashSet<>();
+    private final Set<Network> mOtherNetworks = new HashSet<>();
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            synchronized (mNetworkLock) {
+                // the transport isn't known until onCapabilitiesChanged
+                if (!mBluetoothNetworks.contains(network)) {
+                    mOtherNetworks.add(network);
+                }
+            }
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            boolean phoneConnected;
+            synchronized (mNetworkLock) {
+                if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_BLUETOOTH)) {
+                    mOtherNetworks.remove(network);
+                    phoneConnected = mBluetoothNetworks.isEmpty() && mBluetoothNetworks.add(network);
+                } else {
+                    mBluetoothNetworks.remove(network);
+                    mOtherNetworks.add(network);
+                    phoneConnected = false;
+                }
+            }
+            // capabilities change often (signal strength, validation); only the first
+            // Bluetooth network is the phone connecting
+            if (phoneConnected) {
+                onRadioWarm("phone");
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            synchronized (mNetworkLock) {
+                mBluetoothNetworks.remove(network);
+                mOtherNetworks.remove(network);
+            }
+        }
+    };
+
+    private final ConnectivityManager.OnNetworkActiveListener mNetworkActiveListener = () -> onRadioWarm("active");
+
+    private OpportunisticFetcher(Context context) {
+        if (instance != null) {
+            throw new RuntimeException("Use getInstance() method to get the single instance of this class");
+        } else {
+            mContext = context;
+            mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        }
+    }
+
+    public static OpportunisticFetcher getInstance(Context context) {
+        if (instance == null) {
+            synchronized (OpportunisticFetcher.class) {
+                if (instance == null) {
+                    instance = new OpportunisticFetcher(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Starts watching the network. Callbacks only fire while the process runs, which is while
+     * the face does.
+     */
+    public synchronized void start() {
+        if (mListening) {
+            return;
+        }
+        // registerDefaultNetworkCallback needs API 24, so follow any network with internet
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        mConnectivityManager.registerNetworkCallback(request, mNetworkCallback);
+        mConnectivityManager.addDefaultNetworkActiveListener(mNetworkActiveListener);
+        mListening = true;
+    }
+
+    public synchronized void stop() {
+        if (mListening) {
+            mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+            mConnectivityManager.removeDefaultNetworkActiveListener(mNetworkActiveListener);
+            mListening = false;
+            synchronized (mNetworkLock) {
+                mBluetoothNetworks.clear();
+                mOtherNetworks.clear();
+            }
+        }
+    }
+
+    /**
+     * @return whether a fetch right now rides on a radio that is already up: the phone's
+     * Bluetooth proxy, or a Wi-Fi or cellular radio in its high-power state
+     */
+    public boolean isRadioWarm() {
+        boolean otherNetworkAvailable;
+        synchronized (mNetworkLock) {
+            if (!mBluetoothNetworks.isEmpty()) {
+                return true;
+            }
+            otherNetworkAvailable = !mOtherNetworks.isEmpty();
+        }
+        // without callbacks registered we can't tell, so don't hold fetches back
+        return !mListening || (otherNetworkAvailable && mConnectivityManager.isDefaultNetworkActive());
+    }
+
+    private void onRadioWarm(String reason) {
+        Settings settings = Settings.getInstance(mContext);
+        if (!settings.isShowTemperature() && !settings.isShowWeatherIcon()) {
+            return;
+        }
+        if (ContextCompat.checkSelfPermission(mContext, Manifest.permission.ACCESS_FINE_LOCATION)
+                != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        CurrentWeather currentWeather = CurrentWeather.getInstance(mContext);
+        long age = Clock.get().currentTimeMillis() - currentWeather.getLastFetchTime();
+        if (currentWeather.isPhoneDataFresh() || age < TimeUnit.MINUTES.toMillis(OPPORTUNISTIC_FETCH_AGE)) {
+            return;
+        }
+        FaceLog.d(TAG, "radio warm ({}) and weather {} min old, fetching early", reason, TimeUnit.MILLISECONDS.toMinutes(age));
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+        OneTimeWorkRequest fetch = new OneTimeWorkRequest.Builder(WeatherUpdateWorker.class)
+                .setConstraints(constraints)
+                .setInputData(new Data.Builder().putBoolean(KEY_OPPORTUNISTIC_FETCH, true).build())
+                .setBackoffCriteria(BackoffPolicy.LINEAR, WEATHER_BACKOFF_DELAY, TimeUnit.MINUTES)
+                .build();
+        // the radio tends to go active several times in a row; one fetch is enough
+        WorkManager.getInstance(mContext).enqueueUniqueWork(OPPORTUNISTIC_WEATHER_WORKER, ExistingWorkPolicy.KEEP, fetch);
+    }
+}
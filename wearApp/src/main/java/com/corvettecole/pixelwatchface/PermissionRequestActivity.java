@@ -3,7 +3,6 @@ package com.corvettecole.pixelwatchface;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.pm.PackageManager;
-import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
 
@@ -19,7 +18,7 @@ public class PermissionRequestActivity extends Activity {
             for (int i = 0; i < permissions.length; i++) {
                 String permission = permissions[i];
                 int grantResult = grantResults[i];
-                Log.d("PermissionRequestActivity", "" + permission + " " + (grantResult==PackageManager.PERMISSION_GRANTED?"granted":"revoked"));
+                FaceLog.d("PermissionRequestActivity", "{} {}", permission, grantResult==PackageManager.PERMISSION_GRANTED?"granted":"revoked");
             }
         }
         finish();
@@ -0,0 +1,225 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.gms.wearable.DataClient;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Takes in what the phone puts on the Data Layer: settings deltas and weather snapshots. There is
+ * one per process, owned by {@link PixelWatchFace}, so however many engines are alive (the face,
+ * picker previews) each item is decoded, applied, persisted, acked and deleted once. Engines only
+ * see the results, a new {@link SettingsSnapshot} and fresh weather, on their next frame.
+ */
+public class PhoneSync implements DataClient.OnDataChangedListener {
+
+    private static final String TAG = "PhoneSync";
+
+    /**
+     * Data item path prefix the companion app puts versioned settings deltas under.
+     */
+    static final String SETTINGS_DELTA_PATH_PREFIX = "/settings/";
+
+    public interface Listener {
+        /**
+         * Called on the main thread once something from the phone has been applied.
+         *
+         * @param weatherUpdateRequired whether the settings changed in a way that needs fresh
+         *                              weather, e.g. a different provider
+         */
+        void onPhoneDataApplied(boolean weatherUpdateRequired);
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final SettingsAck mSettingsAck;
+    private final WakeUpLedger mWakeUpLedger = WakeUpLedger.getInstance();
+
+    public PhoneSync(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+        mSettingsAck = new SettingsAck(SettingsAck.dataLayer(mContext));
+    }
+
+    /**
+     * Starts listening, and picks up whatever the phone sent while nothing was.
+     */
+    public void start() {
+        Wearable.getDataClient(mContext).addListener(this);
+        applyPendingDeltas();
+    }
+
+    public void stop() {
+        Wearable.getDataClient(mContext).removeListener(this);
+        mExecutor.shutdown();
+    }
+
+    /**
+     * @return the ack every engine reports its frames to; the first frame drawn with a new
+     * version sends it
+     */
+    public SettingsAck getSettingsAck() {
+        return mSettingsAck;
+    }
+
+    @Override
+    public void onDataChanged(DataEventBuffer dataEvents) {
+        // wall clock rather than Clock.get(), since the phone compares it with its own
+        final long receivedAt = System.currentTimeMillis();
+        if (FaceLog.DEBUG) {
+            FaceLog.d(TAG, "Data changed");
+        }
+        // the buffer is only valid during this call; freeze what we need and decode it off
+        // the UI thread
+        List<DataItem> changedItems = new ArrayList<>();
+        for (DataEvent event : dataEvents) {
+            if (event.getType() == DataEvent.TYPE_CHANGED) {
+                changedItems.add(event.getDataItem().freeze());
+            }
+        }
+        if (!changedItems.isEmpty()) {
+            mExecutor.execute(() -> handleChangedItems(changedItems, receivedAt));
+        }
+    }
+
+    /**
+     * Decodes and applies data items from the phone. Runs on {@link #mExecutor}.
+     */
+    private void handleChangedItems(List<DataItem> changedItems, long receivedAt) {
+        long cpuStart = Debug.threadCpuTimeNanos();
+        Settings settings = Settings.getInstance(mContext);
+        List<DataMap> settingsDeltas = new ArrayList<>();
+        List<Uri> appliedDeltaUris = new ArrayList<>();
+        boolean weatherApplied = false;
+        for (DataItem item : changedItems) {
+            if (FaceLog.DEBUG) {
+                FaceLog.d(TAG, "DataItem uri: {}", item.getUri());
+            }
+            String path = item.getUri().getPath();
+            if (path.compareTo("/settings") == 0 || isSettingsDeltaPath(path)) {
+                FaceLog.d(TAG, "Companion app changed a setting!");
+                DataMap dataMap = DataMapItem.fromDataItem(item).getDataMap()
+                        .getDataMap("com.corvettecole.pixelwatchface");
+                if (dataMap != null) {
+                    settingsDeltas.add(dataMap);
+                }
+                if (isSettingsDeltaPath(path)) {
+                    appliedDeltaUris.add(item.getUri());
+                }
+            } else if (path.compareTo(WeatherSnapshot.PATH) == 0) {
+                byte[] snapshot = DataMapItem.fromDataItem(item).getDataMap().getByteArray(WeatherSnapshot.KEY_SNAPSHOT);
+                try {
+                    if (snapshot != null) {
+                        CurrentWeather.getInstance(mContext).applyPhoneSnapshot(WeatherSnapshot.decode(snapshot));
+                        weatherApplied = true;
+                    }
+                } catch (IOException e) {
+                    FaceLog.e(TAG, "Couldn't decode weather from phone: {}", e);
+                }
+            }
+        }
+
+        boolean weatherUpdateRequired = false;
+        if (!settingsDeltas.isEmpty()) {
+            // apply deltas in the order the phone produced them, then refresh once
+            Collections.sort(settingsDeltas, (a, b) -> Long.compare(a.getLong("version", 0), b.getLong("version", 0)));
+            for (DataMap delta : settingsDeltas) {
+                weatherUpdateRequired |= settings.updateSettings(delta);
+            }
+            DataMap newest = settingsDeltas.get(settingsDeltas.size() - 1);
+            mSettingsAck.onApplied(newest.getLong("version", 0), newest.getLong("timestamp", 0),
+                    receivedAt, System.currentTimeMillis());
+            // the temperature unit may have changed
+            WeatherComplicationProviderService.requestUpdate(mContext);
+        }
+        if (!settingsDeltas.isEmpty() || weatherApplied) {
+            boolean update = weatherUpdateRequired;
+            mMainHandler.post(() -> mListener.onPhoneDataApplied(update));
+        }
+
+        // every delta lives in its own data item, so clean them up once they're applied
+        DataClient dataClient = Wearable.getDataClient(mContext);
+        for (Uri uri : appliedDeltaUris) {
+            dataClient.deleteDataItems(uri);
+        }
+        mWakeUpLedger.record(WakeUpLedger.SOURCE_DATA_CHANGED, Debug.threadCpuTimeNanos() - cpuStart);
+    }
+
+    /**
+     * Picks up settings deltas the phone sent while nothing was listening. The listener only
+     * hears items that change while it is attached, so without this they would sit in the data
+     * layer until the next change, and be lost if that never came.
+     */
+    private void applyPendingDeltas() {
+        Uri deltas = new Uri.Builder().scheme(PutDataRequest.WEAR_URI_SCHEME).path(SETTINGS_DELTA_PATH_PREFIX).build();
+        Wearable.getDataClient(mContext).getDataItems(deltas, DataClient.FILTER_PREFIX)
+                .addOnSuccessListener(buffer -> {
+                    List<DataItem> items = new ArrayList<>();
+                    for (DataItem item : buffer) {
+                        items.add(item.freeze());
+                    }
+                    buffer.release();
+                    if (!items.isEmpty()) {
+                        long receivedAt = System.currentTimeMillis();
+                        mExecutor.execute(() -> handlePendingDeltas(items, receivedAt));
+                    }
+                })
+                .addOnFailureListener(e -> FaceLog.w(TAG, "Couldn't read pending settings: {}", e));
+    }
+
+    /**
+     * Applies the pending deltas newer than the settings we have and deletes the rest, which
+     * were applied before a restart but not yet cleaned up. Runs on {@link #mExecutor}.
+     */
+    private void handlePendingDeltas(List<DataItem> items, long receivedAt) {
+        long syncedVersion = Settings.getInstance(mContext).getVersion();
+        List<DataItem> newer = new ArrayList<>();
+        DataClient dataClient = Wearable.getDataClient(mContext);
+        for (DataItem item : items) {
+            String path = item.getUri().getPath();
+            if (!isSettingsDeltaPath(path)) {
+                continue;
+            }
+            if (Long.parseLong(path.substring(SETTINGS_DELTA_PATH_PREFIX.length())) > syncedVersion) {
+                newer.add(item);
+            } else {
+                dataClient.deleteDataItems(item.getUri());
+            }
+        }
+        FaceLog.i(TAG, "{} pending settings deltas, {} newer than v{}", items.size(), newer.size(), syncedVersion);
+        if (!newer.isEmpty()) {
+            handleChangedItems(newer, receivedAt);
+        }
+    }
+
+    private static boolean isSettingsDeltaPath(String path) {
+        if (!path.startsWith(SETTINGS_DELTA_PATH_PREFIX)) {
+            return false;
+        }
+        try {
+            Long.parseLong(path.substring(SETTINGS_DELTA_PATH_PREFIX.length()));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.corvettecole.pixelwatchface;
 
 import android.Manifest;
-import android.annotation.SuppressLint;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -11,48 +10,63 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.os.BatteryManager;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
-import android.os.Message;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.wearable.complications.ComplicationData;
+import android.support.wearable.complications.SystemProviders;
 import android.support.wearable.watchface.CanvasWatchFaceService;
 import android.support.wearable.watchface.WatchFaceStyle;
-import android.util.Log;
+import android.util.SparseArray;
 import android.view.SurfaceHolder;
 import android.view.WindowInsets;
 
 import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.wearable.DataClient;
-import com.google.android.gms.wearable.DataEvent;
-import com.google.android.gms.wearable.DataEventBuffer;
 import com.google.android.gms.wearable.DataItem;
 import com.google.android.gms.wearable.DataMap;
-import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
-import java.lang.ref.WeakReference;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.TimeZone;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.core.content.res.ResourcesCompat;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
 import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
+import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
 import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkInfo;
 import androidx.work.WorkManager;
 
+import static com.corvettecole.pixelwatchface.Constants.KEY_FORCE_WEATHER_UPDATE;
+import static com.corvettecole.pixelwatchface.Constants.OPPORTUNISTIC_WEATHER_WORKER;
 import static com.corvettecole.pixelwatchface.Constants.WEATHER_BACKOFF_DELAY;
 import static com.corvettecole.pixelwatchface.Constants.WEATHER_UPDATE_INTERVAL;
 import static com.corvettecole.pixelwatchface.Constants.WEATHER_UPDATE_WORKER;
 import static com.corvettecole.pixelwatchface.Utils.drawableToBitmap;
-import static com.corvettecole.pixelwatchface.Utils.getHour;
 
 /**
  * Important Note: Because watch face apps do not have a default Activity in
@@ -69,124 +83,513 @@ public class PixelWatchFace extends CanvasWatchFaceService {
      */
     private static final long INTERACTIVE_UPDATE_RATE_MS = TimeUnit.MINUTES.toMillis(1);
 
+    private static final int LEFT_COMPLICATION_ID = 0;
+    private static final int RIGHT_COMPLICATION_ID = 1;
+    private static final int[] COMPLICATION_IDS = {LEFT_COMPLICATION_ID, RIGHT_COMPLICATION_ID};
+
+    /**
+     * Unit offsets of the burn-in orbit, visited one per minute.
+     */
+    private static final float[] BURN_IN_ORBIT_X = {0, 1, 1, 1, 0, -1, -1, -1};
+    private static final float[] BURN_IN_ORBIT_Y = {-1, -1, 0, 1, 1, 1, 0, -1};
+
+    private static final SettingsSnapshot DEFAULT_SETTINGS = SettingsSnapshot.defaults();
+
     /**
-     * Handler message id for updating the time periodically in interactive mode.
+     * How many recent frame times each engine keeps for {@link #dump}.
      */
-    private static final int MSG_UPDATE_TIME = 0;
+    private static final int FRAME_HISTORY = 64;
+
+    /**
+     * Runs the engine warm-up tasks. Threads time out when idle so a running face doesn't keep
+     * them around.
+     */
+    private static final ThreadPoolExecutor sWarmUpExecutor =
+            new ThreadPoolExecutor(3, 3, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
+    static {
+        sWarmUpExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static long sServiceCreatedAt;
+
+    private static final long ONE_MIN = 60000;
+
+    // engines of this service, for memory trimming; main thread only
+    private final List<Engine> mEngines = new ArrayList<>();
+
+    // takes in settings and weather from the phone once for every engine
+    private PhoneSync mPhoneSync;
+
+    private long mPermissionRequestedTime = 0;
+
+    // last known state of each unique work, for dump(), which mustn't block on WorkManager's
+    // database; kept up to date by observers registered in onCreate
+    private final Map<String, List<WorkInfo>> mWorkInfos = new ConcurrentHashMap<>();
+    private final Map<LiveData<List<WorkInfo>>, Observer<List<WorkInfo>>> mWorkObservers = new HashMap<>();
+
+    @Override
+    public void onCreate() {
+        sServiceCreatedAt = SystemClock.elapsedRealtime();
+        WakeUpLedger.getInstance().setWarnOverBudget(BuildConfig.DEBUG);
+        super.onCreate();
+        // Initializes syncing with companion app
+        mPhoneSync = new PhoneSync(this, this::onPhoneDataApplied);
+        mPhoneSync.start();
+        observeWork(WEATHER_UPDATE_WORKER);
+        observeWork(OPPORTUNISTIC_WEATHER_WORKER);
+    }
+
+    @Override
+    public void onDestroy() {
+        mPhoneSync.stop();
+        for (Map.Entry<LiveData<List<WorkInfo>>, Observer<List<WorkInfo>>> entry : mWorkObservers.entrySet()) {
+            entry.getKey().removeObserver(entry.getValue());
+        }
+        mWorkObservers.clear();
+        super.onDestroy();
+    }
+
+    private void observeWork(String uniqueName) {
+        LiveData<List<WorkInfo>> workInfos = WorkManager.getInstance(this).getWorkInfosForUniqueWorkLiveData(uniqueName);
+        Observer<List<WorkInfo>> observer = infos -> {
+            if (infos != null) {
+                mWorkInfos.put(uniqueName, infos);
+            }
+        };
+        workInfos.observeForever(observer);
+        mWorkObservers.put(workInfos, observer);
+    }
 
     @Override
     public Engine onCreateEngine() {
         return new Engine();
     }
 
-    private static class EngineHandler extends Handler {
-        private final WeakReference<PixelWatchFace.Engine> mWeakReference;
+    /**
+     * Under memory pressure, drops every cache that is rebuilt on demand (the weather icon,
+     * complication and trend bitmaps) so the face is less likely to be killed. Fonts and logos in
+     * use stay.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimCaches();
+            FaceLog.i("memory", "trimmed caches at level {}, {}", level, reportBitmapMemory());
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        trimCaches();
+        FaceLog.i("memory", "trimmed caches on low memory, {}", reportBitmapMemory());
+    }
 
-        public EngineHandler(PixelWatchFace.Engine reference) {
-            mWeakReference = new WeakReference<>(reference);
+    private void trimCaches() {
+        for (Engine engine : mEngines) {
+            engine.trimMemory();
         }
+        CurrentWeather.getInstance(this).trimMemory();
+    }
 
-        @Override
-        public void handleMessage(Message msg) {
-            PixelWatchFace.Engine engine = mWeakReference.get();
-            if (engine != null) {
-                switch (msg.what) {
-                    case MSG_UPDATE_TIME:
-                        engine.handleUpdateTimeMessage();
-                        break;
+    /**
+     * @return bytes held by each kind of bitmap the face keeps around
+     */
+    String reportBitmapMemory() {
+        long complicationBytes = 0;
+        long sceneBytes = 0;
+        for (Engine engine : mEngines) {
+            complicationBytes += engine.getComplicationBitmapBytes();
+            sceneBytes += engine.mScene.getBitmapBytes();
+        }
+        return String.format("bitmaps: complications %d KB, scene %d KB, weather icon %d KB; %s",
+                complicationBytes / 1024, sceneBytes / 1024, CurrentWeather.getInstance(this).getBitmapBytes() / 1024,
+                RenderResourcePool.getInstance().report());
+    }
+
+    /**
+     * Diagnostics for {@code adb shell dumpsys activity service
+     * com.corvettecole.pixelwatchface/.PixelWatchFace}; add {@code log} for the recent log trail.
+     * Every line is {@code key=value}, with keys namespaced by where they come from
+     * ({@code weather.}, {@code work.}, {@code memory.}, {@code metrics.}, {@code wake_ups.},
+     * {@code log.}). Process-wide keys come first, then each engine's under its own prefix.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter out, String[] args) {
+        long now = Clock.get().currentTimeMillis();
+
+        CurrentWeather weather = CurrentWeather.getInstance(this);
+        out.print("weather.provider="); out.println(weather.getWeatherProvider());
+        out.print("weather.observation_age_s="); out.println(weather.getTime() > 0 ? now / 1000 - weather.getTime() : -1);
+        long lastFetchTime = weather.getLastFetchTime();
+        out.print("weather.fetch_age_s="); out.println(lastFetchTime > 0 ? (now - lastFetchTime) / 1000 : -1);
+        out.print("weather.phone_data_fresh="); out.println(weather.isPhoneDataFresh());
+        out.print("weather.radio_warm="); out.println(OpportunisticFetcher.getInstance(this).isRadioWarm());
+        out.print("weather.history_samples="); out.println(weather.getHistory().size());
+        out.print("weather.sun_phase="); out.println(SunTimes.getInstance(this).getPhase(now));
+
+        dumpWork(out, WEATHER_UPDATE_WORKER);
+        dumpWork(out, OPPORTUNISTIC_WEATHER_WORKER);
+
+        out.print("memory.weather_icon_bytes="); out.println(weather.getBitmapBytes());
+        RenderResourcePool.getInstance().dump(out, "memory.");
+        WeatherMetrics.getInstance().dump(out, "metrics.");
+        WakeUpLedger.getInstance().dump(out, "wake_ups.");
+
+        for (String arg : args) {
+            if ("log".equals(arg)) {
+                FaceLog.dump(out, "log.");
+            }
+        }
+        // each engine's dump follows
+        super.dump(fd, out, args);
+    }
+
+    private void dumpWork(PrintWriter out, String uniqueName) {
+        List<WorkInfo> infos = mWorkInfos.get(uniqueName);
+        if (infos == null) {
+            // WorkManager hasn't reported yet
+            out.print("work."); out.print(uniqueName); out.println(".state=unknown");
+            return;
+        }
+        for (WorkInfo info : infos) {
+            out.print("work."); out.print(uniqueName); out.print(".state="); out.println(info.getState());
+            out.print("work."); out.print(uniqueName); out.print(".run_attempts="); out.println(info.getRunAttemptCount());
+        }
+    }
+
+    /**
+     * Invalidates every engine so it picks up what the phone sent, and fetches weather now if
+     * the new settings call for it.
+     */
+    private void onPhoneDataApplied(boolean weatherUpdateRequired) {
+        if (weatherUpdateRequired) {
+            initWeatherUpdater(Settings.getInstance(this), true);
+        }
+        for (Engine engine : mEngines) {
+            engine.invalidate();
+        }
+    }
+
+    /**
+     * Starts whatever keeps the weather fresh if the face shows any, asking for the location
+     * permission first if it hasn't been granted. Main thread only.
+     *
+     * @param settings    null until an engine's warm-up has loaded them, which then calls this
+     *                    again
+     * @param forceUpdate fetch now rather than leaving it to the periodic work
+     */
+    private void initWeatherUpdater(Settings settings, boolean forceUpdate){
+        String TAG = "initWeatherUpdater";
+        if (settings == null) {
+            return;
+        }
+        if (settings.isShowTemperature() || settings.isShowWeatherIcon()) {
+            if (ActivityCompat.checkSelfPermission(getApplicationContext(), Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+                    FaceLog.d(TAG, "requesting permission");
+                requestPermissions();
+            } else {
+                LocationCache.getInstance(getApplicationContext()).startPassiveUpdates();
+                OpportunisticFetcher.getInstance(getApplicationContext()).start();
+                if (forceUpdate) {
+                    Constraints constraints = new Constraints.Builder()
+                            .setRequiredNetworkType(NetworkType.CONNECTED)
+                            .build();
+                    OneTimeWorkRequest forceWeatherUpdate =
+                            new OneTimeWorkRequest.Builder(WeatherUpdateWorker.class)
+                                    .setConstraints(constraints)
+                                    .setInputData(new Data.Builder().putBoolean(KEY_FORCE_WEATHER_UPDATE, true).build())
+                                    .setBackoffCriteria(BackoffPolicy.LINEAR, WEATHER_BACKOFF_DELAY, TimeUnit.MINUTES)
+                                    .build();
+                    WorkManager.getInstance(getApplicationContext()).enqueue(forceWeatherUpdate);
+                } else {
+                    FaceLog.d(TAG, "setting up weather periodic request");
+                    Constraints constraints = new Constraints.Builder()
+                            .setRequiredNetworkType(NetworkType.CONNECTED)
+                            .build();
+                    PeriodicWorkRequest weatherUpdater =
+                            new PeriodicWorkRequest.Builder(WeatherUpdateWorker.class, WEATHER_UPDATE_INTERVAL, TimeUnit.MINUTES)
+                                    .setConstraints(constraints)
+                                    .addTag(WEATHER_UPDATE_WORKER)
+                                    .setBackoffCriteria(BackoffPolicy.LINEAR, WEATHER_BACKOFF_DELAY, TimeUnit.MINUTES)
+                                    .build();
+                    WorkManager.getInstance(getApplicationContext())
+                            .enqueueUniquePeriodicWork(WEATHER_UPDATE_WORKER, ExistingPeriodicWorkPolicy.KEEP, weatherUpdater);
+                    //mWeatherUpdaterInitialized = true;
                 }
             }
         }
     }
 
-    private class Engine extends CanvasWatchFaceService.Engine implements DataClient.OnDataChangedListener {
+    private void requestPermissions() {
+        long now = Clock.get().currentTimeMillis();
+        if (mPermissionRequestedTime == 0 || mPermissionRequestedTime - now > ONE_MIN) {
+            FaceLog.d("requestPermission", "Actually requesting permission, more than one minute has passed");
+            mPermissionRequestedTime = now;
+            if (ContextCompat.checkSelfPermission(getApplication(), Manifest.permission.ACCESS_FINE_LOCATION)
+                    != PackageManager.PERMISSION_GRANTED) {
+                Intent mPermissionRequestIntent = new Intent(getBaseContext(), PermissionRequestActivity.class);
+                mPermissionRequestIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                mPermissionRequestIntent.putExtra("KEY_PERMISSIONS", Manifest.permission.ACCESS_FINE_LOCATION);
+                //mPermissionRequestIntent.putExtra("KEY_PERMISSIONS", new String[]{Manifest.permission.ACCESS_COARSE_LOCATION, Manifest.permission.ACCESS_FINE_LOCATION});
+                startActivity(mPermissionRequestIntent);
+            }
+        }
+    }
+
+    /**
+     * @return how long the interactive timer waits from {@code now} until the next update, lined
+     * up with the start of the next minute
+     */
+    static long getTimerDelay(long now) {
+        return INTERACTIVE_UPDATE_RATE_MS - (now % INTERACTIVE_UPDATE_RATE_MS);
+    }
 
-        private final Handler mUpdateTimeHandler = new EngineHandler(this);
+    /**
+     * Sets {@code out} to how far ambient content is shifted at {@code now} on screens that need
+     * burn-in protection: one step a minute around a small orbit of {@code radius} pixels, so no
+     * pixel stays lit for more than a minute at a time.
+     */
+    static void getBurnInOffset(long now, float radius, PointF out) {
+        int step = (int) ((now / TimeUnit.MINUTES.toMillis(1)) % BURN_IN_ORBIT_X.length);
+        out.set(BURN_IN_ORBIT_X[step] * radius, BURN_IN_ORBIT_Y[step] * radius);
+    }
+
+    private class Engine extends CanvasWatchFaceService.Engine {
+
+        // posted through the Clock rather than a Handler so a SimulatedClock can drive it;
+        // removed in onDestroy, so it never outlives the engine
+        private final Runnable mUpdateTimeTask = this::handleUpdateTimeMessage;
+        private final WakeUpLedger mWakeUpLedger = WakeUpLedger.getInstance();
         private Calendar mCalendar;
         private final BroadcastReceiver mTimeZoneReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                mCalendar.setTimeZone(TimeZone.getDefault());
+                long cpuStart = Debug.threadCpuTimeNanos();
+                mCalendar.setTimeZone(Clock.get().getTimeZone());
                 invalidate();
+                mWakeUpLedger.record(WakeUpLedger.SOURCE_TIME_ZONE, Debug.threadCpuTimeNanos() - cpuStart);
             }
         };
         private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                long cpuStart = Debug.threadCpuTimeNanos();
                 mBatteryLevel = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
+                mWakeUpLedger.record(WakeUpLedger.SOURCE_BATTERY, Debug.threadCpuTimeNanos() - cpuStart);
             }
         };
 
         private FusedLocationProviderClient mFusedLocationClient;
-        private final Bitmap mWearOSBitmap = drawableToBitmap(getDrawable(R.drawable.ic_wear_os_logo));
-        private final Bitmap mWearOSBitmapAmbient = drawableToBitmap(getDrawable(R.drawable.ic_wear_os_logo_ambient));
+        // loaded in the background by warmUp(), null until ready
+        private volatile Bitmap mWearOSBitmap;
+        private volatile Bitmap mWearOSBitmapAmbient;
         private boolean mRegisteredTimeZoneReceiver = false;
         private boolean mRegisteredBatteryReceiver = false;
         private Paint mBackgroundPaint;
-        private Paint mTimePaint;
-        private Paint mInfoPaint;
+        // one per mode, rebuilt only when text sizes, typefaces or ambient settings change
+        private RenderProfile[] mProfiles;
+        private RenderProfile mProfile;
+        private long mProfilesSettingsVersion = -1;
+        private float mTimeTextSize;
+        private float mInfoTextSize;
+        private int mTextColor;
+        private int mTextColorAmbient;
         private int mBatteryLevel;
         /**
          * Whether the display supports fewer bits for each color in ambient mode. When true, we
          * disable anti-aliasing in ambient mode.
          */
         private boolean mLowBitAmbient;
+        /**
+         * Whether the display can burn in. When true, ambient content moves around a small orbit
+         * every minute and the weather icon, the largest filled area, is hidden in ambient.
+         */
         private boolean mBurnInProtection;
+        private float mBurnInRadius;
+        private final PointF mBurnInOffset = new PointF();
         private boolean mAmbient;
 
-        private long mPermissionRequestedTime = 0;
+        private volatile Typeface mProductSans;
+        private volatile Typeface mProductSansThin;
+
+        private volatile CurrentWeather mCurrentWeather;
+        private volatile Settings mSettings;
 
-        private Typeface mProductSans;
-        private Typeface mProductSansThin;
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        private long mEngineCreatedAt;
+        private boolean mFirstFrameDrawn = false;
+        private boolean mFirstCompleteFrameDrawn = false;
 
+        private final SparseArray<ComplicationSlot> mComplicationSlots = new SparseArray<>();
 
-        private CurrentWeather mCurrentWeather = CurrentWeather.getInstance(getApplicationContext());
-        private Settings mSettings = Settings.getInstance(getApplicationContext());
+        private final RenderResourcePool mResourcePool = RenderResourcePool.getInstance();
+        // pool keys this engine holds a reference on, released in onDestroy
+        private final List<String> mPooledResources = new ArrayList<>();
+        private boolean mDestroyed = false;
 
-        private final long ONE_MIN = 60000;
+        private WatchFaceScene mScene;
+        // onDraw durations, most recent at (mFrames - 1) % FRAME_HISTORY
+        private final long[] mFrameNanos = new long[FRAME_HISTORY];
+        private long mFrames = 0;
+        private int mSunPhase = SunTimes.UNKNOWN;
 
         @Override
         public void onCreate(SurfaceHolder holder) {
             super.onCreate(holder);
+            mEngineCreatedAt = SystemClock.elapsedRealtime();
+            mEngines.add(this);
+            warmUp();
 
             setWatchFaceStyle(new WatchFaceStyle.Builder(PixelWatchFace.this)
                     .build());
 
-            mCalendar = Calendar.getInstance();
-            //Resources resources = PixelWatchFace.this.getResources();
+            int backgroundColor = ContextCompat.getColor(getApplicationContext(), R.color.background);
+            for (int id : COMPLICATION_IDS) {
+                mComplicationSlots.put(id, new ComplicationSlot(PixelWatchFace.this, id, backgroundColor));
+            }
+            setActiveComplications(COMPLICATION_IDS);
+            setDefaultSystemComplicationProvider(LEFT_COMPLICATION_ID, SystemProviders.STEP_COUNT, ComplicationData.TYPE_SHORT_TEXT);
+            setDefaultSystemComplicationProvider(RIGHT_COMPLICATION_ID, SystemProviders.WORLD_CLOCK, ComplicationData.TYPE_SHORT_TEXT);
 
-            // Initializes syncing with companion app
-            Wearable.getDataClient(getApplicationContext()).addListener(this);
+            mCalendar = Clock.get().newCalendar();
+            //Resources resources = PixelWatchFace.this.getResources();
 
             // Initializes background.
             mBackgroundPaint = new Paint();
             mBackgroundPaint.setColor(
                     ContextCompat.getColor(getApplicationContext(), R.color.background));
-            mProductSans = ResourcesCompat.getFont(getApplicationContext(), R.font.product_sans_regular);
-            mProductSansThin = ResourcesCompat.getFont(getApplicationContext(), R.font.product_sans_thin);
+            mScene = new WatchFaceScene(mBackgroundPaint);
+            // Initializes Watch Face. Typefaces start out as the system font and are swapped in
+            // once warmUp() has loaded them.
+            mTextColor = ContextCompat.getColor(getApplicationContext(), R.color.digital_text);
+            mTextColorAmbient = ContextCompat.getColor(getApplicationContext(), R.color.digital_text_ambient);
+            mBurnInRadius = 3 * getResources().getDisplayMetrics().density;
+            rebuildProfiles();
+        }
 
-            // Initializes Watch Face.
-            mTimePaint = new Paint();
-            mTimePaint.setTypeface(mProductSans);
-            mTimePaint.setAntiAlias(true);
-            mTimePaint.setColor(
-                    ContextCompat.getColor(getApplicationContext(), R.color.digital_text));
-            mTimePaint.setStrokeWidth(3f);
+        /**
+         * Loads fonts, the logo bitmaps and persisted state in parallel on {@link #sWarmUpExecutor}
+         * so none of it delays the first frame. Until each piece arrives, onDraw falls back to
+         * the system font, no logo and default settings. Fonts and bitmaps come from the
+         * {@link RenderResourcePool}, so engines after the first get them without loading.
+         */
+        private void warmUp() {
+            Context context = getApplicationContext();
+            int densityDpi = context.getResources().getDisplayMetrics().densityDpi;
+            sWarmUpExecutor.execute(() -> {
+                mProductSans = acquirePooled(RenderResourcePool.key("product_sans_regular", 0, 0, 0, null),
+                        () -> ResourcesCompat.getFont(context, R.font.product_sans_regular));
+                mMainHandler.post(this::rebuildProfiles);
+            });
+            sWarmUpExecutor.execute(() -> {
+                mProductSansThin = acquirePooled(RenderResourcePool.key("product_sans_thin", 0, 0, 0, null),
+                        () -> ResourcesCompat.getFont(context, R.font.product_sans_thin));
+                mMainHandler.post(this::rebuildProfiles);
+            });
+            sWarmUpExecutor.execute(() -> {
+                mWearOSBitmap = acquirePooled(RenderResourcePool.key("ic_wear_os_logo", 0, 0, densityDpi, "interactive"),
+                        () -> drawableToBitmap(context.getDrawable(R.drawable.ic_wear_os_logo)));
+                mWearOSBitmapAmbient = acquirePooled(RenderResourcePool.key("ic_wear_os_logo", 0, 0, densityDpi, "ambient"),
+                        () -> drawableToBitmap(context.getDrawable(R.drawable.ic_wear_os_logo_ambient)));
+                postInvalidate();
+            });
+            sWarmUpExecutor.execute(() -> {
+                mSettings = Settings.getInstance(context);
+                mCurrentWeather = CurrentWeather.getInstance(context);
+                mMainHandler.post(() -> {
+                    rebuildProfiles();
+                    initWeatherUpdater(mSettings, false);
+                });
+            });
+        }
 
-            mInfoPaint = new Paint();
-            mInfoPaint.setTypeface(mProductSans);
-            mInfoPaint.setAntiAlias(true);
-            mInfoPaint.setColor(ContextCompat.getColor(getApplicationContext(), R.color.digital_text));
-            mInfoPaint.setStrokeWidth(2f);
+        private void trimMemory() {
+            for (int i = 0; i < mComplicationSlots.size(); i++) {
+                mComplicationSlots.valueAt(i).trimMemory();
+            }
+            mScene.trimMemory();
+        }
 
+        private long getComplicationBitmapBytes() {
+            long bytes = 0;
+            for (int i = 0; i < mComplicationSlots.size(); i++) {
+                bytes += mComplicationSlots.valueAt(i).getBitmapBytes();
+            }
+            return bytes;
+        }
+
+        private <T> T acquirePooled(String key, RenderResourcePool.Loader<T> loader) {
+            T resource = mResourcePool.acquire(key, loader);
+            synchronized (mPooledResources) {
+                if (mDestroyed) {
+                    // warm-up outlived the engine
+                    mResourcePool.release(key);
+                } else {
+                    mPooledResources.add(key);
+                }
+            }
+            return resource;
+        }
+
+        private boolean isWarmedUp() {
+            return mProductSans != null && mProductSansThin != null && mWearOSBitmap != null
+                    && mWearOSBitmapAmbient != null && mSettings != null;
+        }
+
+        /**
+         * Builds the render profile for every mode from the current text sizes, whichever
+         * typefaces have loaded so far and the ambient settings, and redraws with them. Main
+         * thread only.
+         */
+        private void rebuildProfiles() {
+            buildProfiles();
+            invalidate();
+        }
 
+        private void buildProfiles() {
+            SettingsSnapshot settings = mSettings != null ? mSettings.getSnapshot() : DEFAULT_SETTINGS;
+            // the battery keeps the interactive color in ambient unless the info bar is shown
+            int infoAmbientColor = settings.isShowInfoBarAmbient() ? mTextColorAmbient : mTextColor;
+            mProfiles = RenderProfile.buildAll(mTimeTextSize, mInfoTextSize, mProductSans, mProductSansThin,
+                    settings.isUseThinAmbient(), mTextColor, infoAmbientColor);
+            mProfilesSettingsVersion = settings.getVersion();
+            selectProfile();
+        }
+
+        private void selectProfile() {
+            SettingsSnapshot settings = mSettings != null ? mSettings.getSnapshot() : DEFAULT_SETTINGS;
+            if (!mAmbient) {
+                mProfile = mProfiles[RenderProfile.INTERACTIVE];
+            } else if (mLowBitAmbient) {
+                mProfile = mProfiles[RenderProfile.LOW_BIT_AMBIENT];
+            } else if (settings.isUseThinAmbient()) {
+                mProfile = mProfiles[RenderProfile.AMBIENT_THIN];
+            } else {
+                mProfile = mProfiles[RenderProfile.AMBIENT_STROKE];
+            }
         }
 
         @Override
         public void onDestroy() {
-            mUpdateTimeHandler.removeMessages(MSG_UPDATE_TIME);
-            Wearable.getDataClient(getApplicationContext()).removeListener(this);
-            WorkManager.getInstance(getApplicationContext()).cancelAllWorkByTag(WEATHER_UPDATE_WORKER);
+            Clock.get().removeCallbacks(mUpdateTimeTask);
+            mEngines.remove(this);
+            // the periodic work, location listener and fetcher are process-wide; a preview
+            // engine going away mustn't stop them for the face still on the wrist
+            if (mEngines.isEmpty()) {
+                WorkManager.getInstance(getApplicationContext()).cancelAllWorkByTag(WEATHER_UPDATE_WORKER);
+                LocationCache.getInstance(getApplicationContext()).stopPassiveUpdates();
+                OpportunisticFetcher.getInstance(getApplicationContext()).stop();
+            }
+            synchronized (mPooledResources) {
+                for (String key : mPooledResources) {
+                    mResourcePool.release(key);
+                }
+                mPooledResources.clear();
+                mDestroyed = true;
+            }
             super.onDestroy();
         }
 
@@ -198,7 +601,7 @@ public class PixelWatchFace extends CanvasWatchFaceService {
                 registerReceivers();
 
                 // Update time zone in case it changed while we weren't visible.
-                mCalendar.setTimeZone(TimeZone.getDefault());
+                mCalendar.setTimeZone(Clock.get().getTimeZone());
                 invalidate();
             } else {
                 unregisterReceivers();
@@ -251,10 +654,48 @@ public class PixelWatchFace extends CanvasWatchFaceService {
             float dateTextSize = resources.getDimension(isRound
                     ? R.dimen.digital_date_text_size_round : R.dimen.digital_date_text_size);
 
-            mTimePaint.setTextSize(timeTextSize);
-            mInfoPaint.setTextSize(dateTextSize);
+            if (timeTextSize != mTimeTextSize || dateTextSize != mInfoTextSize) {
+                mTimeTextSize = timeTextSize;
+                mInfoTextSize = dateTextSize;
+                rebuildProfiles();
+            }
+        }
+
+        @Override
+        public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            super.onSurfaceChanged(holder, format, width, height);
+
+            // a slot either side of the battery, below the info bar
+            int size = width / 5;
+            int centerY = height * 4 / 5;
+            Rect left = new Rect(width / 4 - size / 2, centerY - size / 2, width / 4 + size / 2, centerY + size / 2);
+            Rect right = new Rect(width * 3 / 4 - size / 2, centerY - size / 2, width * 3 / 4 + size / 2, centerY + size / 2);
+            mComplicationSlots.get(LEFT_COMPLICATION_ID).setBounds(left);
+            mComplicationSlots.get(RIGHT_COMPLICATION_ID).setBounds(right);
+            // the temperature trend between them
+            mScene.setSparklineBounds(new Rect(left.right + size / 4, centerY - size / 4, right.left - size / 4, centerY + size / 4));
+        }
 
+        @Override
+        public void onComplicationDataUpdate(int complicationId, ComplicationData complicationData) {
+            super.onComplicationDataUpdate(complicationId, complicationData);
+            ComplicationSlot slot = mComplicationSlots.get(complicationId);
+            if (slot != null) {
+                slot.setData(complicationData);
+                invalidate();
+            }
+        }
 
+        @Override
+        public void onTapCommand(int tapType, int x, int y, long eventTime) {
+            if (tapType == TAP_TYPE_TAP) {
+                for (int i = 0; i < mComplicationSlots.size(); i++) {
+                    if (mComplicationSlots.valueAt(i).onTap(x, y)) {
+                        return;
+                    }
+                }
+            }
+            super.onTapCommand(tapType, x, y, eventTime);
         }
 
         @Override
@@ -262,17 +703,24 @@ public class PixelWatchFace extends CanvasWatchFaceService {
             super.onPropertiesChanged(properties);
             mLowBitAmbient = properties.getBoolean(PROPERTY_LOW_BIT_AMBIENT, false);
             mBurnInProtection = properties.getBoolean(PROPERTY_BURN_IN_PROTECTION, false);
+            selectProfile();
+            for (int i = 0; i < mComplicationSlots.size(); i++) {
+                mComplicationSlots.valueAt(i).setDisplayProperties(mLowBitAmbient, mBurnInProtection);
+            }
         }
 
         @Override
         public void onTimeTick() {
+            long cpuStart = Debug.threadCpuTimeNanos();
             super.onTimeTick();
             invalidate(); // forces redraw (calls onDraw)
-            String TAG = "onTimeTick";
-            Log.d(TAG, "onTimeTick called");
+            if (FaceLog.DEBUG) {
+                FaceLog.d("onTimeTick", "onTimeTick called");
+            }
             //if (!mWeatherUpdaterInitialized) {
-                initWeatherUpdater(false);
+                initWeatherUpdater(mSettings, false);
             //}
+            mWakeUpLedger.record(WakeUpLedger.SOURCE_TIME_TICK, Debug.threadCpuTimeNanos() - cpuStart);
         }
 
         @Override
@@ -280,27 +728,12 @@ public class PixelWatchFace extends CanvasWatchFaceService {
             super.onAmbientModeChanged(inAmbientMode);
 
             mAmbient = inAmbientMode;
-            if (mLowBitAmbient) {
-                mTimePaint.setAntiAlias(!inAmbientMode);
-                mInfoPaint.setAntiAlias(!inAmbientMode);
-            }
-
-            if (inAmbientMode) {
-                mTimePaint.setStyle(Paint.Style.STROKE);
-                if (mSettings.isUseThinAmbient()){
-                    mTimePaint.setStyle(Paint.Style.FILL);
-                    mTimePaint.setTypeface(mProductSansThin);
-                }
-                if (mSettings.isShowInfoBarAmbient()) {
-                    //TODO: change date between the pixel ambient gray and white instead of making it stroked
-                    mInfoPaint.setColor(ContextCompat.getColor(getApplicationContext(), R.color.digital_text_ambient));
-                }
-            } else {
-                mTimePaint.setStyle(Paint.Style.FILL);
-                mInfoPaint.setStyle(Paint.Style.FILL);
-                mInfoPaint.setColor(ContextCompat.getColor(getApplicationContext(), R.color.digital_text));
-
+            for (int i = 0; i < mComplicationSlots.size(); i++) {
+                mComplicationSlots.valueAt(i).setAmbient(inAmbientMode);
             }
+            // every mode's paints and measurements are prebuilt, so this is just a swap
+            selectProfile();
+            invalidate();
 
             // Whether the timer should be running depends on whether we're visible (as well as
             // whether we're in ambient mode), so we may need to start or stop the timer.
@@ -308,216 +741,164 @@ public class PixelWatchFace extends CanvasWatchFaceService {
         }
 
 
-        @SuppressLint("DefaultLocale")
         @Override
         public void onDraw(Canvas canvas, Rect bounds) {
-            final String TAG = "onDraw";
-
-            // Draw the background.
-            //canvas.drawColor(Color.BLACK);  // test not drawing background every render pass
-            canvas.drawRect(0, 0, bounds.width(), bounds.height(), mBackgroundPaint);
-
-
-            // Draw H:MM
-            long now = System.currentTimeMillis();
+            final long frameStart = SystemClock.elapsedRealtimeNanos();
+            final Settings settingsHolder = mSettings;
+            final SettingsSnapshot settings = settingsHolder != null ? settingsHolder.getSnapshot() : DEFAULT_SETTINGS;
+            final CurrentWeather currentWeather = mCurrentWeather;
+            final boolean showTemperature = settings.isShowTemperature() && currentWeather != null;
+            final boolean burnInShift = mAmbient && mBurnInProtection;
+            final boolean showWeatherIcon = settings.isShowWeatherIcon() && currentWeather != null && !burnInShift;
+            final Bitmap wearOSBitmap = mAmbient ? mWearOSBitmapAmbient : mWearOSBitmap;
+            if (settings.getVersion() != mProfilesSettingsVersion) {
+                buildProfiles();
+            }
+            final RenderProfile profile = mProfile;
+            long now = Clock.get().currentTimeMillis();
             mCalendar.setTimeInMillis(now);
 
-            // pad hour with 0 or not depending on if 24 hour time is being used
-            String mTimeText = "";
-            if (mSettings.isUse24HourTime()) {
-                mTimeText = String.format("%02d:%02d", getHour(mCalendar, true), mCalendar.get(Calendar.MINUTE));
-            } else {
-                mTimeText = String.format("%d:%02d", getHour(mCalendar, false), mCalendar.get(Calendar.MINUTE));
+            if (currentWeather != null) {
+                // the weather complication shows day and night icons too, but only changes when pushed
+                int sunPhase = SunTimes.getInstance(getApplicationContext()).getPhase(now);
+                if (sunPhase != mSunPhase) {
+                    if (mSunPhase != SunTimes.UNKNOWN) {
+                        WeatherComplicationProviderService.requestUpdate(getApplicationContext());
+                    }
+                    mSunPhase = sunPhase;
+                }
             }
 
-            float mTimeXOffset = computeXOffset(mTimeText, mTimePaint, bounds);
-            float timeYOffset = computeTimeYOffset(mTimeText, mTimePaint, bounds);
-            canvas.drawText(mTimeText, mTimeXOffset, timeYOffset, mTimePaint);
-            String dateText;
-            if (mSettings.isUseEuropeanDateFormat()) {
-                dateText = String.format("%.3s, %d %.3s", android.text.format.DateFormat.format("EEEE", mCalendar), mCalendar.get(Calendar.DAY_OF_MONTH),
-                        android.text.format.DateFormat.format("MMMM", mCalendar));
-            } else {
-                dateText = String.format("%.3s, %.3s %d", android.text.format.DateFormat.format("EEEE", mCalendar),
-                        android.text.format.DateFormat.format("MMMM", mCalendar), mCalendar.get(Calendar.DAY_OF_MONTH));
+            if ((showTemperature || showWeatherIcon) && currentWeather.getTime() > 0) {
+                // getTime() is the observation time in seconds
+                WeatherMetrics.getInstance().record(WeatherMetrics.DATA_AGE_AT_RENDER_MIN,
+                        TimeUnit.MILLISECONDS.toMinutes(now - currentWeather.getTime() * 1000));
             }
 
-            String temperatureText = "";
-            float totalLength;
-            float centerX = bounds.exactCenterX();
-            float dateTextLength = mInfoPaint.measureText(dateText);
-
-            float bitmapMargin = 20.0f;
-            if (mSettings.isShowTemperature()) {
-                temperatureText = mCurrentWeather.getFormattedTemperature();
-                if (mSettings.isShowWeatherIcon()) {
-                    totalLength = dateTextLength + bitmapMargin + mCurrentWeather.getIconBitmap(getApplicationContext()).getWidth() + mInfoPaint.measureText(temperatureText);
-                } else {
-                    totalLength = dateTextLength + bitmapMargin + mInfoPaint.measureText(temperatureText);
-                }
-            } else if (mSettings.isShowWeatherIcon()) {
-                totalLength = dateTextLength + bitmapMargin / 2 + mCurrentWeather.getIconBitmap(getApplicationContext()).getWidth();
+            // elements whose inputs haven't changed since the last frame keep their text and layout
+            Bitmap icon = showWeatherIcon ? currentWeather.getIconBitmap(getApplicationContext()) : null;
+            // an icon that couldn't be decoded is left out rather than failing the frame
+            mScene.update(bounds, mCalendar, settings, profile, mAmbient, currentWeather, showTemperature, icon != null,
+                    icon, mBatteryLevel, wearOSBitmap);
+            if (burnInShift) {
+                getBurnInOffset(now, mBurnInRadius, mBurnInOffset);
             } else {
-                totalLength = dateTextLength;
+                mBurnInOffset.set(0, 0);
             }
+            mScene.draw(canvas, mBurnInOffset.x, mBurnInOffset.y);
 
-            float infoBarXOffset = centerX - (totalLength / 2.0f);
-            float infoBarYOffset = computeInfoBarYOffset(dateText, mInfoPaint);
-
-            // draw infobar
-            if (mSettings.isShowInfoBarAmbient() || !mAmbient) {
-
-
-                canvas.drawText(dateText, infoBarXOffset, timeYOffset + infoBarYOffset, mInfoPaint);
-                if (mSettings.isShowWeatherIcon() && mCurrentWeather != null) {
-                    canvas.drawBitmap(mCurrentWeather.getIconBitmap(getApplicationContext()), infoBarXOffset + (dateTextLength + bitmapMargin / 2),
-                            timeYOffset + infoBarYOffset - mCurrentWeather.getIconBitmap(getApplicationContext()).getHeight() + 6.0f, null);
-                    canvas.drawText(temperatureText, infoBarXOffset + (dateTextLength + bitmapMargin + mCurrentWeather.getIconBitmap(getApplicationContext()).getWidth()), timeYOffset + infoBarYOffset, mInfoPaint);
-                } else if (!mSettings.isShowWeatherIcon() && mSettings.isShowTemperature() && mCurrentWeather != null) {
-                    canvas.drawText(temperatureText, infoBarXOffset + (dateTextLength + bitmapMargin), timeYOffset + infoBarYOffset, mInfoPaint);
-                }
+            // complications are cached bitmaps, redrawn only when their content changes
+            canvas.save();
+            canvas.translate(mBurnInOffset.x, mBurnInOffset.y);
+            for (int i = 0; i < mComplicationSlots.size(); i++) {
+                mComplicationSlots.valueAt(i).draw(canvas, now);
             }
+            canvas.restore();
 
-            // draw battery percentage
-            if (mSettings.isShowBattery()) {
-                String battery = String.format("%d%%", mBatteryLevel);
-                float batteryXOffset = computeXOffset(battery, mInfoPaint, bounds);
-                float batteryYOffset = computerBatteryYOffset(battery, mInfoPaint, bounds);
+            logStartupTiming();
+            mPhoneSync.getSettingsAck().onFrameDrawn(settings.getSyncedVersion(), System.currentTimeMillis());
+            mFrameNanos[(int) (mFrames++ % FRAME_HISTORY)] = SystemClock.elapsedRealtimeNanos() - frameStart;
+        }
 
-                canvas.drawText(battery, batteryXOffset, batteryYOffset, mInfoPaint);
+        /**
+         * Writes this engine's state as {@code key=value} lines under {@code prefix}, after what
+         * the framework dumps for it. The settings are the snapshot frames are drawn with, which
+         * is the defaults until warm-up has loaded the real ones.
+         */
+        @Override
+        protected void dump(String prefix, FileDescriptor fd, PrintWriter out, String[] args) {
+            super.dump(prefix, fd, out, args);
+            String p = prefix + "engine.";
+            out.print(p); out.print("visible="); out.println(isVisible());
+            out.print(p); out.print("ambient="); out.println(mAmbient);
+            out.print(p); out.print("low_bit_ambient="); out.println(mLowBitAmbient);
+            out.print(p); out.print("burn_in_protection="); out.println(mBurnInProtection);
+            out.print(p); out.print("warmed_up="); out.println(isWarmedUp());
+
+            Settings settingsHolder = mSettings;
+            SettingsSnapshot settings = settingsHolder != null ? settingsHolder.getSnapshot() : DEFAULT_SETTINGS;
+            out.print(p); out.print("settings.version="); out.println(settings.getVersion());
+            out.print(p); out.print("settings.synced_version="); out.println(settings.getSyncedVersion());
+            out.print(p); out.print("settings.use_24_hour_time="); out.println(settings.isUse24HourTime());
+            out.print(p); out.print("settings.show_temperature="); out.println(settings.isShowTemperature());
+            out.print(p); out.print("settings.show_weather_icon="); out.println(settings.isShowWeatherIcon());
+            out.print(p); out.print("settings.use_celsius="); out.println(settings.isUseCelsius());
+            out.print(p); out.print("settings.use_european_date_format="); out.println(settings.isUseEuropeanDateFormat());
+            out.print(p); out.print("settings.use_thin_ambient="); out.println(settings.isUseThinAmbient());
+            out.print(p); out.print("settings.show_info_bar_ambient="); out.println(settings.isShowInfoBarAmbient());
+            out.print(p); out.print("settings.show_temperature_fractional="); out.println(settings.isShowTemperatureFractional());
+            out.print(p); out.print("settings.show_battery="); out.println(settings.isShowBattery());
+            out.print(p); out.print("settings.use_dark_sky="); out.println(settings.isUseDarkSky());
+
+            int measureHits = 0;
+            int measureMisses = 0;
+            for (RenderProfile profile : mProfiles) {
+                measureHits += profile.getCacheHits();
+                measureMisses += profile.getCacheMisses();
             }
-
-            // draw wearOS icon
-            if (mAmbient) {
-                float mIconXOffset = bounds.exactCenterX() - (mWearOSBitmapAmbient.getWidth() / 2.0f);
-                float mIconYOffset = timeYOffset - timeYOffset / 2 - mWearOSBitmapAmbient.getHeight() - 16.0f;
-                canvas.drawBitmap(mWearOSBitmapAmbient, mIconXOffset, mIconYOffset, null);
-            } else {
-                float mIconXOffset = bounds.exactCenterX() - (mWearOSBitmap.getWidth() / 2.0f);
-                float mIconYOffset = timeYOffset - timeYOffset / 2 - mWearOSBitmap.getHeight() - 16.0f;
-                canvas.drawBitmap(mWearOSBitmap, mIconXOffset, mIconYOffset, null);
+            out.print(p); out.print("measure_cache_hits="); out.println(measureHits);
+            out.print(p); out.print("measure_cache_misses="); out.println(measureMisses);
+            mScene.dump(out, p);
+            for (int i = 0; i < mComplicationSlots.size(); i++) {
+                mComplicationSlots.valueAt(i).dump(out, p);
             }
-        }
 
-        private void initWeatherUpdater(boolean forceUpdate){
-            String TAG = "initWeatherUpdater";
-            if (mSettings.isShowTemperature() || mSettings.isShowWeatherIcon()) {
-                if (ActivityCompat.checkSelfPermission(getApplicationContext(), Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-                        Log.d(TAG, "requesting permission");
-                    requestPermissions();
-                } else {
-                    if (forceUpdate) {
-                        Constraints constraints = new Constraints.Builder()
-                                .setRequiredNetworkType(NetworkType.CONNECTED)
-                                .build();
-                        OneTimeWorkRequest forceWeatherUpdate =
-                                new OneTimeWorkRequest.Builder(WeatherUpdateWorker.class)
-                                        .setConstraints(constraints)
-                                        .setBackoffCriteria(BackoffPolicy.LINEAR, WEATHER_BACKOFF_DELAY, TimeUnit.MINUTES)
-                                        .build();
-                        WorkManager.getInstance(getApplicationContext()).enqueue(forceWeatherUpdate);
-                    } else {
-                        Log.d(TAG, "setting up weather periodic request");
-                        Constraints constraints = new Constraints.Builder()
-                                .setRequiredNetworkType(NetworkType.CONNECTED)
-                                .build();
-                        PeriodicWorkRequest weatherUpdater =
-                                new PeriodicWorkRequest.Builder(WeatherUpdateWorker.class, WEATHER_UPDATE_INTERVAL, TimeUnit.MINUTES)
-                                        .setConstraints(constraints)
-                                        .addTag(WEATHER_UPDATE_WORKER)
-                                        .setBackoffCriteria(BackoffPolicy.LINEAR, WEATHER_BACKOFF_DELAY, TimeUnit.MINUTES)
-                                        .build();
-                        WorkManager.getInstance(getApplicationContext())
-                                .enqueueUniquePeriodicWork(WEATHER_UPDATE_WORKER, ExistingPeriodicWorkPolicy.KEEP, weatherUpdater);
-                        //mWeatherUpdaterInitialized = true;
-                    }
+            int count = (int) Math.min(mFrames, FRAME_HISTORY);
+            long total = 0;
+            long max = 0;
+            out.print(p); out.print("frames="); out.println(mFrames);
+            out.print(p); out.print("recent_frames_us=");
+            for (int i = 0; i < count; i++) {
+                long nanos = mFrameNanos[(int) ((mFrames - count + i) % FRAME_HISTORY)];
+                total += nanos;
+                max = Math.max(max, nanos);
+                if (i > 0) {
+                    out.print(',');
                 }
+                out.print(nanos / 1000);
             }
+            out.println();
+            out.print(p); out.print("recent_frame_mean_us="); out.println(count == 0 ? 0 : total / count / 1000);
+            out.print(p); out.print("recent_frame_max_us="); out.println(max / 1000);
         }
 
-
-        private float computeXOffset(String text, Paint paint, Rect watchBounds) {
-            float centerX = watchBounds.exactCenterX();
-            float textLength = paint.measureText(text);
-            return centerX - (textLength / 2.0f);
-        }
-
-        private float computeTimeYOffset(String timeText, Paint timePaint, Rect watchBounds) {
-            float centerY = watchBounds.exactCenterY();
-            Rect textBounds = new Rect();
-            timePaint.getTextBounds(timeText, 0, timeText.length(), textBounds);
-            int textHeight = textBounds.height();
-            return centerY + (textHeight / 2.0f) - 25.0f; //-XX.Xf is the offset up from the center
-        }
-
-        private float computeInfoBarYOffset(String dateText, Paint datePaint) {
-            Rect textBounds = new Rect();
-            datePaint.getTextBounds(dateText, 0, dateText.length(), textBounds);
-            return textBounds.height() + 27.0f;
-        }
-
-        private float computerBatteryYOffset(String batteryText, Paint batteryPaint, Rect watchBounds) {
-            Rect textBounds = new Rect();
-            batteryPaint.getTextBounds(batteryText, 0, batteryText.length(), textBounds);
-            return watchBounds.bottom - textBounds.height() * 1.5f/* / 2.0f*/;
-        }
-
-        @Override
-        public void onDataChanged(DataEventBuffer dataEvents) {
-            String TAG = "onDataChanged";
-            Log.d(TAG, "Data changed");
-            DataMap dataMap = new DataMap();
-            for (DataEvent event : dataEvents) {
-                if (event.getType() == DataEvent.TYPE_CHANGED) {
-                    // DataItem changed
-                    DataItem item = event.getDataItem();
-                    Log.d(TAG, "DataItem uri: " + item.getUri());
-                    if (item.getUri().getPath().compareTo("/settings") == 0) {
-                        Log.d(TAG, "Companion app changed a setting!");
-                        dataMap = DataMapItem.fromDataItem(item).getDataMap();
-                        Log.d(TAG, dataMap.toString());
-                        dataMap = dataMap.getDataMap("com.corvettecole.pixelwatchface");
-                        Log.d(TAG, dataMap.toString());
-                        if (mSettings.updateSettings(dataMap)){
-                            initWeatherUpdater(true);
-                        }
-                        invalidate();
-                        //syncToPhone();
-                    }
-                } else if (event.getType() == DataEvent.TYPE_DELETED) {
-                    // DataItem deleted
-                }
+        /**
+         * Logs how long after service creation the first frame and the first frame with every
+         * asset loaded were drawn. To measure cold start: {@code adb shell am force-stop
+         * com.corvettecole.pixelwatchface}, wake the watch with the face selected, and read the
+         * "startup" tag from logcat.
+         */
+        private void logStartupTiming() {
+            if (mFirstCompleteFrameDrawn) {
+                return;
             }
-        }
-
-        private void requestPermissions() {
-            if (mPermissionRequestedTime == 0 || mPermissionRequestedTime - System.currentTimeMillis() > ONE_MIN) {
-                Log.d("requestPermission", "Actually requesting permission, more than one minute has passed");
-                mPermissionRequestedTime = System.currentTimeMillis();
-                if (ContextCompat.checkSelfPermission(getApplication(), Manifest.permission.ACCESS_FINE_LOCATION)
-                        != PackageManager.PERMISSION_GRANTED) {
-                    Intent mPermissionRequestIntent = new Intent(getBaseContext(), PermissionRequestActivity.class);
-                    mPermissionRequestIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                    mPermissionRequestIntent.putExtra("KEY_PERMISSIONS", Manifest.permission.ACCESS_FINE_LOCATION);
-                    //mPermissionRequestIntent.putExtra("KEY_PERMISSIONS", new String[]{Manifest.permission.ACCESS_COARSE_LOCATION, Manifest.permission.ACCESS_FINE_LOCATION});
-                    startActivity(mPermissionRequestIntent);
-                }
+            long now = SystemClock.elapsedRealtime();
+            if (!mFirstFrameDrawn) {
+                mFirstFrameDrawn = true;
+                FaceLog.i("startup", "first frame {} ms after service creation, {} ms after engine creation",
+                        now - sServiceCreatedAt, now - mEngineCreatedAt);
+            }
+            if (isWarmedUp()) {
+                mFirstCompleteFrameDrawn = true;
+                FaceLog.i("startup", "first complete frame {} ms after service creation, {} ms after engine creation",
+                        now - sServiceCreatedAt, now - mEngineCreatedAt);
             }
         }
 
         /**
-         * Starts the {@link #mUpdateTimeHandler} timer if it should be running and isn't currently
+         * Starts the {@link #mUpdateTimeTask} timer if it should be running and isn't currently
          * or stops it if it shouldn't be running but currently is.
          */
         private void updateTimer() {
-            mUpdateTimeHandler.removeMessages(MSG_UPDATE_TIME);
+            Clock clock = Clock.get();
+            clock.removeCallbacks(mUpdateTimeTask);
             if (shouldTimerBeRunning()) {
-                mUpdateTimeHandler.sendEmptyMessage(MSG_UPDATE_TIME);
+                clock.postDelayed(mUpdateTimeTask, 0);
             }
         }
 
         /**
-         * Returns whether the {@link #mUpdateTimeHandler} timer should be running. The timer should
+         * Returns whether the {@link #mUpdateTimeTask} timer should be running. The timer should
          * only run when we're visible and in interactive mode.
          */
         private boolean shouldTimerBeRunning() {
@@ -528,13 +909,13 @@ public class PixelWatchFace extends CanvasWatchFaceService {
          * Handle updating the time periodically in interactive mode.
          */
         private void handleUpdateTimeMessage() {
+            long cpuStart = Debug.threadCpuTimeNanos();
             invalidate();
             if (shouldTimerBeRunning()) {
-                long timeMs = System.currentTimeMillis();
-                long delayMs = INTERACTIVE_UPDATE_RATE_MS
-                        - (timeMs % INTERACTIVE_UPDATE_RATE_MS);
-                mUpdateTimeHandler.sendEmptyMessageDelayed(MSG_UPDATE_TIME, delayMs);
+                Clock clock = Clock.get();
+                clock.postDelayed(mUpdateTimeTask, getTimerDelay(clock.currentTimeMillis()));
             }
+            mWakeUpLedger.record(WakeUpLedger.SOURCE_UPDATE_TIMER, Debug.threadCpuTimeNanos() - cpuStart);
         }
 
         // Class for debugging
@@ -0,0 +1,171 @@
+package com.corvettecole.pixelwatchface;
+
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything about how text is drawn in one display mode: the paints and the measurements taken
+ * with them. Profiles are built for every mode up front and never modified, so switching between
+ * interactive and ambient is picking a different profile, and measurements cached under one mode
+ * can't go stale under another.
+ */
+public final class RenderProfile {
+
+    public static final int INTERACTIVE = 0;
+    public static final int AMBIENT_STROKE = 1;
+    public static final int AMBIENT_THIN = 2;
+    public static final int LOW_BIT_AMBIENT = 3;
+
+    /**
+     * Different strings each paint is asked to measure in practice are few (the time, the date,
+     * the temperature, the battery level); this just bounds the maps if that ever changes.
+     */
+    private static final int MAX_CACHED_MEASUREMENTS = 32;
+
+    private final Paint mTimePaint;
+    private final Paint mInfoPaint;
+    private final Map<String, Float> mTimeWidths = new HashMap<>();
+    private final Map<String, Integer> mTimeHeights = new HashMap<>();
+    private final Map<String, Float> mInfoWidths = new HashMap<>();
+    private final Map<String, Integer> mInfoHeights = new HashMap<>();
+    private final Rect mBounds = new Rect();
+    private int mCacheHits = 0;
+    private int mCacheMisses = 0;
+
+    private RenderProfile(Paint timePaint, Paint infoPaint) {
+        mTimePaint = timePaint;
+        mInfoPaint = infoPaint;
+    }
+
+    /**
+     * Builds the profile for every mode.
+     *
+     * @param regular       the regular typeface, or null to use the system font until it loads
+     * @param thin          the thin typeface, or null to fall back to {@code regular}
+     * @param thinAmbient   whether the low-bit ambient profile uses the thin style
+     * @param infoAmbientColor color of the info bar and battery text in ambient
+     * @return the profiles, indexed by the mode constants in this class
+     */
+    public static RenderProfile[] buildAll(float timeTextSize, float infoTextSize, Typeface regular, Typeface thin,
+                                           boolean thinAmbient, int textColor, int infoAmbientColor) {
+        Typeface regularFace = regular != null ? regular : Typeface.DEFAULT;
+        Typeface thinFace = thin != null ? thin : regularFace;
+        RenderProfile[] profiles = new RenderProfile[4];
+        profiles[INTERACTIVE] = new RenderProfile(
+                timePaint(timeTextSize, regularFace, Paint.Style.FILL, true, textColor),
+                infoPaint(infoTextSize, regularFace, true, textColor));
+        profiles[AMBIENT_STROKE] = new RenderProfile(
+                timePaint(timeTextSize, regularFace, Paint.Style.STROKE, true, textColor),
+                infoPaint(infoTextSize, regularFace, true, infoAmbientColor));
+        profiles[AMBIENT_THIN] = new RenderProfile(
+                timePaint(timeTextSize, thinFace, Paint.Style.FILL, true, textColor),
+                infoPaint(infoTextSize, regularFace, true, infoAmbientColor));
+        profiles[LOW_BIT_AMBIENT] = new RenderProfile(
+                thinAmbient ? timePaint(timeTextSize, thinFace, Paint.Style.FILL, false, textColor)
+                        : timePaint(timeTextSize, regularFace, Paint.Style.STROKE, false, textColor),
+                infoPaint(infoTextSize, regularFace, false, infoAmbientColor));
+        return profiles;
+    }
+
+    private static Paint timePaint(float textSize, Typeface typeface, Paint.Style style, boolean antiAlias, int color) {
+        Paint paint = new Paint();
+        paint.setAntiAlias(antiAlias);
+        paint.setColor(color);
+        paint.setStrokeWidth(3f);
+        paint.setStyle(style);
+        paint.setTypeface(typeface);
+        if (textSize > 0) {
+            paint.setTextSize(textSize);
+        }
+        return paint;
+    }
+
+    private static Paint infoPaint(float textSize, Typeface typeface, boolean antiAlias, int color) {
+        Paint paint = new Paint();
+        paint.setAntiAlias(antiAlias);
+        paint.setColor(color);
+        paint.setStrokeWidth(2f);
+        paint.setStyle(Paint.Style.FILL);
+        paint.setTypeface(typeface);
+        if (textSize > 0) {
+            paint.setTextSize(textSize);
+        }
+        return paint;
+    }
+
+    /**
+     * The paint for the time. Don't modify it.
+     */
+    public Paint getTimePaint() {
+        return mTimePaint;
+    }
+
+    /**
+     * The paint for the date, weather and battery. Don't modify it.
+     */
+    public Paint getInfoPaint() {
+        return mInfoPaint;
+    }
+
+    public float measureTime(String text) {
+        return measureWidth(mTimePaint, mTimeWidths, text);
+    }
+
+    public int getTimeHeight(String text) {
+        return measureHeight(mTimePaint, mTimeHeights, text);
+    }
+
+    public float measureInfo(String text) {
+        return measureWidth(mInfoPaint, mInfoWidths, text);
+    }
+
+    public int getInfoHeight(String text) {
+        return measureHeight(mInfoPaint, mInfoHeights, text);
+    }
+
+    /**
+     * @return how many measurements were answered from the cache
+     */
+    public int getCacheHits() {
+        return mCacheHits;
+    }
+
+    public int getCacheMisses() {
+        return mCacheMisses;
+    }
+
+    private float measureWidth(Paint paint, Map<String, Float> cache, String text) {
+        Float width = cache.get(text);
+        if (width != null) {
+            mCacheHits++;
+        } else {
+            mCacheMisses++;
+            if (cache.size() >= MAX_CACHED_MEASUREMENTS) {
+                cache.clear();
+            }
+            width = paint.measureText(text);
+            cache.put(text, width);
+        }
+        return width;
+    }
+
+    private int measureHeight(Paint paint, Map<String, Integer> cache, String text) {
+        Integer height = cache.get(text);
+        if (height != null) {
+            mCacheHits++;
+        } else {
+            mCacheMisses++;
+            if (cache.size() >= MAX_CACHED_MEASUREMENTS) {
+                cache.clear();
+            }
+            paint.getTextBounds(text, 0, text.length(), mBounds);
+            height = mBounds.height();
+            cache.put(text, height);
+        }
+        return height;
+    }
+}
@@ -0,0 +1,155 @@
+package com.corvettecole.pixelwatchface;
+
+import android.graphics.Bitmap;
+import android.graphics.Typeface;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Render resources shared by every {@link PixelWatchFace} engine in the process: the face itself,
+ * picker previews and anything the system spins up alongside. The first engine to ask for a
+ * resource loads it, later ones get the same instance, and it is dropped once the last engine
+ * holding it releases it, so memory stays flat however many engines exist.
+ *
+ * Only immutable resources belong here: typefaces, and bitmaps that are never drawn into once
+ * loaded, which today means the face's fonts and logos. The scene's layers and the complication
+ * caches are redrawn as their content changes, so like paints they stay per engine.
+ */
+public class RenderResourcePool {
+
+    public interface Loader<T> {
+        T load();
+    }
+
+    private static class Entry {
+        Object mValue;
+        int mReferences;
+    }
+
+    private static final RenderResourcePool instance = new RenderResourcePool();
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private RenderResourcePool() {
+    }
+
+    public static RenderResourcePool getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param name       what the resource is, e.g. a resource entry name
+     * @param width      width it is rendered at, 0 if it has no size
+     * @param height     height it is rendered at, 0 if it has no size
+     * @param densityDpi density it is rendered for, 0 if irrelevant
+     * @param mode       the render mode it is for, e.g. "interactive" or "ambient", or null
+     * @return the pool key for a resource
+     */
+    public static String key(String name, int width, int height, int densityDpi, String mode) {
+        return name + "@" + width + "x" + height + "/" + densityDpi + "/" + mode;
+    }
+
+    /**
+     * Returns the resource for {@code key}, loading it with {@code loader} if no engine holds it
+     * yet, and takes a reference on it. Every call must be balanced by {@link #release(String)}.
+     * Concurrent acquires of the same key load it once; different keys load in parallel. If
+     * {@code loader} throws, the reference is dropped again and the exception propagates, so a
+     * later acquire tries the load afresh.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T acquire(String key, Loader<T> loader) {
+        Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(key, entry);
+            }
+            entry.mReferences++;
+        }
+        synchronized (entry) {
+            if (entry.mValue == null) {
+                try {
+                    entry.mValue = loader.load();
+                } catch (RuntimeException | Error e) {
+                    drop(key, entry);
+                    throw e;
+                }
+            }
+            return (T) entry.mValue;
+        }
+    }
+
+    /**
+     * Gives back a reference on {@code entry} whose load failed, removing it from the pool if no
+     * one else holds it so the pool never keeps an entry without a value.
+     */
+    private void drop(String key, Entry entry) {
+        synchronized (mEntries) {
+            if (--entry.mReferences <= 0 && mEntries.get(key) == entry) {
+                mEntries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drops a reference taken by {@link #acquire(String, Loader)}. The last one out removes the
+     * resource from the pool.
+     */
+    public void release(String key) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(key);
+            if (entry != null && --entry.mReferences <= 0) {
+                mEntries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return how many resources are pooled and roughly how many bytes their bitmaps take
+     */
+    public String report() {
+        int count = 0;
+        long bitmapBytes = 0;
+        int typefaces = 0;
+        synchronized (mEntries) {
+            for (Entry entry : mEntries.values()) {
+                count++;
+                Object value = entry.mValue;
+                if (value instanceof Bitmap) {
+                    bitmapBytes += ((Bitmap) value).getAllocationByteCount();
+                } else if (value instanceof Typeface) {
+                    typefaces++;
+                }
+            }
+        }
+        return String.format("render resource pool: %d entries, %d typefaces, %d KB of bitmaps",
+                count, typefaces, bitmapBytes / 1024);
+    }
+
+    /**
+     * Writes the same as {@link #report()} as {@code key=value} lines, each starting with
+     * {@code prefix}.
+     */
+    public void dump(PrintWriter out, String prefix) {
+        int count = 0;
+        long bitmapBytes = 0;
+        int typefaces = 0;
+        synchronized (mEntries) {
+            for (Entry entry : mEntries.values()) {
+                count++;
+                Object value = entry.mValue;
+                if (value instanceof Bitmap) {
+                    bitmapBytes += ((Bitmap) value).getAllocationByteCount();
+                } else if (value instanceof Typeface) {
+                    typefaces++;
+                }
+            }
+        }
+        out.print(prefix); out.print("pool.entries="); out.println(count);
+        out.print(prefix); out.print("pool.typefaces="); out.println(typefaces);
+        out.print(prefix); out.print("pool.bitmap_bytes="); out.println(bitmapBytes);
+    }
+}
@@ -1,26 +1,18 @@
 package com.corvettecole.pixelwatchface;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.util.Log;
-
-
-import androidx.preference.PreferenceManager;
 
 import com.google.android.gms.wearable.DataMap;
 
-import java.util.Set;
-
 public class Settings {
 
+    /**
+     * The current settings. Replaced wholesale, never modified, so readers only ever pay for a
+     * single volatile read.
+     */
+    private volatile SettingsSnapshot mSnapshot;
 
-    private boolean use24HourTime, showTemperature, showWeatherIcon, useCelsius,
-            useEuropeanDateFormat, useThinAmbient, showInfoBarAmbient, showTemperatureFractional,
-            showBattery, useDarkSky, useCommaFractional;
-
-    private String darkSkyAPIKey;
-
-    private SharedPreferences sharedPreferences;
+    private final StateStore mStateStore;
 
     private static volatile Settings instance;
 
@@ -28,8 +20,9 @@ public class Settings {
         if (instance != null) {
             throw new RuntimeException("Use getInstance() method to get the single instance of this class");
         } else {
-            sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-            loadPreferences();
+            mStateStore = StateStore.getInstance(context);
+            // revision 0 is reserved for the defaults the face draws with before this loads
+            mSnapshot = mStateStore.getSettings().toBuilder().setVersion(1).build();
         }
     }
 
@@ -44,112 +37,144 @@ public class Settings {
         return instance;
     }
 
+    public SettingsSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
     public boolean isUse24HourTime() {
-        return use24HourTime;
+        return mSnapshot.isUse24HourTime();
     }
 
     public boolean isShowTemperature() {
-        return showTemperature;
+        return mSnapshot.isShowTemperature();
     }
 
     public boolean isShowWeatherIcon() {
-        return showWeatherIcon;
+        return mSnapshot.isShowWeatherIcon();
     }
 
     public boolean isUseCelsius() {
-        return useCelsius;
+        return mSnapshot.isUseCelsius();
     }
 
     public boolean isUseEuropeanDateFormat() {
-        return useEuropeanDateFormat;
+        return mSnapshot.isUseEuropeanDateFormat();
     }
 
     public boolean isUseThinAmbient() {
-        return useThinAmbient;
+        return mSnapshot.isUseThinAmbient();
     }
 
     public boolean isShowInfoBarAmbient() {
-        return showInfoBarAmbient;
+        return mSnapshot.isShowInfoBarAmbient();
     }
 
     public boolean isShowTemperatureFractional() {
-        return showTemperatureFractional;
+        return mSnapshot.isShowTemperatureFractional();
     }
 
     public boolean isShowBattery() {
-        return showBattery;
+        return mSnapshot.isShowBattery();
     }
 
     public boolean isUseDarkSky() {
-        return useDarkSky;
+        return mSnapshot.isUseDarkSky();
     }
 
     public String getDarkSkyAPIKey() {
-        return darkSkyAPIKey;
-    }
-
-    public boolean updateSettings(DataMap dataMap) {  // returns if weather update required
+        return mSnapshot.getDarkSkyAPIKey();
+    }
+
+    /**
+     * Applies a settings delta from the phone. Only keys present in the map are changed, and a
+     * key is only overwritten by a delta newer than the one that last set it, so deltas that
+     * arrive out of order still leave the newest value in place. The version that set each key
+     * is part of the snapshot and persisted with it, so this holds across restarts. Maps without a version (from
+     * older phone apps, which always send every key) are applied as-is.
+     *
+     * Publishes a new {@link SettingsSnapshot} and persists it through the {@link StateStore} in
+     * the background; safe to call from any thread.
+     *
+     * @return whether a weather update is required
+     */
+    public synchronized boolean updateSettings(DataMap dataMap) {
         String TAG = "updateSettings";
-        boolean tempShowTemperature = showTemperature;
-        boolean tempShowWeatherIcon = showWeatherIcon;
-        boolean tempUseDarkSky = useDarkSky;
-
-        Log.d(TAG, "timestamp: " + dataMap.getLong("timestamp"));
-        use24HourTime = dataMap.getBoolean("use_24_hour_time");
-
-        showTemperature = dataMap.getBoolean("show_temperature");
-        useCelsius = dataMap.getBoolean("use_celsius");
-        showWeatherIcon = dataMap.getBoolean("show_weather");
-        darkSkyAPIKey = dataMap.getString("dark_sky_api_key");
-
-        useEuropeanDateFormat = dataMap.getBoolean("use_european_date");
-        showTemperatureFractional = dataMap.getBoolean("show_temperature_decimal");
-        showInfoBarAmbient = dataMap.getBoolean("show_infobar_ambient", false);
+        SettingsSnapshot previous = mSnapshot;
+        SettingsSnapshot.Builder builder = previous.toBuilder();
 
-        showBattery = dataMap.getBoolean("show_battery", true);
+        long version = dataMap.getLong("version", 0);
+        FaceLog.d(TAG, "version: {} timestamp: {}", version, dataMap.getLong("timestamp"));
 
-        useDarkSky = dataMap.getBoolean("use_dark_sky", false);
-
-        savePreferences();
-        return (tempUseDarkSky != useDarkSky || showTemperature != tempShowTemperature || showWeatherIcon != tempShowWeatherIcon);  //detect if weather provider has changed
-    }
-
-    private void loadPreferences() {
-        use24HourTime = sharedPreferences.getBoolean("use_24_hour_time", false);
-        showTemperature = sharedPreferences.getBoolean("show_temperature", false);
-        useCelsius = sharedPreferences.getBoolean("use_celsius", false);
-        showWeatherIcon = sharedPreferences.getBoolean("show_weather", false);
-
-        useThinAmbient = sharedPreferences.getBoolean("use_thin_ambient", true);
-        showInfoBarAmbient = sharedPreferences.getBoolean("show_infobar_ambient", true);
-
-        useEuropeanDateFormat = sharedPreferences.getBoolean("use_european_date", false);
-        showTemperatureFractional = sharedPreferences.getBoolean("show_temperature_decimal", false);
-
-        darkSkyAPIKey = sharedPreferences.getString("dark_sky_api_key", "");
-        useDarkSky = sharedPreferences.getBoolean("use_dark_sky", false);
+        for (String key : dataMap.keySet()) {
+            if (key.equals("version") || key.equals("timestamp")) {
+                continue;
+            }
+            if (version != 0 && previous.getKeyVersion(key) > version) {
+                continue;
+            }
+            builder.setKeyVersion(key, version);
+            applySetting(builder, key, dataMap);
+        }
 
-        showBattery = sharedPreferences.getBoolean("show_battery", true);
+        SettingsSnapshot current = builder
+                .setVersion(previous.getVersion() + 1)
+                .setSyncedVersion(Math.max(version, previous.getSyncedVersion()))
+                .build();
+        mSnapshot = current;
+
+        mStateStore.putSettings(current);
+        return (previous.isUseDarkSky() != current.isUseDarkSky()
+                || previous.isShowTemperature() != current.isShowTemperature()
+                || previous.isShowWeatherIcon() != current.isShowWeatherIcon()
+                || (current.isUseDarkSky() && !current.getDarkSkyAPIKey().equals(previous.getDarkSkyAPIKey())));  //detect if weather provider has changed
+    }
+
+    private static void applySetting(SettingsSnapshot.Builder builder, String key, DataMap dataMap) {
+        switch (key) {
+            case "use_24_hour_time":
+                builder.setUse24HourTime(dataMap.getBoolean(key));
+                break;
+            case "show_temperature":
+                builder.setShowTemperature(dataMap.getBoolean(key));
+                break;
+            case "use_celsius":
+                builder.setUseCelsius(dataMap.getBoolean(key));
+                break;
+            case "show_weather":
+                builder.setShowWeatherIcon(dataMap.getBoolean(key));
+                break;
+            case "dark_sky_api_key":
+                builder.setDarkSkyAPIKey(dataMap.getString(key, ""));
+                break;
+            case "use_european_date":
+                builder.setUseEuropeanDateFormat(dataMap.getBoolean(key));
+                break;
+            case "show_temperature_decimal":
+                builder.setShowTemperatureFractional(dataMap.getBoolean(key));
+                break;
+            case "use_thin_ambient":
+                builder.setUseThinAmbient(dataMap.getBoolean(key));
+                break;
+            case "show_infobar_ambient":
+                builder.setShowInfoBarAmbient(dataMap.getBoolean(key, false));
+                break;
+            case "show_battery":
+                builder.setShowBattery(dataMap.getBoolean(key, true));
+                break;
+            case "use_dark_sky":
+                builder.setUseDarkSky(dataMap.getBoolean(key, false));
+                break;
+        }
     }
 
-    private void savePreferences() {
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putBoolean("use_24_hour_time", use24HourTime);
-        editor.putBoolean("show_temperature", showTemperature);
-        editor.putBoolean("use_celsius", useCelsius);
-        editor.putBoolean("show_weather", showWeatherIcon);
-        editor.putBoolean("use_european_date", useEuropeanDateFormat);
-        editor.putBoolean("show_temperature_decimal", showTemperatureFractional);
-        editor.putBoolean("use_thin_ambient", useThinAmbient);
-        editor.putBoolean("show_infobar_ambient", showInfoBarAmbient);
-        editor.putBoolean("show_battery", showBattery);
-
-        editor.putString("dark_sky_api_key", darkSkyAPIKey);
-        editor.putBoolean("use_dark_sky", useDarkSky);
-        editor.apply();
+    /**
+     * @return the newest settings version applied from the phone
+     */
+    public long getVersion() {
+        return mSnapshot.getSyncedVersion();
     }
 
     public boolean isUseCommaFractional() {
-        return useCommaFractional;
+        return mSnapshot.isUseCommaFractional();
     }
 }
@@ -0,0 +1,109 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.Context;
+
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+/**
+ * Tells the phone when a settings version it sent has taken effect, so it can measure how long
+ * a change takes to show up on the wrist. For the newest version in each batch of deltas we note
+ * when the batch arrived and when it was applied, wait for the first frame drawn with it, then
+ * send all three times together with the phone's own send timestamp. The phone works out the
+ * round trip on its clock and the watch's share on ours, so the two clocks never need to agree.
+ *
+ * Acks go out through a {@link Transport}; {@link #dataLayer(Context)} is the real one, and
+ * anything that keeps the maps can stand in for it to exercise the probe off-device.
+ */
+public class SettingsAck {
+
+    private static final String TAG = "SettingsAck";
+
+    public static final String PATH = "/settings_ack";
+    public static final String KEY_VERSION = "version";
+    public static final String KEY_SENT_AT = "sent_at"; // phone clock
+    public static final String KEY_RECEIVED_AT = "received_at"; // watch clock from here on
+    public static final String KEY_APPLIED_AT = "applied_at";
+    public static final String KEY_DRAWN_AT = "drawn_at";
+
+    public interface Transport {
+        void send(DataMap ack);
+    }
+
+    private final Transport mTransport;
+    // written on the data thread, read on every frame; -1 when nothing is waiting for a frame
+    private volatile long mPendingVersion = -1;
+    private long mLastVersion = 0;
+    private long mSentAt;
+    private long mReceivedAt;
+    private long mAppliedAt;
+
+    public SettingsAck(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * @return a transport that puts each ack in the {@link #PATH} data item, replacing the last
+     */
+    public static Transport dataLayer(Context context) {
+        Context appContext = context.getApplicationContext();
+        return ack -> {
+            PutDataMapRequest request = PutDataMapRequest.create(PATH);
+            request.getDataMap().putAll(ack);
+            PutDataRequest putDataRequest = request.asPutDataRequest();
+            // the phone is measuring latency, so don't let the batching add to it
+            putDataRequest.setUrgent();
+            Wearable.getDataClient(appContext).putDataItem(putDataRequest)
+                    .addOnFailureListener(e -> FaceLog.w(TAG, "Couldn't send ack: {}", e));
+        };
+    }
+
+    /**
+     * Call once a batch of deltas has been applied.
+     *
+     * @param version    the newest version in the batch
+     * @param sentAt     that delta's timestamp, on the phone's clock
+     * @param receivedAt when onDataChanged delivered the batch
+     * @param appliedAt  when the new settings were published
+     */
+    public synchronized void onApplied(long version, long sentAt, long receivedAt, long appliedAt) {
+        // redelivered or out-of-order batches don't change what's on screen
+        if (version <= mLastVersion) {
+            return;
+        }
+        mLastVersion = version;
+        mSentAt = sentAt;
+        mReceivedAt = receivedAt;
+        mAppliedAt = appliedAt;
+        mPendingVersion = version;
+    }
+
+    /**
+     * Call after each frame. Sends the pending ack once a frame has been drawn with settings at
+     * least as new as it. A frame that raced ahead of {@link #onApplied} is missed, and the ack
+     * goes out with the next one, which the apply always invalidates.
+     *
+     * @param syncedVersion {@link SettingsSnapshot#getSyncedVersion()} of the settings drawn
+     */
+    public void onFrameDrawn(long syncedVersion, long drawnAt) {
+        long pending = mPendingVersion;
+        if (pending < 0 || syncedVersion < pending) {
+            return;
+        }
+        DataMap ack = new DataMap();
+        synchronized (this) {
+            if (mPendingVersion != pending) {
+                return;
+            }
+            ack.putLong(KEY_VERSION, pending);
+            ack.putLong(KEY_SENT_AT, mSentAt);
+            ack.putLong(KEY_RECEIVED_AT, mReceivedAt);
+            ack.putLong(KEY_APPLIED_AT, mAppliedAt);
+            ack.putLong(KEY_DRAWN_AT, drawnAt);
+            mPendingVersion = -1;
+        }
+        mTransport.send(ack);
+    }
+}
@@ -0,0 +1,247 @@
+package com.corvettecole.pixelwatchface;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable view of every user setting at one point in time. {@link Settings} swaps in a new
+ * snapshot whenever something changes, so a reader that grabs one snapshot sees a consistent set
+ * of values, and can tell whether anything changed since it last looked by comparing
+ * {@link #getVersion()}.
+ */
+public final class SettingsSnapshot {
+
+    private final long version;
+    private final long syncedVersion;
+
+    private final boolean use24HourTime, showTemperature, showWeatherIcon, useCelsius,
+            useEuropeanDateFormat, useThinAmbient, showInfoBarAmbient, showTemperatureFractional,
+            showBattery, useDarkSky, useCommaFractional;
+
+    private final String darkSkyAPIKey;
+
+    // phone settings version that last set each key
+    private final Map<String, Long> keyVersions;
+
+    private SettingsSnapshot(Builder builder) {
+        version = builder.version;
+        syncedVersion = builder.syncedVersion;
+        use24HourTime = builder.use24HourTime;
+        showTemperature = builder.showTemperature;
+        showWeatherIcon = builder.showWeatherIcon;
+        useCelsius = builder.useCelsius;
+        useEuropeanDateFormat = builder.useEuropeanDateFormat;
+        useThinAmbient = builder.useThinAmbient;
+        showInfoBarAmbient = builder.showInfoBarAmbient;
+        showTemperatureFractional = builder.showTemperatureFractional;
+        showBattery = builder.showBattery;
+        useDarkSky = builder.useDarkSky;
+        useCommaFractional = builder.useCommaFractional;
+        darkSkyAPIKey = builder.darkSkyAPIKey;
+        keyVersions = Collections.unmodifiableMap(new HashMap<>(builder.keyVersions));
+    }
+
+    /**
+     * @return a local revision number that increases every time a new snapshot is published
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the newest settings version applied from the phone
+     */
+    public long getSyncedVersion() {
+        return syncedVersion;
+    }
+
+    public boolean isUse24HourTime() {
+        return use24HourTime;
+    }
+
+    public boolean isShowTemperature() {
+        return showTemperature;
+    }
+
+    public boolean isShowWeatherIcon() {
+        return showWeatherIcon;
+    }
+
+    public boolean isUseCelsius() {
+        return useCelsius;
+    }
+
+    public boolean isUseEuropeanDateFormat() {
+        return useEuropeanDateFormat;
+    }
+
+    public boolean isUseThinAmbient() {
+        return useThinAmbient;
+    }
+
+    public boolean isShowInfoBarAmbient() {
+        return showInfoBarAmbient;
+    }
+
+    public boolean isShowTemperatureFractional() {
+        return showTemperatureFractional;
+    }
+
+    public boolean isShowBattery() {
+        return showBattery;
+    }
+
+    public boolean isUseDarkSky() {
+        return useDarkSky;
+    }
+
+    public boolean isUseCommaFractional() {
+        return useCommaFractional;
+    }
+
+    public String getDarkSkyAPIKey() {
+        return darkSkyAPIKey;
+    }
+
+    /**
+     * @return the phone settings version that last set {@code key}, or 0 if none has
+     */
+    public long getKeyVersion(String key) {
+        Long version = keyVersions.get(key);
+        return version != null ? version : 0;
+    }
+
+    /**
+     * @return the phone settings version that last set each key, for keys that have been set
+     */
+    public Map<String, Long> getKeyVersions() {
+        return keyVersions;
+    }
+
+    /**
+     * @return the settings the face had before the phone ever sent any: thin ambient time, the
+     * info bar in ambient and the battery shown, everything else off
+     */
+    public static SettingsSnapshot defaults() {
+        return new Builder()
+                .setUseThinAmbient(true)
+                .setShowInfoBarAmbient(true)
+                .setShowBattery(true)
+                .build();
+    }
+
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    public static class Builder {
+        private long version;
+        private long syncedVersion;
+        private boolean use24HourTime, showTemperature, showWeatherIcon, useCelsius,
+                useEuropeanDateFormat, useThinAmbient, showInfoBarAmbient, showTemperatureFractional,
+                showBattery, useDarkSky, useCommaFractional;
+        private String darkSkyAPIKey = "";
+        private final Map<String, Long> keyVersions = new HashMap<>();
+
+        public Builder() {
+        }
+
+        private Builder(SettingsSnapshot snapshot) {
+            version = snapshot.version;
+            syncedVersion = snapshot.syncedVersion;
+            use24HourTime = snapshot.use24HourTime;
+            showTemperature = snapshot.showTemperature;
+            showWeatherIcon = snapshot.showWeatherIcon;
+            useCelsius = snapshot.useCelsius;
+            useEuropeanDateFormat = snapshot.useEuropeanDateFormat;
+            useThinAmbient = snapshot.useThinAmbient;
+            showInfoBarAmbient = snapshot.showInfoBarAmbient;
+            showTemperatureFractional = snapshot.showTemperatureFractional;
+            showBattery = snapshot.showBattery;
+            useDarkSky = snapshot.useDarkSky;
+            useCommaFractional = snapshot.useCommaFractional;
+            darkSkyAPIKey = snapshot.darkSkyAPIKey;
+            keyVersions.putAll(snapshot.keyVersions);
+        }
+
+        public Builder setVersion(long version) {
+            this.version = version;
+            return this;
+        }
+
+        public Builder setSyncedVersion(long syncedVersion) {
+            this.syncedVersion = syncedVersion;
+            return this;
+        }
+
+        public Builder setUse24HourTime(boolean use24HourTime) {
+            this.use24HourTime = use24HourTime;
+            return this;
+        }
+
+        public Builder setShowTemperature(boolean showTemperature) {
+            this.showTemperature = showTemperature;
+            return this;
+        }
+
+        public Builder setShowWeatherIcon(boolean showWeatherIcon) {
+            this.showWeatherIcon = showWeatherIcon;
+            return this;
+        }
+
+        public Builder setUseCelsius(boolean useCelsius) {
+            this.useCelsius = useCelsius;
+            return this;
+        }
+
+        public Builder setUseEuropeanDateFormat(boolean useEuropeanDateFormat) {
+            this.useEuropeanDateFormat = useEuropeanDateFormat;
+            return this;
+        }
+
+        public Builder setUseThinAmbient(boolean useThinAmbient) {
+            this.useThinAmbient = useThinAmbient;
+            return this;
+        }
+
+        public Builder setShowInfoBarAmbient(boolean showInfoBarAmbient) {
+            this.showInfoBarAmbient = showInfoBarAmbient;
+            return this;
+        }
+
+        public Builder setShowTemperatureFractional(boolean showTemperatureFractional) {
+            this.showTemperatureFractional = showTemperatureFractional;
+            return this;
+        }
+
+        public Builder setShowBattery(boolean showBattery) {
+            this.showBattery = showBattery;
+            return this;
+        }
+
+        public Builder setUseDarkSky(boolean useDarkSky) {
+            this.useDarkSky = useDarkSky;
+            return this;
+        }
+
+        public Builder setUseCommaFractional(boolean useCommaFractional) {
+            this.useCommaFractional = useCommaFractional;
+            return this;
+        }
+
+        public Builder setDarkSkyAPIKey(String darkSkyAPIKey) {
+            this.darkSkyAPIKey = darkSkyAPIKey == null ? "" : darkSkyAPIKey;
+            return this;
+        }
+
+        public Builder setKeyVersion(String key, long version) {
+            keyVersions.put(key, version);
+            return this;
+        }
+
+        public SettingsSnapshot build() {
+            return new SettingsSnapshot(this);
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Small binary store for everything the face needs at startup: settings, weather scheduler state,
+ * the last weather observation and where the face last knew itself to be. The whole state is one
+ * file that is memory-mapped on load and rewritten atomically (temp file, fsync, rename) on a
+ * background thread whenever something changes, so a crash mid-write leaves the previous state
+ * intact. A CRC32 over the payload catches anything else; the file it replaces is kept as a
+ * backup, which is read instead if the current one turns out to be missing or invalid.
+ *
+ * Layout: magic (int), format version (short), payload length (int), payload CRC32 (int),
+ * payload.
+ */
+public class StateStore {
+
+    private static final String TAG = "StateStore";
+
+    private static final String FILE_NAME = "face_state.bin";
+    private static final int MAGIC = 0x50574653; // "PWFS"
+    private static final short FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 4 + 4;
+
+    private static final int HAS_SETTINGS = 1;
+    private static final int HAS_WEATHER = 1 << 1;
+    private static final int HAS_LOCATION = 1 << 2;
+    private static final int HAS_KEY_VERSIONS = 1 << 3;
+
+    private static volatile StateStore instance;
+
+    private final File mFile;
+    private final Executor mWriteExecutor = Executors.newSingleThreadExecutor();
+    private boolean mWritePending = false;
+
+    private SettingsSnapshot mSettings;
+    private WeatherData mWeather;
+    private long mLastFetchTime;
+    private long mPhoneSnapshotTime;
+    private Location mLocation;
+
+    /**
+     * The decoded contents of a state file.
+     */
+    static class State {
+        SettingsSnapshot settings;
+        WeatherData weather;
+        long lastFetchTime;
+        long phoneSnapshotTime;
+        Location location;
+    }
+
+    private StateStore(Context context) {
+        if (instance != null) {
+            throw new RuntimeException("Use getInstance() method to get the single instance of this class");
+        } else {
+            mFile = new File(context.getFilesDir(), FILE_NAME);
+            boolean stored = mFile.exists() || backupFile(mFile).exists();
+            State state = readWithBackup(mFile);
+            if (state != null) {
+                mSettings = state.settings;
+                mWeather = state.weather;
+                mLastFetchTime = state.lastFetchTime;
+                mPhoneSnapshotTime = state.phoneSnapshotTime;
+                mLocation = state.location;
+            }
+            if (mSettings == null && !stored) {
+                // one-time import of the settings kept in SharedPreferences before this existed
+                mSettings = readLegacySettings(PreferenceManager.getDefaultSharedPreferences(context));
+                FaceLog.d(TAG, "Migrated settings from SharedPreferences");
+                scheduleWrite();
+            } else if (mSettings == null) {
+                // the preferences are older than anything the store held, so importing them
+                // again would bring back settings the user has since changed
+                FaceLog.w(TAG, "No readable state, starting from defaults");
+                mSettings = SettingsSnapshot.defaults();
+            }
+        }
+    }
+
+    public static StateStore getInstance(Context context) {
+        if (instance == null) {
+            synchronized (StateStore.class) {
+                if (instance == null) {
+                    instance = new StateStore(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    public synchronized SettingsSnapshot getSettings() {
+        return mSettings;
+    }
+
+    public synchronized void putSettings(SettingsSnapshot settings) {
+        mSettings = settings;
+        scheduleWrite();
+    }
+
+    /**
+     * @return the last weather observation, or null if none has been stored
+     */
+    public synchronized WeatherData getWeather() {
+        return mWeather;
+    }
+
+    public synchronized long getLastFetchTime() {
+        return mLastFetchTime;
+    }
+
+    public synchronized long getPhoneSnapshotTime() {
+        return mPhoneSnapshotTime;
+    }
+
+    /**
+     * @param fetchTime         when {@code weather} was fetched, ms since epoch
+     * @param phoneSnapshotTime when the phone pushed it, or 0 if the watch fetched it itself
+     */
+    public synchronized void putWeather(WeatherData weather, long fetchTime, long phoneSnapshotTime) {
+        mWeather = weather;
+        mLastFetchTime = fetchTime;
+        mPhoneSnapshotTime = phoneSnapshotTime;
+        scheduleWrite();
+    }
+
+    /**
+     * @return the last location stored, latitude and longitude only, or null if none has been
+     */
+    public synchronized Location getLocation() {
+        return mLocation;
+    }
+
+    public synchronized void putLocation(Location location) {
+        mLocation = location;
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        // several changes in quick succession are coalesced into a single write
+        if (!mWritePending) {
+            mWritePending = true;
+            mWriteExecutor.execute(this::write);
+        }
+    }
+
+    private void write() {
+        State state = new State();
+        synchronized (this) {
+            mWritePending = false;
+            state.settings = mSettings;
+            state.weather = mWeather;
+            state.lastFetchTime = mLastFetchTime;
+            state.phoneSnapshotTime = mPhoneSnapshotTime;
+            state.location = mLocation;
+        }
+        writeTo(mFile, state);
+    }
+
+    /**
+     * @return where the state file {@code file} replaces is kept
+     */
+    static File backupFile(File file) {
+        return new File(file.getPath() + ".bak");
+    }
+
+    /**
+     * Atomically replaces {@code file} with an encoding of {@code state}, keeping the file it
+     * replaces as {@link #backupFile}.
+     */
+    static void writeTo(File file, State state) {
+        byte[] payload;
+        try {
+            payload = encodePayload(state);
+        } catch (IllegalArgumentException e) {
+            FaceLog.e(TAG, "Couldn't encode state: {}", e);
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(FORMAT_VERSION).putInt(payload.length).putInt((int) crc.getValue());
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(header.array());
+            out.write(payload);
+            out.getFD().sync();
+        } catch (IOException e) {
+            FaceLog.e(TAG, "Couldn't write state: {}", e);
+            return;
+        }
+        // a crash between the two renames leaves only the backup, which readWithBackup() reads
+        if (file.exists() && !file.renameTo(backupFile(file))) {
+            FaceLog.w(TAG, "Couldn't back up state file");
+        }
+        if (!temp.renameTo(file)) {
+            FaceLog.e(TAG, "Couldn't replace state file");
+        }
+    }
+
+    /**
+     * @return the state stored in {@code stateFile}, or if that is missing or invalid the state
+     * in its backup, or null if neither can be read
+     */
+    static State readWithBackup(File stateFile) {
+        State state = readFrom(stateFile);
+        if (state != null) {
+            return state;
+        }
+        if (stateFile.exists()) {
+            WeatherMetrics.getInstance().increment("state.corrupt");
+            // so the next write doesn't replace the backup with it
+            if (!stateFile.delete()) {
+                FaceLog.w(TAG, "Couldn't remove invalid state file");
+            }
+        }
+        File backup = backupFile(stateFile);
+        state = readFrom(backup);
+        if (state != null) {
+            FaceLog.i(TAG, "Restored state from backup");
+            WeatherMetrics.getInstance().increment("state.restored_from_backup");
+        } else if (backup.exists()) {
+            WeatherMetrics.getInstance().increment("state.corrupt");
+        }
+        return state;
+    }
+
+    /**
+     * @return the state stored in {@code stateFile}, or null if it is missing or invalid
+     */
+    static State readFrom(File stateFile) {
+        if (!stateFile.exists()) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(stateFile, "r");
+             FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                FaceLog.w(TAG, "Not a state file, ignoring");
+                return null;
+            }
+            short version = buffer.getShort();
+            if (version != FORMAT_VERSION) {
+                FaceLog.w(TAG, "Unsupported state format {}, ignoring", version);
+                return null;
+            }
+            int length = buffer.getInt();
+            int expectedCrc = buffer.getInt();
+            if (length != buffer.remaining()) {
+                FaceLog.w(TAG, "Truncated state file, ignoring");
+                return null;
+            }
+            // CRC32.update(ByteBuffer) needs API 26, so checksum a copy of the payload
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != expectedCrc) {
+                FaceLog.w(TAG, "State checksum mismatch, ignoring");
+                return null;
+            }
+            return decodePayload(ByteBuffer.wrap(payload));
+        } catch (IOException | BufferUnderflowException e) {
+            FaceLog.e(TAG, "Couldn't read state: {}", e);
+            return null;
+        }
+    }
+
+    private static byte[] encodePayload(State state) {
+        // enough for typical state; long strings (an API key, a provider's summary) just cost a
+        // retry with a bigger buffer
+        int capacity = 1024;
+        while (true) {
+            try {
+                return encodePayload(state, ByteBuffer.allocate(capacity));
+            } catch (BufferOverflowException e) {
+                capacity *= 2;
+            }
+        }
+    }
+
+    private static byte[] encodePayload(State state, ByteBuffer buffer) {
+        boolean hasKeyVersions = state.settings != null && !state.settings.getKeyVersions().isEmpty();
+        int sections = (state.settings != null ? HAS_SETTINGS : 0) | (state.weather != null ? HAS_WEATHER : 0)
+                | (state.location != null ? HAS_LOCATION : 0) | (hasKeyVersions ? HAS_KEY_VERSIONS : 0);
+        buffer.put((byte) sections);
+        buffer.putLong(state.lastFetchTime);
+        buffer.putLong(state.phoneSnapshotTime);
+        if (state.settings != null) {
+            int flags = 0;
+            flags |= state.settings.isUse24HourTime() ? 1 : 0;
+            flags |= state.settings.isShowTemperature() ? 1 << 1 : 0;
+            flags |= state.settings.isShowWeatherIcon() ? 1 << 2 : 0;
+            flags |= state.settings.isUseCelsius() ? 1 << 3 : 0;
+            flags |= state.settings.isUseEuropeanDateFormat() ? 1 << 4 : 0;
+            flags |= state.settings.isUseThinAmbient() ? 1 << 5 : 0;
+            flags |= state.settings.isShowInfoBarAmbient() ? 1 << 6 : 0;
+            flags |= state.settings.isShowTemperatureFractional() ? 1 << 7 : 0;
+            flags |= state.settings.isShowBattery() ? 1 << 8 : 0;
+            flags |= state.settings.isUseDarkSky() ? 1 << 9 : 0;
+            flags |= state.settings.isUseCommaFractional() ? 1 << 10 : 0;
+            buffer.putInt(flags);
+            buffer.putLong(state.settings.getSyncedVersion());
+            putString(buffer, state.settings.getDarkSkyAPIKey());
+        }
+        if (state.weather != null) {
+            putString(buffer, state.weather.getProvider());
+            putString(buffer, state.weather.getIconName());
+            putString(buffer, state.weather.getTimeZone());
+            putString(buffer, state.weather.getSummary());
+            buffer.putLong(state.weather.getTime());
+            buffer.putDouble(state.weather.getTemperature());
+            buffer.putFloat((float) state.weather.getHumidity());
+            buffer.putFloat((float) state.weather.getPrecipitationChance());
+        }
+        // sections are only ever appended, so older builds still read the ones they know
+        if (state.location != null) {
+            buffer.putDouble(state.location.getLatitude());
+            buffer.putDouble(state.location.getLongitude());
+        }
+        if (hasKeyVersions) {
+            buffer.putShort((short) state.settings.getKeyVersions().size());
+            for (Map.Entry<String, Long> entry : state.settings.getKeyVersions().entrySet()) {
+                putString(buffer, entry.getKey());
+                buffer.putLong(entry.getValue());
+            }
+        }
+        byte[] payload = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(payload);
+        return payload;
+    }
+
+    private static State decodePayload(ByteBuffer buffer) {
+        State state = new State();
+        int sections = buffer.get();
+        state.lastFetchTime = buffer.getLong();
+        state.phoneSnapshotTime = buffer.getLong();
+        SettingsSnapshot.Builder settings = null;
+        if ((sections & HAS_SETTINGS) != 0) {
+            int flags = buffer.getInt();
+            settings = new SettingsSnapshot.Builder()
+                    .setUse24HourTime((flags & 1) != 0)
+                    .setShowTemperature((flags & 1 << 1) != 0)
+                    .setShowWeatherIcon((flags & 1 << 2) != 0)
+                    .setUseCelsius((flags & 1 << 3) != 0)
+                    .setUseEuropeanDateFormat((flags & 1 << 4) != 0)
+                    .setUseThinAmbient((flags & 1 << 5) != 0)
+                    .setShowInfoBarAmbient((flags & 1 << 6) != 0)
+                    .setShowTemperatureFractional((flags & 1 << 7) != 0)
+                    .setShowBattery((flags & 1 << 8) != 0)
+                    .setUseDarkSky((flags & 1 << 9) != 0)
+                    .setUseCommaFractional((flags & 1 << 10) != 0)
+                    .setSyncedVersion(buffer.getLong())
+                    .setDarkSkyAPIKey(getString(buffer));
+        }
+        if ((sections & HAS_WEATHER) != 0) {
+            state.weather = new WeatherData(getString(buffer));
+            state.weather.setIconName(getString(buffer));
+            state.weather.setTimeZone(getString(buffer));
+            state.weather.setSummary(getString(buffer));
+            state.weather.setTime(buffer.getLong());
+            state.weather.setTemperature(buffer.getDouble());
+            state.weather.setHumidity(buffer.getFloat());
+            state.weather.setPrecipitationChance(buffer.getFloat());
+        }
+        if ((sections & HAS_LOCATION) != 0) {
+            state.location = new Location(TAG);
+            state.location.setLatitude(buffer.getDouble());
+            state.location.setLongitude(buffer.getDouble());
+        }
+        if ((sections & HAS_KEY_VERSIONS) != 0) {
+            int count = buffer.getShort();
+            for (int i = 0; i < count; i++) {
+                String key = getString(buffer);
+                long version = buffer.getLong();
+                if (settings != null) {
+                    settings.setKeyVersion(key, version);
+                }
+            }
+        }
+        if (settings != null) {
+            state.settings = settings.build();
+        }
+        return state;
+    }
+
+    /**
+     * @return the settings the face kept in the default SharedPreferences before this store
+     * existed, with the defaults it used for anything missing
+     */
+    static SettingsSnapshot readLegacySettings(SharedPreferences sharedPreferences) {
+        SettingsSnapshot defaults = SettingsSnapshot.defaults();
+        return defaults.toBuilder()
+                .setUse24HourTime(sharedPreferences.getBoolean("use_24_hour_time", defaults.isUse24HourTime()))
+                .setShowTemperature(sharedPreferences.getBoolean("show_temperature", defaults.isShowTemperature()))
+                .setUseCelsius(sharedPreferences.getBoolean("use_celsius", defaults.isUseCelsius()))
+                .setShowWeatherIcon(sharedPreferences.getBoolean("show_weather", defaults.isShowWeatherIcon()))
+                .setUseThinAmbient(sharedPreferences.getBoolean("use_thin_ambient", defaults.isUseThinAmbient()))
+                .setShowInfoBarAmbient(sharedPreferences.getBoolean("show_infobar_ambient", defaults.isShowInfoBarAmbient()))
+                .setUseEuropeanDateFormat(sharedPreferences.getBoolean("use_european_date", defaults.isUseEuropeanDateFormat()))
+                .setShowTemperatureFractional(sharedPreferences.getBoolean("show_temperature_decimal", defaults.isShowTemperatureFractional()))
+                .setDarkSkyAPIKey(sharedPreferences.getString("dark_sky_api_key", defaults.getDarkSkyAPIKey()))
+                .setUseDarkSky(sharedPreferences.getBoolean("use_dark_sky", defaults.isUseDarkSky()))
+                .setShowBattery(sharedPreferences.getBoolean("show_battery", defaults.isShowBattery()))
+                .setSyncedVersion(sharedPreferences.getLong("settings_version", defaults.getSyncedVersion()))
+                .build();
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("String of " + bytes.length + " bytes is too long to store");
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,158 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.Context;
+import android.location.Location;
+
+/**
+ * Works out on the watch whether the sun is up, so day and night icon variants follow the sky
+ * rather than the time of the last fetch. Sunrise and sunset come from the sunrise equation (as
+ * used by NOAA's simplified solar calculator, good to a minute or two outside the polar
+ * regions) for the last known location, and are computed once per solar day; between those
+ * checking the time is two comparisons.
+ *
+ * The location is the one weather was last fetched for, which {@link CurrentWeather} keeps in
+ * the {@link StateStore} so the answer survives restarts, or failing that the
+ * {@link LocationCache}'s fix.
+ */
+public class SunTimes {
+
+    private static final String TAG = "SunTimes";
+
+    public static final int UNKNOWN = 0;
+    public static final int DAY = 1;
+    public static final int NIGHT = 2;
+
+    private static final double MS_PER_DAY = 86400000.0;
+    private static final double JULIAN_UNIX_EPOCH = 2440587.5;
+    private static final double JULIAN_J2000 = 2451545.0;
+    // refraction and the size of the sun's disc: sunrise is when its top edge clears the horizon
+    private static final double SUNRISE_ALTITUDE = -0.833;
+    private static final double EARTH_TILT = 23.4397;
+    // recompute when the location moves by more than about 10 km; a degree of longitude is four
+    // minutes of sun time, so this keeps sunrise within a minute of where we are
+    private static final double LOCATION_TOLERANCE_DEGREES = 0.1;
+
+    private static volatile SunTimes instance;
+
+    private final StateStore mStateStore;
+    private final LocationCache mLocationCache;
+
+    private Location mLocation;
+    // solar day the times below are for; Long.MIN_VALUE when they need computing
+    private long mDay = Long.MIN_VALUE;
+    private long mSunrise;
+    private long mSunset;
+    private int mAllDay = UNKNOWN; // DAY or NIGHT when the sun doesn't rise or set at all
+
+    private SunTimes(Context context) {
+        if (instance != null) {
+            throw new RuntimeException("Use getInstance() method to get the single instance of this class");
+        } else {
+            mStateStore = StateStore.getInstance(context);
+            mLocationCache = LocationCache.getInstance(context);
+            mLocation = mStateStore.getLocation();
+        }
+    }
+
+    public static SunTimes getInstance(Context context) {
+        if (instance == null) {
+            synchronized (SunTimes.class) {
+                if (instance == null) {
+                    instance = new SunTimes(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Moves the calculation to {@code location}, e.g. where weather was just fetched for.
+     * Movements under about 10 km are ignored.
+     */
+    public synchronized void setLocation(Location location) {
+        if (location == null || (mLocation != null
+                && Math.abs(location.getLatitude() - mLocation.getLatitude()) < LOCATION_TOLERANCE_DEGREES
+                && Math.abs(location.getLongitude() - mLocation.getLongitude()) < LOCATION_TOLERANCE_DEGREES)) {
+            return;
+        }
+        Location stored = new Location(TAG);
+        stored.setLatitude(location.getLatitude());
+        stored.setLongitude(location.getLongitude());
+        mLocation = stored;
+        mDay = Long.MIN_VALUE;
+    }
+
+    /**
+     * @param time ms since epoch
+     * @return {@link #DAY} or {@link #NIGHT} at {@code time}, or {@link #UNKNOWN} if we don't
+     * know where we are
+     */
+    public synchronized int getPhase(long time) {
+        if (mLocation == null) {
+            Location fix = mLocationCache.getLastFix();
+            if (fix == null) {
+                return UNKNOWN;
+            }
+            setLocation(fix);
+        }
+        long day = getSolarDay(time, mLocation.getLongitude());
+        if (day != mDay) {
+            long[] times = new long[2];
+            mAllDay = compute(day, mLocation.getLatitude(), mLocation.getLongitude(), times);
+            mSunrise = times[0];
+            mSunset = times[1];
+            mDay = day;
+            FaceLog.d(TAG, "solar day {}: sunrise {}, sunset {}, all day {}", day, mSunrise, mSunset, mAllDay);
+        }
+        if (mAllDay != UNKNOWN) {
+            return mAllDay;
+        }
+        return time >= mSunrise && time < mSunset ? DAY : NIGHT;
+    }
+
+    /**
+     * @return the number of the solar day whose noon is nearest {@code time} at
+     * {@code longitude}, counted from J2000; it changes at local solar midnight
+     */
+    static long getSolarDay(long time, double longitude) {
+        return Math.round(time / MS_PER_DAY + JULIAN_UNIX_EPOCH - JULIAN_J2000 + longitude / 360);
+    }
+
+    /**
+     * Computes sunrise and sunset for one solar day with the sunrise equation.
+     *
+     * @param day       as returned by {@link #getSolarDay}
+     * @param latitude  degrees north
+     * @param longitude degrees east
+     * @param out       receives sunrise and sunset, ms since epoch
+     * @return {@link #DAY} if the sun stays up all day, {@link #NIGHT} if it stays down, or
+     * {@link #UNKNOWN} if it rises and sets and {@code out} was filled
+     */
+    static int compute(long day, double latitude, double longitude, long[] out) {
+        // mean solar noon, in days since J2000
+        double meanNoon = day - longitude / 360;
+        double anomaly = Math.toRadians((357.5291 + 0.98560028 * meanNoon) % 360);
+        double center = 1.9148 * Math.sin(anomaly) + 0.0200 * Math.sin(2 * anomaly) + 0.0003 * Math.sin(3 * anomaly);
+        double eclipticLongitude = Math.toRadians((Math.toDegrees(anomaly) + center + 180 + 102.9372) % 360);
+        double transit = meanNoon + 0.0053 * Math.sin(anomaly) - 0.0069 * Math.sin(2 * eclipticLongitude);
+
+        double sinDeclination = Math.sin(eclipticLongitude) * Math.sin(Math.toRadians(EARTH_TILT));
+        double cosDeclination = Math.cos(Math.asin(sinDeclination));
+        double phi = Math.toRadians(latitude);
+        double cosHourAngle = (Math.sin(Math.toRadians(SUNRISE_ALTITUDE)) - Math.sin(phi) * sinDeclination)
+                / (Math.cos(phi) * cosDeclination);
+        if (cosHourAngle < -1) {
+            return DAY;
+        } else if (cosHourAngle > 1) {
+            return NIGHT;
+        }
+        double halfDay = Math.toDegrees(Math.acos(cosHourAngle)) / 360;
+        out[0] = toUnixMillis(transit - halfDay);
+        out[1] = toUnixMillis(transit + halfDay);
+        return UNKNOWN;
+    }
+
+    private static long toUnixMillis(double daysSinceJ2000) {
+        return Math.round((daysSinceJ2000 + JULIAN_J2000 - JULIAN_UNIX_EPOCH) * MS_PER_DAY);
+    }
+}
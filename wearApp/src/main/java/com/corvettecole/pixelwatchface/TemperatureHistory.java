@@ -0,0 +1,201 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The most recent weather observations, oldest overwritten first, so the face can show a trend.
+ * Samples live in parallel primitive arrays and are written through to a small memory-mapped
+ * file as they are added; on startup the arrays are filled straight from the mapping, with no
+ * parsing. The kernel writes the mapping back on its own, so adding a sample is a few stores.
+ *
+ * Layout: magic (int), format version (short), index of the next slot (int), sample count
+ * (int), then {@link #CAPACITY} timestamps (long, ms since epoch), temperatures (float,
+ * Fahrenheit) and condition codes (byte) as three arrays. About 1.7 KB.
+ */
+public class TemperatureHistory {
+
+    private static final String TAG = "TemperatureHistory";
+
+    /**
+     * Enough for a day of half-hourly fetches plus the phone's pushes in between.
+     */
+    public static final int CAPACITY = 128;
+
+    private static final String FILE_NAME = "temperature_history.bin";
+    private static final int MAGIC = 0x50575448; // "PWTH"
+    private static final short FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 4 + 4;
+    private static final int HEAD_OFFSET = 4 + 2;
+    private static final int COUNT_OFFSET = HEAD_OFFSET + 4;
+    private static final int TIMES_OFFSET = HEADER_SIZE;
+    private static final int TEMPERATURES_OFFSET = TIMES_OFFSET + CAPACITY * 8;
+    private static final int CONDITIONS_OFFSET = TEMPERATURES_OFFSET + CAPACITY * 4;
+    private static final int FILE_SIZE = CONDITIONS_OFFSET + CAPACITY;
+
+    /**
+     * Condition codes are indexes into this table, so it may only ever be appended to.
+     */
+    private static final int[] CONDITION_ICONS = {
+            R.drawable.clear_day, R.drawable.clear_night, R.drawable.partly_cloudy, R.drawable.cloudy_night,
+            R.drawable.cloudy, R.drawable.rain, R.drawable.snow, R.drawable.sleet, R.drawable.wind, R.drawable.fog
+    };
+    public static final byte CONDITION_UNKNOWN = -1;
+
+    private static volatile TemperatureHistory instance;
+
+    private final long[] mTimes = new long[CAPACITY];
+    private final float[] mTemperatures = new float[CAPACITY];
+    private final byte[] mConditions = new byte[CAPACITY];
+    private int mHead = 0;
+    private int mCount = 0;
+    private long mVersion = 0;
+    // null if the file couldn't be mapped, in which case history only lasts until a restart
+    private MappedByteBuffer mBuffer;
+
+    private TemperatureHistory(Context context) {
+        if (instance != null) {
+            throw new RuntimeException("Use getInstance() method to get the single instance of this class");
+        } else {
+            mBuffer = map(new File(context.getFilesDir(), FILE_NAME));
+            if (mBuffer != null) {
+                load();
+            }
+        }
+    }
+
+    /**
+     * A history kept in {@code file} rather than the face's own; for tests.
+     */
+    TemperatureHistory(File file) {
+        mBuffer = map(file);
+        if (mBuffer != null) {
+            load();
+        }
+    }
+
+    public static TemperatureHistory getInstance(Context context) {
+        if (instance == null) {
+            synchronized (TemperatureHistory.class) {
+                if (instance == null) {
+                    instance = new TemperatureHistory(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private static MappedByteBuffer map(File file) {
+        // the mapping stays valid after the channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            if (raf.length() != FILE_SIZE) {
+                raf.setLength(FILE_SIZE);
+            }
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        } catch (IOException e) {
+            FaceLog.e(TAG, "Couldn't map history: {}", e);
+            return null;
+        }
+    }
+
+    private void load() {
+        int head = mBuffer.getInt(HEAD_OFFSET);
+        int count = mBuffer.getInt(COUNT_OFFSET);
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getShort(4) != FORMAT_VERSION
+                || head < 0 || head >= CAPACITY || count < 0 || count > CAPACITY) {
+            // new, or from an incompatible version: start over
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putShort(4, FORMAT_VERSION);
+            mBuffer.putInt(HEAD_OFFSET, 0);
+            mBuffer.putInt(COUNT_OFFSET, 0);
+            return;
+        }
+        mBuffer.position(TIMES_OFFSET);
+        mBuffer.asLongBuffer().get(mTimes);
+        mBuffer.position(TEMPERATURES_OFFSET);
+        mBuffer.asFloatBuffer().get(mTemperatures);
+        mBuffer.position(CONDITIONS_OFFSET);
+        mBuffer.get(mConditions);
+        mHead = head;
+        mCount = count;
+    }
+
+    /**
+     * @return the condition code for one of our weather icons
+     */
+    public static byte conditionFor(int iconId) {
+        for (int i = 0; i < CONDITION_ICONS.length; i++) {
+            if (CONDITION_ICONS[i] == iconId) {
+                return (byte) i;
+            }
+        }
+        return CONDITION_UNKNOWN;
+    }
+
+    /**
+     * Records an observation. One no newer than the newest sample is ignored, so restoring or
+     * receiving the same observation again doesn't duplicate it.
+     *
+     * @param time        observation time, ms since epoch
+     * @param temperature in Fahrenheit
+     */
+    public synchronized void add(long time, float temperature, byte condition) {
+        if (mCount > 0 && time <= mTimes[(mHead + CAPACITY - 1) % CAPACITY]) {
+            return;
+        }
+        int slot = mHead;
+        mTimes[slot] = time;
+        mTemperatures[slot] = temperature;
+        mConditions[slot] = condition;
+        mHead = (mHead + 1) % CAPACITY;
+        mCount = Math.min(mCount + 1, CAPACITY);
+        mVersion++;
+        if (mBuffer != null) {
+            mBuffer.putLong(TIMES_OFFSET + slot * 8, time);
+            mBuffer.putFloat(TEMPERATURES_OFFSET + slot * 4, temperature);
+            mBuffer.put(CONDITIONS_OFFSET + slot, condition);
+            // the header last, so a sample is only counted once it is fully written
+            mBuffer.putInt(HEAD_OFFSET, mHead);
+            mBuffer.putInt(COUNT_OFFSET, mCount);
+        }
+    }
+
+    /**
+     * @return a number that changes whenever a sample is added
+     */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Copies the samples taken at or after {@code since}, oldest first, into the given arrays,
+     * which must hold at least {@link #CAPACITY} elements.
+     *
+     * @return how many samples were copied
+     */
+    public synchronized int copySince(long since, long[] times, float[] temperatures, byte[] conditions) {
+        int copied = 0;
+        for (int i = 0; i < mCount; i++) {
+            int slot = (mHead - mCount + i + CAPACITY) % CAPACITY;
+            if (mTimes[slot] >= since) {
+                times[copied] = mTimes[slot];
+                temperatures[copied] = mTemperatures[slot];
+                if (conditions != null) {
+                    conditions[copied] = mConditions[slot];
+                }
+                copied++;
+            }
+        }
+        return copied;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+}
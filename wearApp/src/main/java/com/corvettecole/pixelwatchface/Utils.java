@@ -1,7 +1,9 @@
 package com.corvettecole.pixelwatchface;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -9,10 +11,22 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.util.Log;
 
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.Calendar;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Utils {
 
@@ -40,6 +54,50 @@ public class Utils {
         return bitmap;
     }
 
+    /**
+     * Loads a drawable resource as a bitmap of exactly {@code width} x {@code height}. Bitmap
+     * resources are subsampled while decoding, so a large density bucket is never fully decoded
+     * just to be shrunk; vector drawables are rasterized straight at the target size.
+     *
+     * @param config the config to decode to. Decoders may fall back to ARGB_8888 for images
+     *               with alpha when asked for RGB_565.
+     * @return the bitmap, or null if the resource couldn't be decoded
+     */
+    public static Bitmap loadBitmap(Context context, int resId, int width, int height, Bitmap.Config config) {
+        Resources resources = context.getResources();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.inScaled = false;
+        BitmapFactory.decodeResource(resources, resId, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            // not a bitmap resource, e.g. a vector
+            Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+            Drawable drawable = context.getDrawable(resId);
+            drawable.setBounds(0, 0, width, height);
+            drawable.draw(new Canvas(bitmap));
+            return bitmap;
+        }
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = config;
+        Bitmap decoded = BitmapFactory.decodeResource(resources, resId, options);
+        if (decoded == null) {
+            return null;
+        }
+        if (decoded.getWidth() == width && decoded.getHeight() == height) {
+            return decoded;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(decoded, width, height, true);
+        if (scaled != decoded) {
+            decoded.recycle();
+        }
+        return scaled;
+    }
+
     public static int getHour(Calendar mCalendar, Boolean mUse24HourTime){
         if (mUse24HourTime){
             return mCalendar.get(Calendar.HOUR_OF_DAY);
@@ -59,5 +117,48 @@ public class Utils {
         return (fahrenheit - 32)/1.8;
     }
 
+    private static ScheduledExecutorService sDeadlineScheduler;
+
+    private static synchronized ScheduledExecutorService getDeadlineScheduler() {
+        if (sDeadlineScheduler == null) {
+            sDeadlineScheduler = Executors.newSingleThreadScheduledExecutor();
+        }
+        return sDeadlineScheduler;
+    }
+
+    /**
+     * Mirrors {@code future}, but cancels {@code future} and fails with a
+     * {@link TimeoutException} if it hasn't completed within {@code timeout}. Cancelling the
+     * returned future cancels {@code future} too.
+     */
+    public static <T> ListenableFuture<T> withDeadline(ListenableFuture<T> future, long timeout, TimeUnit unit) {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            AtomicBoolean timedOut = new AtomicBoolean();
+            ScheduledFuture<?> deadline = getDeadlineScheduler().schedule(() -> {
+                // cancel before failing, so whoever sees the timeout knows the work has stopped
+                timedOut.set(true);
+                future.cancel(true);
+            }, timeout, unit);
+            future.addListener(() -> {
+                deadline.cancel(false);
+                try {
+                    completer.set(future.get());
+                } catch (CancellationException e) {
+                    if (timedOut.get()) {
+                        completer.setException(new TimeoutException("deadline of " + timeout + " " + unit + " exceeded"));
+                    } else {
+                        completer.setCancelled();
+                    }
+                } catch (ExecutionException e) {
+                    completer.setException(e.getCause());
+                } catch (InterruptedException e) {
+                    completer.setException(e);
+                }
+            }, Runnable::run);
+            completer.addCancellationListener(() -> future.cancel(true), Runnable::run);
+            return "withDeadline";
+        });
+    }
+
 
 }
@@ -0,0 +1,159 @@
+package com.corvettecole.pixelwatchface;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records every time the face is woken up, by which source and how much CPU time the wake-up
+ * took, in a fixed ring buffer of primitives. Answers how often each source fired in the last
+ * hour against a per-source budget, and can log a warning when one goes over.
+ *
+ * CPU time is that of the callback the wake-up ran, not the frame it may have invalidated;
+ * frames are drawn later, and are accounted for separately.
+ */
+public class WakeUpLedger {
+
+    private static final String TAG = "WakeUpLedger";
+
+    public static final int SOURCE_UPDATE_TIMER = 0;
+    public static final int SOURCE_TIME_TICK = 1;
+    public static final int SOURCE_BATTERY = 2;
+    public static final int SOURCE_TIME_ZONE = 3;
+    public static final int SOURCE_DATA_CHANGED = 4;
+    public static final int SOURCE_WEATHER_WORKER = 5;
+
+    private static final String[] SOURCE_NAMES = {
+            "update_timer", "time_tick", "battery", "time_zone", "data_changed", "weather_worker"
+    };
+
+    /**
+     * Wake-ups per hour each source is expected to stay under. The update timer and time tick
+     * fire once a minute while interactive and ambient respectively; battery broadcasts come
+     * with each percent; the worker runs every half hour plus retries.
+     */
+    private static final int[] HOURLY_BUDGETS = {60, 60, 30, 2, 20, 6};
+
+    private static final int CAPACITY = 1024;
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    private static final WakeUpLedger instance = new WakeUpLedger();
+
+    private final long[] mTimes = new long[CAPACITY];
+    private final long[] mCpuNanos = new long[CAPACITY];
+    private final byte[] mSources = new byte[CAPACITY];
+    private final long[] mTotals = new long[SOURCE_NAMES.length];
+    private final long[] mLastWarned = new long[SOURCE_NAMES.length];
+    private int mNext = 0;
+    private int mSize = 0;
+    private volatile boolean mWarnOverBudget = false;
+
+    private WakeUpLedger() {
+    }
+
+    public static WakeUpLedger getInstance() {
+        return instance;
+    }
+
+    public void setWarnOverBudget(boolean warn) {
+        mWarnOverBudget = warn;
+    }
+
+    /**
+     * @param source   one of the SOURCE_ constants
+     * @param cpuNanos CPU time the wake-up took
+     */
+    public void record(int source, long cpuNanos) {
+        long now = Clock.get().elapsedRealtime();
+        boolean overBudget = false;
+        synchronized (this) {
+            mTimes[mNext] = now;
+            mCpuNanos[mNext] = cpuNanos;
+            mSources[mNext] = (byte) source;
+            mNext = (mNext + 1) % CAPACITY;
+            if (mSize < CAPACITY) {
+                mSize++;
+            }
+            mTotals[source]++;
+            if (mWarnOverBudget && (mLastWarned[source] == 0 || now - mLastWarned[source] >= HOUR_MS)
+                    && countSince(source, now - HOUR_MS) > HOURLY_BUDGETS[source]) {
+                mLastWarned[source] = now;
+                overBudget = true;
+            }
+        }
+        if (overBudget) {
+            FaceLog.w(TAG, "{} exceeded its budget of {} wake-ups per hour", SOURCE_NAMES[source], HOURLY_BUDGETS[source]);
+        }
+    }
+
+    /**
+     * @return wake-ups from {@code source} in the last hour
+     */
+    public synchronized int getWakeUpsLastHour(int source) {
+        return countSince(source, Clock.get().elapsedRealtime() - HOUR_MS);
+    }
+
+    /**
+     * @return CPU time spent on wake-ups from {@code source} in the last hour, in ns
+     */
+    public synchronized long getCpuNanosLastHour(int source) {
+        long since = Clock.get().elapsedRealtime() - HOUR_MS;
+        long total = 0;
+        for (int i = 0; i < mSize; i++) {
+            int index = (mNext - 1 - i + CAPACITY) % CAPACITY;
+            if (mTimes[index] < since) {
+                break;
+            }
+            if (mSources[index] == source) {
+                total += mCpuNanos[index];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Walks back from the newest entry, which is also the latest, until it leaves the window.
+     * Must be called holding the lock.
+     */
+    private int countSince(int source, long since) {
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            int index = (mNext - 1 - i + CAPACITY) % CAPACITY;
+            if (mTimes[index] < since) {
+                break;
+            }
+            if (mSources[index] == source) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return per source: wake-ups and CPU time in the last hour against its budget, and the
+     * total since the process started
+     */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder("wake-ups, last hour / budget (cpu ms) / total\n");
+        for (int source = 0; source < SOURCE_NAMES.length; source++) {
+            sb.append(SOURCE_NAMES[source]).append(": ")
+                    .append(getWakeUpsLastHour(source)).append(" / ").append(HOURLY_BUDGETS[source])
+                    .append(" (").append(TimeUnit.NANOSECONDS.toMillis(getCpuNanosLastHour(source))).append(") / ")
+                    .append(mTotals[source]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the same as {@link #report()} as {@code key=value} lines, each starting with
+     * {@code prefix}.
+     */
+    public synchronized void dump(PrintWriter out, String prefix) {
+        for (int source = 0; source < SOURCE_NAMES.length; source++) {
+            out.print(prefix); out.print(SOURCE_NAMES[source]); out.print(".last_hour="); out.println(getWakeUpsLastHour(source));
+            out.print(prefix); out.print(SOURCE_NAMES[source]); out.print(".budget="); out.println(HOURLY_BUDGETS[source]);
+            out.print(prefix); out.print(SOURCE_NAMES[source]); out.print(".cpu_ms_last_hour=");
+            out.println(TimeUnit.NANOSECONDS.toMillis(getCpuNanosLastHour(source)));
+            out.print(prefix); out.print(SOURCE_NAMES[source]); out.print(".total="); out.println(mTotals[source]);
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package com.corvettecole.pixelwatchface;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import static com.corvettecole.pixelwatchface.Utils.getHour;
+
+/**
+ * The face as a small retained scene: background, time, date, weather, battery, logo and the
+ * temperature trend. Each element keeps its formatted text, measurements and position, and only
+ * redoes them when one of its own inputs changes. A frame that changes nothing but the minute
+ * re-renders only the time and whatever is laid out against it; everything else is drawn from
+ * what it already has.
+ *
+ * Every element counts its re-renders and draw time, see {@link #report()}. Main thread only.
+ */
+public class WatchFaceScene {
+
+    private static final float INFO_BAR_MARGIN = 20.0f;
+
+    /**
+     * One element of the face.
+     */
+    private abstract static class Node {
+        final String mName;
+        boolean mVisible = true;
+        long mRenders = 0;
+        long mDraws = 0;
+        long mDrawNanos = 0;
+
+        Node(String name) {
+            mName = name;
+        }
+
+        final void draw(Canvas canvas) {
+            if (!mVisible) {
+                return;
+            }
+            long start = SystemClock.elapsedRealtimeNanos();
+            onDraw(canvas);
+            mDrawNanos += SystemClock.elapsedRealtimeNanos() - start;
+            mDraws++;
+        }
+
+        abstract void onDraw(Canvas canvas);
+    }
+
+    private static class BackgroundNode extends Node {
+        private final Paint mPaint;
+        private final Rect mBounds = new Rect();
+
+        BackgroundNode(Paint paint) {
+            super("background");
+            mPaint = paint;
+        }
+
+        void update(Rect bounds) {
+            if (!bounds.equals(mBounds)) {
+                mBounds.set(0, 0, bounds.width(), bounds.height());
+                mRenders++;
+            }
+        }
+
+        @Override
+        void onDraw(Canvas canvas) {
+            canvas.drawRect(mBounds, mPaint);
+        }
+    }
+
+    private static class TimeNode extends Node {
+        private int mHour = -1;
+        private int mMinute = -1;
+        private boolean mUse24HourTime;
+        private RenderProfile mProfile;
+        private String mText;
+        float mX;
+        float mBaseline;
+
+        TimeNode() {
+            super("time");
+        }
+
+        @SuppressLint("DefaultLocale")
+        boolean update(Calendar calendar, boolean use24HourTime, RenderProfile profile, Rect bounds, boolean boundsChanged) {
+            int hour = calendar.get(Calendar.HOUR_OF_DAY);
+            int minute = calendar.get(Calendar.MINUTE);
+            if (hour == mHour && minute == mMinute && use24HourTime == mUse24HourTime && profile == mProfile && !boundsChanged) {
+                return false;
+            }
+            mHour = hour;
+            mMinute = minute;
+            mUse24HourTime = use24HourTime;
+            mProfile = profile;
+            // pad hour with 0 or not depending on if 24 hour time is being used
+            if (use24HourTime) {
+                mText = String.format("%02d:%02d", getHour(calendar, true), minute);
+            } else {
+                mText = String.format("%d:%02d", getHour(calendar, false), minute);
+            }
+            mX = bounds.exactCenterX() - profile.measureTime(mText) / 2.0f;
+            mBaseline = bounds.exactCenterY() + (profile.getTimeHeight(mText) / 2.0f) - 25.0f; //-XX.Xf is the offset up from the center
+            mRenders++;
+            return true;
+        }
+
+        @Override
+        void onDraw(Canvas canvas) {
+            canvas.drawText(mText, mX, mBaseline, mProfile.getTimePaint());
+        }
+    }
+
+    private static class DateNode extends Node {
+        private int mDay = -1;
+        private boolean mEuropean;
+        private RenderProfile mProfile;
+        private String mText;
+        float mWidth;
+        float mHeight;
+        float mX;
+        float mBaseline;
+
+        DateNode() {
+            super("date");
+        }
+
+        @SuppressLint("DefaultLocale")
+        boolean update(Calendar calendar, boolean european, RenderProfile profile) {
+            // the date only changes once a day or when the date format setting does
+            int day = calendar.get(Calendar.DAY_OF_YEAR);
+            if (day == mDay && european == mEuropean && profile == mProfile) {
+                return false;
+            }
+            mDay = day;
+            mEuropean = european;
+            mProfile = profile;
+            if (european) {
+                mText = String.format("%.3s, %d %.3s", android.text.format.DateFormat.format("EEEE", calendar), calendar.get(Calendar.DAY_OF_MONTH),
+                        android.text.format.DateFormat.format("MMMM", calendar));
+            } else {
+                mText = String.format("%.3s, %.3s %d", android.text.format.DateFormat.format("EEEE", calendar),
+                        android.text.format.DateFormat.format("MMMM", calendar), calendar.get(Calendar.DAY_OF_MONTH));
+            }
+            mWidth = profile.measureInfo(mText);
+            mHeight = profile.getInfoHeight(mText);
+            mRenders++;
+            return true;
+        }
+
+        @Override
+        void onDraw(Canvas canvas) {
+            canvas.drawText(mText, mX, mBaseline, mProfile.getInfoPaint());
+        }
+    }
+
+    private static class WeatherNode extends Node {
+        private boolean mShowTemperature;
+        private boolean mShowIcon;
+        private double mTemperature = Double.NaN;
+        private long mSettingsVersion = -1;
+        private Bitmap mIcon;
+        private RenderProfile mProfile;
+        private String mTemperatureText = "";
+        private float mTemperatureWidth;
+        float mIconX;
+        float mIconY;
+        float mTemperatureX;
+        float mBaseline;
+
+        WeatherNode() {
+            super("weather");
+        }
+
+        boolean update(boolean showTemperature, boolean showIcon, CurrentWeather weather, SettingsSnapshot settings,
+                       Bitmap icon, RenderProfile profile) {
+            double temperature = weather != null ? weather.getTemperature() : Double.NaN;
+            if (showTemperature == mShowTemperature && showIcon == mShowIcon && Double.compare(temperature, mTemperature) == 0
+                    && settings.getVersion() == mSettingsVersion && icon == mIcon && profile == mProfile) {
+                return false;
+            }
+            mShowTemperature = showTemperature;
+            mShowIcon = showIcon;
+            mTemperature = temperature;
+            mSettingsVersion = settings.getVersion();
+            mIcon = icon;
+            mProfile = profile;
+            mTemperatureText = showTemperature ? weather.getFormattedTemperature(settings) : "";
+            mTemperatureWidth = showTemperature ? profile.measureInfo(mTemperatureText) : 0;
+            mRenders++;
+            return true;
+        }
+
+        /**
+         * @return how much the weather adds to the info bar after the date
+         */
+        float getWidth() {
+            if (mShowTemperature) {
+                return INFO_BAR_MARGIN + (mShowIcon ? mIcon.getWidth() : 0) + mTemperatureWidth;
+            } else if (mShowIcon) {
+                return INFO_BAR_MARGIN / 2 + mIcon.getWidth();
+            }
+            return 0;
+        }
+
+        void layout(float x, float baseline) {
+            mBaseline = baseline;
+            if (mShowIcon) {
+                mIconX = x + INFO_BAR_MARGIN / 2;
+                mIconY = baseline - mIcon.getHeight() + 6.0f;
+                mTemperatureX = x + INFO_BAR_MARGIN + mIcon.getWidth();
+            } else {
+                mTemperatureX = x + INFO_BAR_MARGIN;
+            }
+        }
+
+        @Override
+        void onDraw(Canvas canvas) {
+            if (mShowIcon) {
+                canvas.drawBitmap(mIcon, mIconX, mIconY, null);
+            }
+            if (mShowTemperature) {
+                canvas.drawText(mTemperatureText, mTemperatureX, mBaseline, mProfile.getInfoPaint());
+            }
+        }
+    }
+
+    private static class BatteryNode extends Node {
+        private int mLevel = -1;
+        private RenderProfile mProfile;
+        private String mText;
+        private float mX;
+        private float mBaseline;
+
+        BatteryNode() {
+            super("battery");
+        }
+
+        @SuppressLint("DefaultLocale")
+        void update(int level, RenderProfile profile, Rect bounds, boolean boundsChanged) {
+            if (level == mLevel && profile == mProfile && !boundsChanged) {
+                return;
+            }
+            mLevel = level;
+            mProfile = profile;
+            mText = String.format("%d%%", level);
+            mX = bounds.exactCenterX() - profile.measureInfo(mText) / 2.0f;
+            mBaseline = bounds.bottom - profile.getInfoHeight(mText) * 1.5f/* / 2.0f*/;
+            mRenders++;
+        }
+
+        @Override
+        void onDraw(Canvas canvas) {
+            canvas.drawText(mText, mX, mBaseline, mProfile.getInfoPaint());
+        }
+    }
+
+    private static class LogoNode extends Node {
+        private Bitmap mBitmap;
+        private float mTimeBaseline = Float.NaN;
+        private float mX;
+        private float mY;
+
+        LogoNode() {
+            super("logo");
+        }
+
+        void update(Bitmap bitmap, float timeBaseline, Rect bounds, boolean boundsChanged) {
+            mVisible = bitmap != null;
+            if (bitmap == null || (bitmap == mBitmap && timeBaseline == mTimeBaseline && !boundsChanged)) {
+                return;
+            }
+            mBitmap = bitmap;
+            mTimeBaseline = timeBaseline;
+            mX = bounds.exactCenterX() - (bitmap.getWidth() / 2.0f);
+            mY = timeBaseline - timeBaseline / 2 - bitmap.getHeight() - 16.0f;
+            mRenders++;
+        }
+
+        @Override
+        void onDraw(Canvas canvas) {
+            canvas.drawBitmap(mBitmap, mX, mY, null);
+        }
+    }
+
+    private static class SparklineNode extends Node {
+        private static final long WINDOW_MS = TimeUnit.HOURS.toMillis(24);
+        private static final float PADDING = 3.0f;
+
+        private final int mBackgroundColor;
+        private final Paint mPaint = new Paint();
+        private final Path mPath = new Path();
+        private final long[] mTimes = new long[TemperatureHistory.CAPACITY];
+        private final float[] mTemperatures = new float[TemperatureHistory.CAPACITY];
+        private final Rect mBounds = new Rect();
+        private long mHistoryVersion = -1;
+        private int mColor;
+        private Bitmap mCache;
+        private Canvas mCacheCanvas;
+
+        SparklineNode(int backgroundColor) {
+            super("sparkline");
+            mBackgroundColor = backgroundColor;
+            mPaint.setAntiAlias(true);
+            mPaint.setStyle(Paint.Style.STROKE);
+            mPaint.setStrokeWidth(2f);
+            mPaint.setStrokeCap(Paint.Cap.ROUND);
+            mPaint.setStrokeJoin(Paint.Join.ROUND);
+        }
+
+        void setBounds(Rect bounds) {
+            if (!bounds.equals(mBounds)) {
+                mBounds.set(bounds);
+                trimMemory();
+            }
+        }
+
+        void trimMemory() {
+            if (mCache != null) {
+                mCache.recycle();
+                mCache = null;
+                mCacheCanvas = null;
+            }
+            mHistoryVersion = -1;
+        }
+
+        long getBitmapBytes() {
+            return mCache == null ? 0 : mCache.getAllocationByteCount();
+        }
+
+        void update(TemperatureHistory history, int color, boolean show) {
+            mVisible = show && history != null && !mBounds.isEmpty();
+            if (!mVisible) {
+                return;
+            }
+            long version = history.getVersion();
+            if (version == mHistoryVersion && color == mColor && mCache != null) {
+                mVisible = !mPath.isEmpty();
+                return;
+            }
+            mHistoryVersion = version;
+            mColor = color;
+            mPaint.setColor(color);
+
+            // the window ends at the newest sample rather than now, so it only moves when one arrives
+            int count = history.copySince(0, mTimes, mTemperatures, null);
+            int first = count;
+            while (first > 0 && mTimes[first - 1] >= mTimes[count - 1] - WINDOW_MS) {
+                first--;
+            }
+            mPath.reset();
+            if (count - first >= 2) {
+                float min = Float.MAX_VALUE;
+                float max = -Float.MAX_VALUE;
+                for (int i = first; i < count; i++) {
+                    min = Math.min(min, mTemperatures[i]);
+                    max = Math.max(max, mTemperatures[i]);
+                }
+                // a flat day stays a flat line in the middle rather than filling the height
+                float range = Math.max(max - min, 2.0f);
+                float mid = (max + min) / 2.0f;
+                long windowStart = mTimes[count - 1] - WINDOW_MS;
+                float width = mBounds.width() - 2 * PADDING;
+                float height = mBounds.height() - 2 * PADDING;
+                for (int i = first; i < count; i++) {
+                    float x = PADDING + width * (mTimes[i] - windowStart) / WINDOW_MS;
+                    float y = PADDING + height * (0.5f - (mTemperatures[i] - mid) / range);
+                    if (i == first) {
+                        mPath.moveTo(x, y);
+                    } else {
+                        mPath.lineTo(x, y);
+                    }
+                }
+            }
+            if (mCache == null) {
+                mCache = Bitmap.createBitmap(mBounds.width(), mBounds.height(), Bitmap.Config.RGB_565);
+                mCacheCanvas = new Canvas(mCache);
+            }
+            mCache.eraseColor(mBackgroundColor);
+            mCacheCanvas.drawPath(mPath, mPaint);
+            mVisible = !mPath.isEmpty();
+            mRenders++;
+        }
+
+        @Override
+        void onDraw(Canvas canvas) {
+            canvas.drawBitmap(mCache, mBounds.left, mBounds.top, null);
+        }
+    }
+
+    private final Rect mBounds = new Rect();
+    private final BackgroundNode mBackground;
+    private final TimeNode mTime = new TimeNode();
+    private final DateNode mDate = new DateNode();
+    private final WeatherNode mWeather = new WeatherNode();
+    private final BatteryNode mBattery = new BatteryNode();
+    private final LogoNode mLogo = new LogoNode();
+    private final SparklineNode mSparkline;
+    private final Node[] mNodes;
+    private long mFrames = 0;
+
+    public WatchFaceScene(Paint backgroundPaint) {
+        mBackground = new BackgroundNode(backgroundPaint);
+        mSparkline = new SparklineNode(backgroundPaint.getColor());
+        mNodes = new Node[]{mBackground, mTime, mDate, mWeather, mBattery, mLogo, mSparkline};
+    }
+
+    /**
+     * @param bounds where on the face the temperature trend goes
+     */
+    public void setSparklineBounds(Rect bounds) {
+        mSparkline.setBounds(bounds);
+    }
+
+    /**
+     * Frees cached bitmaps; they are rebuilt on the next frame. Main thread only.
+     */
+    public void trimMemory() {
+        mSparkline.trimMemory();
+    }
+
+    /**
+     * @return bytes held by cached bitmaps
+     */
+    public long getBitmapBytes() {
+        return mSparkline.getBitmapBytes();
+    }
+
+    /**
+     * Brings every element up to date with this frame's inputs, re-rendering those whose inputs
+     * changed.
+     *
+     * @param calendar set to the time being drawn
+     * @param icon     the weather icon, required if the icon is shown
+     * @param logo     the logo for the current mode, or null until it has loaded
+     */
+    public void update(Rect bounds, Calendar calendar, SettingsSnapshot settings, RenderProfile profile, boolean ambient,
+                       CurrentWeather weather, boolean showTemperature, boolean showWeatherIcon, Bitmap icon,
+                       int batteryLevel, Bitmap logo) {
+        boolean boundsChanged = !bounds.equals(mBounds);
+        if (boundsChanged) {
+            mBounds.set(bounds);
+        }
+        mBackground.update(bounds);
+
+        boolean timeChanged = mTime.update(calendar, settings.isUse24HourTime(), profile, bounds, boundsChanged);
+        boolean dateChanged = mDate.update(calendar, settings.isUseEuropeanDateFormat(), profile);
+        boolean weatherChanged = mWeather.update(showTemperature, showWeatherIcon, weather, settings, icon, profile);
+        if (timeChanged || dateChanged || weatherChanged || boundsChanged) {
+            // the date and weather are centered together under the time
+            float infoBarX = bounds.exactCenterX() - (mDate.mWidth + mWeather.getWidth()) / 2.0f;
+            float infoBarBaseline = mTime.mBaseline + mDate.mHeight + 27.0f;
+            mDate.mX = infoBarX;
+            mDate.mBaseline = infoBarBaseline;
+            mWeather.layout(infoBarX + mDate.mWidth, infoBarBaseline);
+        }
+        boolean showInfoBar = settings.isShowInfoBarAmbient() || !ambient;
+        mDate.mVisible = showInfoBar;
+        mWeather.mVisible = showInfoBar && (showTemperature || showWeatherIcon);
+
+        mBattery.mVisible = settings.isShowBattery();
+        if (mBattery.mVisible) {
+            mBattery.update(batteryLevel, profile, bounds, boundsChanged);
+        }
+        mLogo.update(logo, mTime.mBaseline, bounds, boundsChanged);
+        // the trend is only drawn interactive, it would be a lot of lit pixels in ambient
+        mSparkline.update(weather != null ? weather.getHistory() : null, profile.getInfoPaint().getColor(),
+                showTemperature && !ambient);
+    }
+
+    public void draw(Canvas canvas) {
+        draw(canvas, 0, 0);
+    }
+
+    /**
+     * Draws everything but the background shifted by {@code (dx, dy)}. Positions and cached
+     * bitmaps are used as they are, so a shift costs a translate.
+     */
+    public void draw(Canvas canvas, float dx, float dy) {
+        mBackground.draw(canvas);
+        canvas.save();
+        canvas.translate(dx, dy);
+        for (Node node : mNodes) {
+            if (node != mBackground) {
+                node.draw(canvas);
+            }
+        }
+        canvas.restore();
+        mFrames++;
+    }
+
+    /**
+     * @return per element: how many of the frames re-rendered it and its mean draw time
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder("scene, ").append(mFrames).append(" frames\n");
+        for (Node node : mNodes) {
+            sb.append(node.mName).append(": ").append(node.mRenders).append(" renders, ")
+                    .append(node.mDraws == 0 ? 0 : node.mDrawNanos / node.mDraws / 1000).append(" us/draw\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the same as {@link #report()} as {@code key=value} lines, each starting with
+     * {@code prefix}.
+     */
+    public void dump(PrintWriter out, String prefix) {
+        out.print(prefix); out.print("scene.frames="); out.println(mFrames);
+        for (Node node : mNodes) {
+            out.print(prefix); out.print("scene."); out.print(node.mName); out.print(".renders="); out.println(node.mRenders);
+            out.print(prefix); out.print("scene."); out.print(node.mName); out.print(".draw_us=");
+            out.println(node.mDraws == 0 ? 0 : node.mDrawNanos / node.mDraws / 1000);
+        }
+        out.print(prefix); out.print("scene.bitmap_bytes="); out.println(getBitmapBytes());
+    }
+}
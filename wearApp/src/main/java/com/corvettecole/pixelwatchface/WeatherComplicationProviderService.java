@@ -0,0 +1,72 @@
+package com.corvettecole.pixelwatchface;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.graphics.drawable.Icon;
+import android.support.wearable.complications.ComplicationData;
+import android.support.wearable.complications.ComplicationManager;
+import android.support.wearable.complications.ComplicationProviderService;
+import android.support.wearable.complications.ComplicationText;
+import android.support.wearable.complications.ProviderUpdateRequester;
+
+/**
+ * Offers the weather {@link CurrentWeather} already holds as a complication, so other watch
+ * faces can show it without running a fetch and location fix of their own. Never fetches:
+ * updates are pushed through {@link #requestUpdate(Context)} whenever the weather or the
+ * temperature unit changes.
+ */
+public class WeatherComplicationProviderService extends ComplicationProviderService {
+
+    private static final String TAG = "WeatherComplication";
+
+    /**
+     * Asks the system to refresh every active instance of this complication.
+     */
+    public static void requestUpdate(Context context) {
+        new ProviderUpdateRequester(context,
+                new ComponentName(context, WeatherComplicationProviderService.class)).requestUpdateAll();
+    }
+
+    @Override
+    public void onComplicationUpdate(int complicationId, int type, ComplicationManager manager) {
+        CurrentWeather currentWeather = CurrentWeather.getInstance(getApplicationContext());
+        SettingsSnapshot settings = Settings.getInstance(getApplicationContext()).getSnapshot();
+        ComplicationData data;
+        if (currentWeather.getTime() == 0) {
+            // nothing fetched yet
+            data = new ComplicationData.Builder(ComplicationData.TYPE_NO_DATA).build();
+        } else {
+            ComplicationText temperature = ComplicationText.plainText(currentWeather.getFormattedTemperature(settings));
+            Icon icon = Icon.createWithResource(this, currentWeather.getIconId());
+            String summary = currentWeather.getSummary();
+            switch (type) {
+                case ComplicationData.TYPE_SHORT_TEXT:
+                    data = new ComplicationData.Builder(ComplicationData.TYPE_SHORT_TEXT)
+                            .setShortText(temperature)
+                            .setIcon(icon)
+                            .build();
+                    break;
+                case ComplicationData.TYPE_LONG_TEXT:
+                    ComplicationData.Builder builder = new ComplicationData.Builder(ComplicationData.TYPE_LONG_TEXT)
+                            .setIcon(icon);
+                    if (summary != null && !summary.isEmpty()) {
+                        builder.setLongTitle(temperature).setLongText(ComplicationText.plainText(summary));
+                    } else {
+                        builder.setLongText(temperature);
+                    }
+                    data = builder.build();
+                    break;
+                case ComplicationData.TYPE_ICON:
+                    data = new ComplicationData.Builder(ComplicationData.TYPE_ICON)
+                            .setIcon(icon)
+                            .build();
+                    break;
+                default:
+                    FaceLog.w(TAG, "unsupported complication type {}", type);
+                    manager.noUpdateRequired(complicationId);
+                    return;
+            }
+        }
+        manager.updateComplicationData(complicationId, data);
+    }
+}
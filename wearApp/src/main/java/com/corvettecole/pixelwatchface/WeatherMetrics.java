@@ -0,0 +1,225 @@
+package com.corvettecole.pixelwatchface;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters and histograms for the weather path: how long we wait for a location,
+ * how long providers take to answer, how much we download, how long parsing takes, how runs end
+ * and how old the weather on screen is. Recording costs a few atomic operations, so it stays on
+ * in release builds; {@link #report()} renders everything as text for debug surfaces and
+ * {@link #dump} as {@code key=value} lines for dumpsys.
+ */
+public class WeatherMetrics {
+
+    public static final String LOCATION_WAIT_MS = "location_wait_ms";
+    public static final String TIME_TO_RESPONSE_MS = "time_to_response_ms"; // DNS + connect + TTFB
+    public static final String BODY_BYTES = "body_bytes";
+    public static final String PARSE_MS = "parse_ms";
+    public static final String DATA_AGE_AT_RENDER_MIN = "data_age_at_render_min";
+    public static final String COLD_RADIO_FETCH_MS = "cold_radio_fetch_ms"; // whole fetch, location to publish
+    public static final String WARM_RADIO_FETCH_MS = "warm_radio_fetch_ms";
+
+    private static final WeatherMetrics instance = new WeatherMetrics();
+
+    private final long mStartedAt = SystemClock.elapsedRealtime();
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+
+    private WeatherMetrics() {
+        mHistograms.put(LOCATION_WAIT_MS, new Histogram(10, 50, 100, 500, 1000, 5000, 15000, 30000, 45000));
+        mHistograms.put(TIME_TO_RESPONSE_MS, new Histogram(100, 250, 500, 1000, 2000, 5000, 10000, 15000));
+        mHistograms.put(BODY_BYTES, new Histogram(512, 1024, 2048, 4096, 8192, 16384, 32768, 65536));
+        mHistograms.put(PARSE_MS, new Histogram(1, 2, 5, 10, 25, 50, 100, 250));
+        mHistograms.put(DATA_AGE_AT_RENDER_MIN, new Histogram(5, 15, 30, 45, 60, 120, 240, 720, 1440));
+        mHistograms.put(COLD_RADIO_FETCH_MS, new Histogram(500, 1000, 2000, 5000, 10000, 20000, 40000));
+        mHistograms.put(WARM_RADIO_FETCH_MS, new Histogram(500, 1000, 2000, 5000, 10000, 20000, 40000));
+    }
+
+    public static WeatherMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the counter called {@code name}, created on first use
+     */
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            Counter existing = mCounters.putIfAbsent(name, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return one of the fixed histograms named by the constants in this class
+     */
+    public Histogram histogram(String name) {
+        return mHistograms.get(name);
+    }
+
+    public void increment(String counterName) {
+        counter(counterName).add(1);
+    }
+
+    public void record(String histogramName, long value) {
+        mHistograms.get(histogramName).record(value);
+    }
+
+    /**
+     * Counts the end of an attempt against a single provider.
+     *
+     * @param outcome "success" or "failure"
+     */
+    public void recordOutcome(String provider, String outcome) {
+        increment("fetch." + provider + "." + outcome);
+    }
+
+    /**
+     * @return every counter and histogram, one per line, followed by the download rate
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        long uptimeMs = Math.max(1, SystemClock.elapsedRealtime() - mStartedAt);
+        sb.append("weather metrics over ").append(uptimeMs / 60000).append(" min\n");
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(mCounters).entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(mHistograms).entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        long bytesPerDay = histogram(BODY_BYTES).getSum() * 86400000L / uptimeMs;
+        sb.append("downloaded per day: ").append(bytesPerDay).append(" bytes");
+        return sb.toString();
+    }
+
+    /**
+     * Writes the same as {@link #report()} as {@code key=value} lines, each starting with
+     * {@code prefix}; a histogram gives its count, mean, p50, p90 and max under its own name.
+     */
+    public void dump(PrintWriter out, String prefix) {
+        long uptimeMs = Math.max(1, SystemClock.elapsedRealtime() - mStartedAt);
+        out.print(prefix); out.print("uptime_min="); out.println(uptimeMs / 60000);
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(mCounters).entrySet()) {
+            out.print(prefix); out.print(entry.getKey()); out.print('='); out.println(entry.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(mHistograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            long count = histogram.getCount();
+            out.print(prefix); out.print(entry.getKey()); out.print(".count="); out.println(count);
+            out.print(prefix); out.print(entry.getKey()); out.print(".mean="); out.println(count == 0 ? -1 : histogram.getSum() / count);
+            out.print(prefix); out.print(entry.getKey()); out.print(".p50="); out.println(histogram.getQuantile(0.5));
+            out.print(prefix); out.print(entry.getKey()); out.print(".p90="); out.println(histogram.getQuantile(0.9));
+            out.print(prefix); out.print(entry.getKey()); out.print(".max="); out.println(count == 0 ? -1 : histogram.getMax());
+        }
+        out.print(prefix); out.print("bytes_per_day="); out.println(histogram(BODY_BYTES).getSum() * 86400000L / uptimeMs);
+    }
+
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * Counts values into fixed buckets. Bucket i holds values up to and including
+     * {@code bounds[i]}; one extra bucket holds everything larger.
+     */
+    public static class Histogram {
+        private final long[] mBounds;
+        private final AtomicLongArray mBuckets;
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Histogram(long... bounds) {
+            mBounds = bounds;
+            mBuckets = new AtomicLongArray(bounds.length + 1);
+        }
+
+        public void record(long value) {
+            int bucket = 0;
+            while (bucket < mBounds.length && value > mBounds[bucket]) {
+                bucket++;
+            }
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+                // another thread raised the max, retry
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getSum() {
+            return mSum.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        /**
+         * @return the upper bound of the bucket containing the {@code quantile}, the recorded
+         * max if that is the overflow bucket, or -1 with nothing recorded
+         */
+        public long getQuantile(double quantile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(count * quantile);
+            long seen = 0;
+            for (int i = 0; i < mBounds.length; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return mBounds[i];
+                }
+            }
+            return mMax.get();
+        }
+
+        @Override
+        public String toString() {
+            long count = getCount();
+            if (count == 0) {
+                return "n=0";
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("n=").append(count)
+                    .append(" mean=").append(getSum() / count)
+                    .append(" p50<=").append(getQuantile(0.5))
+                    .append(" p90<=").append(getQuantile(0.9))
+                    .append(" max=").append(mMax.get())
+                    .append(" [");
+            for (int i = 0; i < mBuckets.length(); i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(i < mBounds.length ? "<=" + mBounds[i] : ">" + mBounds[mBounds.length - 1])
+                        .append(':').append(mBuckets.get(i));
+            }
+            return sb.append(']').toString();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.corvettecole.pixelwatchface;
+
+import org.json.JSONException;
+
+/**
+ * A source of current weather conditions. Implementations know how to build the request URL for
+ * a location, how to turn the response body into {@link WeatherData}, and how to map their own
+ * condition codes onto our icon set.
+ */
+public interface WeatherProvider {
+
+    /**
+     * @return a short, stable name for this provider, used for logging and for looking the
+     * provider back up from persisted state
+     */
+    String getName();
+
+    /**
+     * @return whether this provider can be queried at all, e.g. whether an API key is present
+     */
+    boolean isConfigured();
+
+    String buildUrl(double latitude, double longitude);
+
+    /**
+     * Parses a successful response body. Temperatures are returned in Fahrenheit and humidity
+     * and precipitation chance as a fraction between 0 and 1, regardless of provider.
+     */
+    WeatherData parse(String body) throws JSONException;
+
+    /**
+     * @return the drawable resource to show for one of this provider's condition codes
+     */
+    int getIconId(String iconName);
+}
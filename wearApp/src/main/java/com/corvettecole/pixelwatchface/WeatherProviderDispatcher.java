@@ -0,0 +1,308 @@
+package com.corvettecole.pixelwatchface;
+
+import android.os.SystemClock;
+
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends weather requests to an ordered list of {@link WeatherProvider}s. The first provider is
+ * tried first; if it hasn't answered within its own p90 latency a hedged request is sent to the
+ * next one and whichever answers successfully first wins. A provider that fails repeatedly has
+ * its circuit opened and is skipped until a cool-down has passed.
+ */
+public class WeatherProviderDispatcher {
+
+    private static final String TAG = "WeatherDispatcher";
+
+    private static final int LATENCY_SAMPLES = 32;
+    private static final int MIN_SAMPLES_FOR_HEDGE = 5;
+    private static final long DEFAULT_HEDGE_DELAY_MS = 5000;
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long CIRCUIT_COOL_DOWN_MS = TimeUnit.MINUTES.toMillis(15);
+
+    private final OkHttpClient mClient;
+    private final ScheduledExecutorService mScheduler;
+    private final ExecutorService mParseExecutor = Executors.newSingleThreadExecutor();
+    private final Map<String, ProviderStats> mStats = new HashMap<>();
+    private final WeatherMetrics mMetrics = WeatherMetrics.getInstance();
+
+    public WeatherProviderDispatcher(OkHttpClient client) {
+        // OkHttp 2.2's own dispatcher executor never grows past one thread, which would queue a
+        // hedged request behind the very call it is meant to race
+        mClient = client.clone().setDispatcher(new Dispatcher(Executors.newCachedThreadPool()));
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Fetches current weather, trying {@code providers} in order. Providers that are not
+     * configured or whose circuit is open are skipped.
+     */
+    public ListenableFuture<WeatherData> fetch(double latitude, double longitude, WeatherProvider... providers) {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            List<WeatherProvider> candidates = new ArrayList<>();
+            for (WeatherProvider provider : providers) {
+                if (provider != null && provider.isConfigured()) {
+                    candidates.add(provider);
+                }
+            }
+            Exchange exchange = new Exchange(completer, candidates, latitude, longitude);
+            completer.addCancellationListener(exchange::cancelAll, Runnable::run);
+            synchronized (exchange) {
+                if (!exchange.launchNext()) {
+                    exchange.mDone = true;
+                    completer.setException(new IOException("No weather provider available"));
+                }
+            }
+            return "WeatherProviderDispatcher.fetch";
+        });
+    }
+
+    public ProviderStats getStats(WeatherProvider provider) {
+        synchronized (mStats) {
+            ProviderStats stats = mStats.get(provider.getName());
+            if (stats == null) {
+                stats = new ProviderStats();
+                mStats.put(provider.getName(), stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * One logical weather request, possibly fanned out to several providers.
+     */
+    private class Exchange {
+        private final CallbackToFutureAdapter.Completer<WeatherData> mCompleter;
+        private final List<WeatherProvider> mCandidates;
+        private final double mLatitude;
+        private final double mLongitude;
+        private final List<Call> mCalls = new ArrayList<>();
+        private int mNext = 0;
+        private int mInFlight = 0;
+        private boolean mDone = false;
+
+        Exchange(CallbackToFutureAdapter.Completer<WeatherData> completer, List<WeatherProvider> candidates,
+                 double latitude, double longitude) {
+            mCompleter = completer;
+            mCandidates = candidates;
+            mLatitude = latitude;
+            mLongitude = longitude;
+        }
+
+        /**
+         * Starts a request to the next provider whose circuit allows it. Must be called while
+         * holding the lock on this exchange.
+         *
+         * @return whether a request was started
+         */
+        private boolean launchNext() {
+            while (mNext < mCandidates.size()) {
+                WeatherProvider provider = mCandidates.get(mNext++);
+                ProviderStats stats = getStats(provider);
+                if (stats.allowRequest(Clock.get().currentTimeMillis())) {
+                    start(provider, stats);
+                    return true;
+                }
+                FaceLog.d(TAG, "{} circuit open, skipping", provider.getName());
+            }
+            return false;
+        }
+
+        private void start(WeatherProvider provider, ProviderStats stats) {
+            Request request = new Request.Builder()
+                    .url(provider.buildUrl(mLatitude, mLongitude))
+                    .build();
+            Call call = mClient.newCall(request);
+            mCalls.add(call);
+            mInFlight++;
+            final long startTime = SystemClock.elapsedRealtime();
+
+            if (mNext < mCandidates.size()) {
+                mScheduler.schedule(() -> {
+                    synchronized (Exchange.this) {
+                        if (!mDone) {
+                            FaceLog.d(TAG, "{} slower than p90, hedging", provider.getName());
+                            if (launchNext()) {
+                                mMetrics.increment("fetch.hedged");
+                            }
+                        }
+                    }
+                }, stats.getHedgeDelay(), TimeUnit.MILLISECONDS);
+            }
+
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Request request, IOException e) {
+                    onAttemptFailed(provider, stats, e);
+                }
+
+                @Override
+                public void onResponse(Response response) throws IOException {
+                    // OkHttp calls back once the headers are in, so this covers DNS, connect
+                    // and time to first byte
+                    mMetrics.record(WeatherMetrics.TIME_TO_RESPONSE_MS, SystemClock.elapsedRealtime() - startTime);
+                    if (!response.isSuccessful()) {
+                        response.body().close();
+                        onAttemptFailed(provider, stats, new IOException(provider.getName() + " returned HTTP " + response.code()));
+                        return;
+                    }
+                    String body;
+                    try {
+                        byte[] bytes = response.body().bytes();
+                        mMetrics.record(WeatherMetrics.BODY_BYTES, bytes.length);
+                        body = new String(bytes, "UTF-8");
+                    } catch (IOException e) {
+                        onAttemptFailed(provider, stats, e);
+                        return;
+                    }
+                    long latency = SystemClock.elapsedRealtime() - startTime;
+                    // keep OkHttp's dispatcher threads for I/O
+                    mParseExecutor.execute(() -> {
+                        try {
+                            long parseStart = SystemClock.elapsedRealtime();
+                            WeatherData data = provider.parse(body);
+                            mMetrics.record(WeatherMetrics.PARSE_MS, SystemClock.elapsedRealtime() - parseStart);
+                            onAttemptSucceeded(provider, stats, data, latency);
+                        } catch (JSONException e) {
+                            onAttemptFailed(provider, stats, e);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void onAttemptSucceeded(WeatherProvider provider, ProviderStats stats, WeatherData data, long latencyMs) {
+            synchronized (this) {
+                mInFlight--;
+                if (mDone) {
+                    return;
+                }
+                mDone = true;
+            }
+            stats.recordSuccess(latencyMs);
+            mMetrics.recordOutcome(provider.getName(), "success");
+            cancelAll();
+            mCompleter.set(data);
+        }
+
+        private void onAttemptFailed(WeatherProvider provider, ProviderStats stats, Exception e) {
+            synchronized (this) {
+                mInFlight--;
+                if (mDone) {
+                    // cancelled because another provider already answered
+                    return;
+                }
+                stats.recordFailure(Clock.get().currentTimeMillis());
+                mMetrics.recordOutcome(provider.getName(), "failure");
+                FaceLog.d(TAG, "{} failed: {}", provider.getName(), e);
+                if (launchNext() || mInFlight > 0) {
+                    return;
+                }
+                mDone = true;
+            }
+            mCompleter.setException(e);
+        }
+
+        private void cancelAll() {
+            List<Call> calls;
+            synchronized (this) {
+                mDone = true;
+                calls = new ArrayList<>(mCalls);
+            }
+            for (Call call : calls) {
+                call.cancel();
+            }
+        }
+    }
+
+    /**
+     * Rolling latency samples and circuit breaker state for a single provider.
+     */
+    public static class ProviderStats {
+        private final long[] mLatencies = new long[LATENCY_SAMPLES];
+        private int mSampleCount = 0;
+        private int mSampleIndex = 0;
+        private int mConsecutiveFailures = 0;
+        private long mCircuitOpenUntil = 0;
+        private long mRequests = 0;
+        private long mFailures = 0;
+
+        synchronized boolean allowRequest(long now) {
+            if (mConsecutiveFailures < FAILURE_THRESHOLD) {
+                return true;
+            }
+            if (now >= mCircuitOpenUntil) {
+                // half-open: let a single trial request through and hold the circuit open for
+                // everyone else until it reports back
+                mCircuitOpenUntil = now + CIRCUIT_COOL_DOWN_MS;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void recordSuccess(long latencyMs) {
+            mRequests++;
+            mConsecutiveFailures = 0;
+            mLatencies[mSampleIndex] = latencyMs;
+            mSampleIndex = (mSampleIndex + 1) % LATENCY_SAMPLES;
+            if (mSampleCount < LATENCY_SAMPLES) {
+                mSampleCount++;
+            }
+        }
+
+        synchronized void recordFailure(long now) {
+            mRequests++;
+            mFailures++;
+            mConsecutiveFailures++;
+            if (mConsecutiveFailures == FAILURE_THRESHOLD) {
+                mCircuitOpenUntil = now + CIRCUIT_COOL_DOWN_MS;
+            }
+        }
+
+        /**
+         * @return the 90th percentile of recent successful latencies, or -1 if too few samples
+         */
+        public synchronized long getP90Latency() {
+            if (mSampleCount < MIN_SAMPLES_FOR_HEDGE) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(mLatencies, mSampleCount);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(mSampleCount * 0.9) - 1];
+        }
+
+        long getHedgeDelay() {
+            long p90 = getP90Latency();
+            return p90 < 0 ? DEFAULT_HEDGE_DELAY_MS : p90;
+        }
+
+        public synchronized float getFailureRate() {
+            return mRequests == 0 ? 0f : (float) mFailures / mRequests;
+        }
+
+        public synchronized boolean isCircuitOpen() {
+            return mConsecutiveFailures >= FAILURE_THRESHOLD;
+        }
+    }
+}
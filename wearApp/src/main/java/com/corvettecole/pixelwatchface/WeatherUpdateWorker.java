@@ -3,7 +3,9 @@ package com.corvettecole.pixelwatchface;
 import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.util.Log;
+import android.location.Location;
+import android.os.Debug;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.concurrent.futures.CallbackToFutureAdapter;
@@ -11,14 +13,53 @@ import androidx.core.app.ActivityCompat;
 import androidx.work.ListenableWorker;
 import androidx.work.WorkerParameters;
 
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationServices;
 import com.google.common.util.concurrent.ListenableFuture;
 
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.corvettecole.pixelwatchface.Constants.FETCH_DEADLINE;
+import static com.corvettecole.pixelwatchface.Constants.KEY_FORCE_WEATHER_UPDATE;
+import static com.corvettecole.pixelwatchface.Constants.KEY_OPPORTUNISTIC_FETCH;
+import static com.corvettecole.pixelwatchface.Constants.LOCATION_DEADLINE;
+import static com.corvettecole.pixelwatchface.Constants.OPPORTUNISTIC_FETCH_AGE;
+import static com.corvettecole.pixelwatchface.Constants.WEATHER_BACKOFF_DELAY;
+import static com.corvettecole.pixelwatchface.Constants.WEATHER_STALE_AGE;
+import static com.corvettecole.pixelwatchface.Constants.WEATHER_UPDATE_INTERVAL;
+import static com.corvettecole.pixelwatchface.Utils.withDeadline;
+
+/**
+ * Refreshes the weather as a non-blocking chain: location fix, fetch, parse, publish. Each stage
+ * has its own deadline, every callback runs on the worker's background executor, and stopping
+ * the worker cancels whichever stage is in flight, including the HTTP call.
+ *
+ * How old the weather may get depends on the radio. On a warm one (see
+ * {@link OpportunisticFetcher}) it is refreshed every {@link Constants#WEATHER_UPDATE_INTERVAL},
+ * or after {@link Constants#OPPORTUNISTIC_FETCH_AGE} for an opportunistic run; a cold one is
+ * only woken once it is {@link Constants#WEATHER_STALE_AGE} old.
+ */
 public class WeatherUpdateWorker extends ListenableWorker {
 
+    private static final String TAG = "WeatherUpdateWorker";
+
+    /**
+     * Rough time a Wi-Fi or cellular radio stays in its high-power state after a transfer ends.
+     */
+    private static final long RADIO_TAIL_MS = TimeUnit.SECONDS.toMillis(10);
+    /**
+     * Assumed length of a cold fetch until one has been measured.
+     */
+    private static final long DEFAULT_COLD_FETCH_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private volatile ListenableFuture<?> mInFlight;
+
+    // CPU time this run's callbacks have spent on their own threads
+    private final AtomicLong mCpuNanos = new AtomicLong();
+
+    private final WeatherMetrics mMetrics = WeatherMetrics.getInstance();
+
     /**
      * @param appContext   The application {@link Context}
      * @param workerParams Parameters to setup the internal state of this worker
@@ -30,29 +71,176 @@ public class WeatherUpdateWorker extends ListenableWorker {
     @NonNull
     @Override
     public ListenableFuture<Result> startWork() {
-        String TAG = "WeatherUpdateWorker";
+        // the run hops between threads, so each callback adds its own thread's CPU time to
+        // mCpuNanos before it hands over or completes the run, and the total goes to the ledger
+        // once the run ends
+        long cpuStart = Debug.threadCpuTimeNanos();
+        WakeUpLedger ledger = WakeUpLedger.getInstance();
         CurrentWeather currentWeather = CurrentWeather.getInstance(getApplicationContext());
-        FusedLocationProviderClient mFusedLocationClient = LocationServices.getFusedLocationProviderClient(getApplicationContext());
-        return CallbackToFutureAdapter.getFuture(completer -> {
-            mFusedLocationClient.getLastLocation().addOnSuccessListener(location -> {
-                if (location != null){
-                    Log.d(TAG, "updating forecast with location: (" + location.getLatitude() + "," + location.getLongitude() + ")");
-                    try {
-                        completer.set(currentWeather.updateForecast(location.getLatitude(), location.getLongitude()).get());
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        completer.setException(e);
-                    }
-                } else {
-                    if (ActivityCompat.checkSelfPermission(getApplicationContext(), Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-                        completer.set(Result.failure());
-                    } else {
-                        // if no location, but permission exists, try again
-                        completer.set(Result.retry());
-                    }
-                }
-            });
-            return completer;
+        boolean force = getInputData().getBoolean(KEY_FORCE_WEATHER_UPDATE, false);
+        boolean opportunistic = getInputData().getBoolean(KEY_OPPORTUNISTIC_FETCH, false);
+        boolean radioWarm = OpportunisticFetcher.getInstance(getApplicationContext()).isRadioWarm();
+        long runStart = SystemClock.elapsedRealtime();
+        if (!force && currentWeather.isPhoneDataFresh()) {
+            FaceLog.d(TAG, "phone pushed weather recently, skipping standalone fetch");
+            mMetrics.increment("worker.skipped_phone_fresh");
+            ledger.record(WakeUpLedger.SOURCE_WEATHER_WORKER, Debug.threadCpuTimeNanos() - cpuStart);
+            return CallbackToFutureAdapter.getFuture(completer -> completer.set(Result.success()));
+        }
+        LocationCache locationCache = LocationCache.getInstance(getApplicationContext());
+        ListenableFuture<Result> result = CallbackToFutureAdapter.getFuture(completer -> {
+            completer.addCancellationListener(this::cancelInFlight, Runnable::run);
+            long locationStart = SystemClock.elapsedRealtime();
+            ListenableFuture<Location> fix = withDeadline(locationCache.getFix(), LOCATION_DEADLINE, TimeUnit.SECONDS);
+            mInFlight = fix;
+            chargeCpu(cpuStart);
+            fix.addListener(() -> {
+                long callbackCpuStart = Debug.threadCpuTimeNanos();
+                mMetrics.record(WeatherMetrics.LOCATION_WAIT_MS, SystemClock.elapsedRealtime() - locationStart);
+                onLocation(fix, currentWeather, locationCache, force, opportunistic, radioWarm, runStart, completer,
+                        callbackCpuStart);
+            }, getBackgroundExecutor());
+            return "WeatherUpdateWorker";
         });
+        result.addListener(() -> {
+            recordResult(result);
+            ledger.record(WakeUpLedger.SOURCE_WEATHER_WORKER, mCpuNanos.get());
+        }, Runnable::run);
+        return result;
+    }
+
+    private void recordResult(ListenableFuture<Result> result) {
+        String outcome = "cancelled";
+        if (!result.isCancelled()) {
+            try {
+                Result r = result.get();
+                outcome = Result.success().equals(r) ? "success" : Result.retry().equals(r) ? "retry" : "failure";
+            } catch (Exception e) {
+                outcome = "failure";
+            }
+        }
+        mMetrics.increment("worker." + outcome);
+        if (FaceLog.DEBUG) {
+            FaceLog.d(WeatherMetrics.class.getSimpleName(), mMetrics.report());
+        }
+    }
+
+    /**
+     * Adds the CPU time the current thread has spent since {@code cpuStart} to this run's total.
+     */
+    private void chargeCpu(long cpuStart) {
+        mCpuNanos.addAndGet(Debug.threadCpuTimeNanos() - cpuStart);
+    }
+
+    /**
+     * Completes the run with {@code result}, or as cancelled if it is null, after charging the
+     * calling callback's CPU time, so the total the ledger gets includes it.
+     */
+    private void finish(CallbackToFutureAdapter.Completer<Result> completer, Result result, long cpuStart) {
+        chargeCpu(cpuStart);
+        if (result != null) {
+            completer.set(result);
+        } else {
+            completer.setCancelled();
+        }
+    }
+
+    private void onLocation(ListenableFuture<Location> fix, CurrentWeather currentWeather, LocationCache locationCache,
+                            boolean force, boolean opportunistic, boolean radioWarm, long runStart,
+                            CallbackToFutureAdapter.Completer<Result> completer, long cpuStart) {
+        Location location;
+        try {
+            location = fix.get();
+        } catch (CancellationException e) {
+            finish(completer, null, cpuStart);
+            return;
+        } catch (Exception e) {
+            FaceLog.d(TAG, "no location fix: {}", e);
+            if (e.getCause() instanceof TimeoutException) {
+                mMetrics.increment("location.timeout");
+            }
+            location = null;
+        }
+
+        if (location == null) {
+            if (ActivityCompat.checkSelfPermission(getApplicationContext(), Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+                finish(completer, Result.failure(), cpuStart);
+            } else {
+                // if no location, but permission exists, try again
+                finish(completer, opportunistic ? Result.success() : Result.retry(), cpuStart);
+            }
+            return;
+        }
+
+        Location lastFetchLocation = currentWeather.getLastFetchLocation();
+        long lastFetchTime = currentWeather.getLastFetchTime();
+        long maxAge = TimeUnit.MINUTES.toMillis(WEATHER_UPDATE_INTERVAL - WEATHER_BACKOFF_DELAY);
+        if (opportunistic) {
+            maxAge = TimeUnit.MINUTES.toMillis(OPPORTUNISTIC_FETCH_AGE);
+        } else if (!radioWarm) {
+            maxAge = TimeUnit.MINUTES.toMillis(WEATHER_STALE_AGE);
+        }
+        if (!force && !locationCache.isRefetchWarranted(lastFetchLocation, lastFetchTime, maxAge)) {
+            if (!radioWarm && locationCache.isRefetchWarranted(lastFetchLocation, lastFetchTime,
+                    TimeUnit.MINUTES.toMillis(WEATHER_UPDATE_INTERVAL - WEATHER_BACKOFF_DELAY))) {
+                // a fetch on the regular interval would have woken the radio just for this
+                FaceLog.d(TAG, "radio is cold and weather isn't stale yet, deferring fetch");
+                mMetrics.increment("radio.cold_fetch_deferred");
+                mMetrics.counter("radio.on_ms_avoided").add(estimateColdFetchMs() + RADIO_TAIL_MS);
+            } else {
+                FaceLog.d(TAG, "weather is recent and we haven't moved, skipping fetch");
+            }
+            finish(completer, Result.success(), cpuStart);
+            return;
+        }
+
+        FaceLog.d(TAG, "updating forecast with location: ({},{})", location.getLatitude(), location.getLongitude());
+        ListenableFuture<Result> update = withDeadline(currentWeather.updateForecast(location), FETCH_DEADLINE, TimeUnit.SECONDS);
+        mInFlight = update;
+        chargeCpu(cpuStart);
+        update.addListener(() -> {
+            long callbackCpuStart = Debug.threadCpuTimeNanos();
+            try {
+                Result result = update.get();
+                mMetrics.record(radioWarm ? WeatherMetrics.WARM_RADIO_FETCH_MS : WeatherMetrics.COLD_RADIO_FETCH_MS,
+                        SystemClock.elapsedRealtime() - runStart);
+                if (opportunistic && Result.success().equals(result)) {
+                    mMetrics.increment("fetch.opportunistic");
+                }
+                finish(completer, opportunistic ? Result.success() : result, callbackCpuStart);
+            } catch (CancellationException e) {
+                finish(completer, null, callbackCpuStart);
+            } catch (Exception e) {
+                FaceLog.d(TAG, "weather update failed: {}", e);
+                if (e.getCause() instanceof TimeoutException) {
+                    mMetrics.increment("fetch.timeout");
+                }
+                // an opportunistic run is only worth it while the radio is up; the periodic one
+                // will catch up rather than retrying on a radio that may have gone cold
+                finish(completer, opportunistic ? Result.success() : Result.retry(), callbackCpuStart);
+            }
+        }, getBackgroundExecutor());
+    }
+
+    /**
+     * @return mean length of the cold-radio fetches measured so far
+     */
+    private long estimateColdFetchMs() {
+        WeatherMetrics.Histogram coldFetches = mMetrics.histogram(WeatherMetrics.COLD_RADIO_FETCH_MS);
+        long count = coldFetches.getCount();
+        return count == 0 ? DEFAULT_COLD_FETCH_MS : coldFetches.getSum() / count;
+    }
+
+    private void cancelInFlight() {
+        ListenableFuture<?> inFlight = mInFlight;
+        if (inFlight != null) {
+            inFlight.cancel(true);
+        }
+    }
+
+    @Override
+    public void onStopped() {
+        super.onStopped();
+        cancelInFlight();
     }
 }